@@ -1,18 +1,51 @@
 package com.google.cssfeedviz;
 
+import com.google.cssfeedviz.css.CssProductPagesCapture;
+import com.google.cssfeedviz.css.FetchProfile;
 import com.google.cssfeedviz.css.ProductsService;
+import com.google.cssfeedviz.export.SnapshotExporter;
 import com.google.cssfeedviz.gcp.BigQueryService;
+import com.google.cssfeedviz.gcp.DatasetSink;
+import com.google.cssfeedviz.gcp.MetadataCache;
+import com.google.cssfeedviz.gcp.ProgressReporter;
+import com.google.cssfeedviz.shard.ShardedTransfer;
+import com.google.cssfeedviz.shard.TransferShard;
 import com.google.cssfeedviz.utils.AccountInfo;
+import com.google.cssfeedviz.utils.AdaptiveRateLimiter;
+import com.google.cssfeedviz.utils.AsyncLogHandler;
+import com.google.cssfeedviz.utils.ServiceEndpoint;
+import com.google.cssfeedviz.utils.TransportProfile;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
 import com.google.shopping.css.v1.CssProduct;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class TransferCssProducts {
+  private static final Logger logger = Logger.getLogger(TransferCssProducts.class.getName());
   private static final String DEFAULT_CONFIG_DIR = "./config";
   private static final String DEFAULT_ACCOUNT_INFO_FILE = "account-info.json";
   private static final String DEFAULT_DATASET_NAME = "css_feedviz";
   private static final String DEFAULT_DATASET_LOCATION = "EU";
+  private static final String DEFAULT_FETCH_PROFILE = "full";
+  private static final String DEFAULT_MODE = "single";
+  private static final String DEFAULT_SHARD_COUNT = "4";
+  private static final String DEFAULT_CSS_API_MAX_QPS = "20";
+  private static final String DEFAULT_APPEND_MAX_QPS = "100";
+  private static final String DEFAULT_METADATA_CACHE = "true";
+  private static final String DEFAULT_METADATA_CACHE_PERSIST = "true";
+  private static final String DEFAULT_METADATA_CACHE_TTL_HOURS = "24";
+  private static final String DEFAULT_EXPORT_DIR = "export";
+  private static final String DEFAULT_TRANSPORT_PROFILE = "default";
+  private static final String DEFAULT_PROGRESS_INTERVAL_SECONDS = "30";
+  private static final String DEFAULT_LOG_LEVEL = "INFO";
 
   private static final String CONFIG_DIR =
       System.getProperty("feedviz.config.dir", DEFAULT_CONFIG_DIR);
@@ -22,6 +55,50 @@ public class TransferCssProducts {
       System.getProperty("feedviz.dataset.name", DEFAULT_DATASET_NAME);
   private static String DATASET_LOCATION =
       System.getProperty("feedviz.dataset.location", DEFAULT_DATASET_LOCATION);
+  private static String DATASETS = System.getProperty("feedviz.datasets");
+  private static String FETCH_PROFILE =
+      System.getProperty("feedviz.fetch.profile", DEFAULT_FETCH_PROFILE);
+  private static String MODE = System.getProperty("feedviz.mode", DEFAULT_MODE);
+  private static String SHARD_COUNT =
+      System.getProperty("feedviz.shard.count", DEFAULT_SHARD_COUNT);
+  private static String SHARD_DIR =
+      System.getProperty("feedviz.shard.dir", System.getProperty("java.io.tmpdir"));
+  private static String WORKER_TIMEOUT_MINUTES =
+      System.getProperty(
+          "feedviz.worker.timeout.minutes",
+          String.valueOf(ShardedTransfer.DEFAULT_WORKER_TIMEOUT.toMinutes()));
+  private static String CSS_API_MAX_QPS =
+      System.getProperty("feedviz.css.api.max.qps", DEFAULT_CSS_API_MAX_QPS);
+  private static String APPEND_MAX_QPS =
+      System.getProperty("feedviz.append.max.qps", DEFAULT_APPEND_MAX_QPS);
+  private static String METADATA_CACHE =
+      System.getProperty("feedviz.metadata.cache", DEFAULT_METADATA_CACHE);
+  private static String METADATA_CACHE_PERSIST =
+      System.getProperty("feedviz.metadata.cache.persist", DEFAULT_METADATA_CACHE_PERSIST);
+  private static String METADATA_CACHE_TTL_HOURS =
+      System.getProperty("feedviz.metadata.cache.ttl.hours", DEFAULT_METADATA_CACHE_TTL_HOURS);
+  private static String CSS_API_TRANSPORT_PROFILE =
+      System.getProperty("feedviz.css.api.transport.profile", DEFAULT_TRANSPORT_PROFILE);
+  private static String APPEND_TRANSPORT_PROFILE =
+      System.getProperty("feedviz.append.transport.profile", DEFAULT_TRANSPORT_PROFILE);
+  private static String CSS_API_ENDPOINT = System.getProperty("feedviz.css.api.endpoint");
+  private static String BIGQUERY_ENDPOINT = System.getProperty("feedviz.bigquery.endpoint");
+  private static String APPEND_ENDPOINT = System.getProperty("feedviz.append.endpoint");
+  private static String EXPORT_DIR = System.getProperty("feedviz.export.dir", DEFAULT_EXPORT_DIR);
+  private static String EXPORT_MAX_OPEN_FILES =
+      System.getProperty(
+          "feedviz.export.max.open.files", String.valueOf(SnapshotExporter.DEFAULT_MAX_OPEN_FILES));
+  private static String PROGRESS_INTERVAL_SECONDS =
+      System.getProperty("feedviz.progress.interval.seconds", DEFAULT_PROGRESS_INTERVAL_SECONDS);
+  private static String PROGRESS_FILE = System.getProperty("feedviz.progress.file");
+  private static String EXPECTED_PRODUCTS = System.getProperty("feedviz.expected.products");
+  private static String STATE_DIR = System.getProperty("feedviz.state.dir", CONFIG_DIR);
+  private static String LOG_LEVEL = System.getProperty("feedviz.log.level", DEFAULT_LOG_LEVEL);
+  private static String LOG_BUFFER_SIZE =
+      System.getProperty(
+          "feedviz.log.buffer.size", String.valueOf(AsyncLogHandler.DEFAULT_CAPACITY));
+  private static String CAPTURE_FILE = System.getProperty("feedviz.capture.file");
+  private static String REPLAY_FILE = System.getProperty("feedviz.replay.file");
   private static String ACCOUNT_INFO_DOMAIN_ID =
       System.getProperty("feedviz.account.info.domain.id");
   private static String ACCOUNT_INFO_GROUP_ID = System.getProperty("feedviz.account.info.group.id");
@@ -42,18 +119,133 @@ public class TransferCssProducts {
     }
   }
 
+  private static TransferShard getTransferShard() {
+    return new TransferShard(
+        Integer.parseInt(System.getProperty("feedviz.shard.index")),
+        System.getProperty("feedviz.shard.start.token", ""),
+        System.getProperty("feedviz.shard.end.token", ""));
+  }
+
+  // Sharded workers only report progress lines, as they would overwrite each other's files.
+  private static ProgressReporter getProgressReporter() {
+    long intervalSeconds = Long.parseLong(PROGRESS_INTERVAL_SECONDS);
+    if (intervalSeconds <= 0) {
+      return null;
+    } else if (MODE.equals("worker")) {
+      return new ProgressReporter(Duration.ofSeconds(intervalSeconds), null, null, 0);
+    }
+    return new ProgressReporter(
+        Duration.ofSeconds(intervalSeconds),
+        (PROGRESS_FILE != null) ? Path.of(PROGRESS_FILE) : null,
+        Path.of(STATE_DIR, ProgressReporter.STATE_FILE_NAME),
+        (EXPECTED_PRODUCTS != null) ? Long.parseLong(EXPECTED_PRODUCTS) : 0);
+  }
+
+  // Transfers into every dataset of feedviz.datasets when set, or into feedviz.dataset.name.
+  private static void streamCssProducts(
+      BigQueryService bigQueryService,
+      Flow.Publisher<List<CssProduct>> cssProductPages,
+      FetchProfile fetchProfile)
+      throws InterruptedException,
+          ExecutionException,
+          IOException,
+          DescriptorValidationException {
+    if (DATASETS != null) {
+      bigQueryService.streamCssProducts(
+          DatasetSink.parseList(DATASETS), cssProductPages, fetchProfile, LocalDateTime.now());
+    } else {
+      bigQueryService.streamCssProducts(
+          DATASET_NAME, DATASET_LOCATION, cssProductPages, fetchProfile, LocalDateTime.now());
+    }
+  }
+
   public static void main(String[] args) {
+    AsyncLogHandler.install(Level.parse(LOG_LEVEL), Integer.parseInt(LOG_BUFFER_SIZE));
     try {
       AccountInfo accountInfo = getAccountInfo();
+      FetchProfile fetchProfile = FetchProfile.fromName(FETCH_PROFILE);
       ProductsService productsService = ProductsService.create(accountInfo);
-      Iterable<CssProduct> cssProducts = productsService.listCssProducts();
-
       BigQueryService bigQueryService = new BigQueryService(accountInfo);
-      bigQueryService.streamCssProducts(
-          DATASET_NAME, DATASET_LOCATION, cssProducts, LocalDateTime.now());
+      AdaptiveRateLimiter cssApiRateLimiter =
+          new AdaptiveRateLimiter("CSS API", Double.parseDouble(CSS_API_MAX_QPS));
+      AdaptiveRateLimiter appendRateLimiter =
+          new AdaptiveRateLimiter("BigQuery appends", Double.parseDouble(APPEND_MAX_QPS));
+      productsService.setRateLimiter(cssApiRateLimiter);
+      bigQueryService.setRateLimiter(appendRateLimiter);
+      productsService.setTransportProfile(TransportProfile.fromName(CSS_API_TRANSPORT_PROFILE));
+      bigQueryService.setTransportProfile(TransportProfile.fromName(APPEND_TRANSPORT_PROFILE));
+      productsService.setEndpoint(ServiceEndpoint.parse(CSS_API_ENDPOINT));
+      bigQueryService.setEndpoint(ServiceEndpoint.parse(BIGQUERY_ENDPOINT));
+      bigQueryService.setWriteEndpoint(ServiceEndpoint.parse(APPEND_ENDPOINT));
+      bigQueryService.setProgressReporter(getProgressReporter());
+      if (Boolean.parseBoolean(METADATA_CACHE)) {
+        Duration metadataCacheTtl = Duration.ofHours(Long.parseLong(METADATA_CACHE_TTL_HOURS));
+        bigQueryService.setMetadataCache(
+            Boolean.parseBoolean(METADATA_CACHE_PERSIST)
+                ? MetadataCache.load(Path.of(CONFIG_DIR, MetadataCache.FILE_NAME), metadataCacheTtl)
+                : MetadataCache.inMemory(metadataCacheTtl));
+      }
+
+      if (DATASETS != null && !MODE.equals("single")) {
+        throw new IllegalArgumentException("feedviz.datasets is only supported in single mode");
+      }
+
+      if (MODE.equals("coordinator")) {
+        ShardedTransfer shardedTransfer = new ShardedTransfer(productsService, bigQueryService);
+        shardedTransfer.setWorkerTimeout(
+            Duration.ofMinutes(Long.parseLong(WORKER_TIMEOUT_MINUTES)));
+        shardedTransfer.coordinate(
+            DATASET_NAME,
+            DATASET_LOCATION,
+            fetchProfile,
+            LocalDateTime.now(),
+            Integer.parseInt(SHARD_COUNT),
+            Path.of(SHARD_DIR));
+      } else if (MODE.equals("worker")) {
+        new ShardedTransfer(productsService, bigQueryService)
+            .work(
+                getTransferShard(),
+                DATASET_NAME,
+                DATASET_LOCATION,
+                fetchProfile,
+                LocalDateTime.parse(System.getProperty("feedviz.transfer.date")),
+                Path.of(System.getProperty("feedviz.shard.manifest")));
+      } else if (MODE.equals("single") && REPLAY_FILE != null) {
+        Flow.Publisher<List<CssProduct>> cssProductPages =
+            CssProductPagesCapture.replay(Path.of(REPLAY_FILE), fetchProfile);
+        streamCssProducts(bigQueryService, cssProductPages, fetchProfile);
+      } else if (MODE.equals("single")) {
+        try (CssProductPagesCapture pagesCapture =
+            (CAPTURE_FILE != null) ? CssProductPagesCapture.create(Path.of(CAPTURE_FILE)) : null) {
+          productsService.setPagesCapture(pagesCapture);
+          Flow.Publisher<List<CssProduct>> cssProductPages =
+              productsService.publishCssProducts(fetchProfile);
+          streamCssProducts(bigQueryService, cssProductPages, fetchProfile);
+        }
+      } else if (MODE.equals("export")) {
+        Flow.Publisher<List<CssProduct>> cssProductPages =
+            (REPLAY_FILE != null)
+                ? CssProductPagesCapture.replay(Path.of(REPLAY_FILE), fetchProfile)
+                : productsService.publishCssProducts(fetchProfile);
+        LocalDateTime transferDate = LocalDateTime.now();
+        SnapshotExporter snapshotExporter =
+            new SnapshotExporter(
+                Path.of(EXPORT_DIR),
+                bigQueryService.getTableName(fetchProfile),
+                cssProduct -> bigQueryService.getRowAsMap(cssProduct, fetchProfile, transferDate),
+                Integer.parseInt(EXPORT_MAX_OPEN_FILES));
+        long rowCount = snapshotExporter.export(cssProductPages, transferDate);
+        logger.log(
+            Level.INFO, "Exported {0} CSS Products to {1}", new Object[] {rowCount, EXPORT_DIR});
+      } else {
+        throw new IllegalArgumentException("Unknown mode '" + MODE + "'");
+      }
+      logger.info(cssApiRateLimiter.toString());
+      logger.info(appendRateLimiter.toString());
     } catch (Exception e) {
-      System.err.println(e.getMessage());
-      e.printStackTrace();
+      logger.log(Level.SEVERE, "Transfer failed: " + e.getMessage(), e);
+      // Lets schedulers, and the coordinator of a sharded transfer, see that the transfer failed.
+      System.exit(1);
     }
   }
 }
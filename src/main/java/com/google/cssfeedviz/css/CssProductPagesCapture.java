@@ -0,0 +1,108 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.css;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.cssfeedviz.utils.IterablePublisher;
+import com.google.cssfeedviz.utils.MappedFileInputStream;
+import com.google.shopping.css.v1.CssProduct;
+import com.google.shopping.css.v1.ListCssProductsResponse;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip compressed file of raw ListCssProductsResponse pages, each written as a length-delimited
+ * protobuf. Capturing the pages of a transfer allows it to be replayed without calling the CSS
+ * API, for repeatable performance runs or to backfill tables after a schema change.
+ */
+public class CssProductPagesCapture implements Closeable {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final OutputStream outputStream;
+
+  private CssProductPagesCapture(OutputStream outputStream) {
+    this.outputStream = outputStream;
+  }
+
+  /** Creates a capture file at the given path, replacing any existing file. */
+  public static CssProductPagesCapture create(Path path) throws IOException {
+    return new CssProductPagesCapture(
+        new GZIPOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE), BUFFER_SIZE));
+  }
+
+  public synchronized void write(ListCssProductsResponse response) throws IOException {
+    response.writeDelimitedTo(outputStream);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    outputStream.close();
+  }
+
+  /**
+   * Returns the pages of a capture file. The file is memory mapped and read one page at a time, so
+   * it is never held in memory as a whole.
+   */
+  public static Iterable<ListCssProductsResponse> read(Path path) {
+    return () ->
+        new AbstractIterator<ListCssProductsResponse>() {
+          private InputStream inputStream;
+
+          @Override
+          protected ListCssProductsResponse computeNext() {
+            try {
+              if (inputStream == null) {
+                inputStream =
+                    new GZIPInputStream(new MappedFileInputStream(path), BUFFER_SIZE);
+              }
+              ListCssProductsResponse response =
+                  ListCssProductsResponse.parseDelimitedFrom(inputStream);
+              if (response == null) {
+                inputStream.close();
+                return endOfData();
+              }
+              return response;
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        };
+  }
+
+  /**
+   * Returns a publisher of the pages of CSS Products in a capture file, restricted to the CSS
+   * Products included in the fetch profile.
+   */
+  public static Flow.Publisher<List<CssProduct>> replay(Path path, FetchProfile fetchProfile) {
+    Iterable<List<CssProduct>> pages =
+        () ->
+            Iterators.transform(
+                read(path).iterator(),
+                response -> fetchProfile.select(response.getCssProductsList()));
+    return new IterablePublisher<List<CssProduct>>(pages);
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.css;
+
+import com.google.shopping.css.v1.CssProduct;
+import java.util.List;
+
+/**
+ * Profiles controlling how much of each CSS Product is retrieved from the CSS API.
+ *
+ * <p>The CSS API does not support server-side filtering of CSS Products, so narrower profiles
+ * restrict the response through a field mask and drop unwanted CSS Products client side before
+ * they are converted.
+ */
+public enum FetchProfile {
+  /** Every CSS Product with every attribute. */
+  FULL("full", false),
+
+  /** Every CSS Product with its status and a minimal set of attributes. */
+  STATUS_ONLY("status-only", true),
+
+  /** CSS Products with item level issues, with their status and a minimal set of attributes. */
+  ISSUES_ONLY("issues-only", true);
+
+  private static final List<String> STATUS_FIELDS =
+      List.of(
+          "name",
+          "raw_provided_id",
+          "content_language",
+          "feed_label",
+          "attributes.title",
+          "attributes.brand",
+          "attributes.gtin",
+          "attributes.mpn",
+          "attributes.item_group_id",
+          "attributes.google_product_category",
+          "attributes.cpp_link",
+          "css_product_status");
+
+  private final String name;
+  private final boolean statusOnly;
+
+  FetchProfile(String name, boolean statusOnly) {
+    this.name = name;
+    this.statusOnly = statusOnly;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isStatusOnly() {
+    return statusOnly;
+  }
+
+  public static FetchProfile fromName(String name) {
+    for (FetchProfile fetchProfile : values()) {
+      if (fetchProfile.name.equalsIgnoreCase(name)) {
+        return fetchProfile;
+      }
+    }
+    throw new IllegalArgumentException("Unknown fetch profile '" + name + "'");
+  }
+
+  /**
+   * Returns the response field mask for ListCssProducts calls, or {@code null} if the full CSS
+   * Product should be retrieved.
+   */
+  public String getFieldMask() {
+    if (!statusOnly) {
+      return null;
+    }
+    StringBuilder fieldMask = new StringBuilder("next_page_token");
+    for (String field : STATUS_FIELDS) {
+      fieldMask.append(",css_products.").append(field);
+    }
+    return fieldMask.toString();
+  }
+
+  public boolean includes(CssProduct cssProduct) {
+    if (this == ISSUES_ONLY) {
+      return cssProduct.getCssProductStatus().getItemLevelIssuesCount() > 0;
+    }
+    return true;
+  }
+
+  /** Returns the CSS Products of a page that are included in this profile. */
+  public List<CssProduct> select(List<CssProduct> cssProducts) {
+    if (this != ISSUES_ONLY) {
+      return cssProducts;
+    }
+    return cssProducts.stream().filter(this::includes).toList();
+  }
+}
@@ -15,21 +15,44 @@
 package com.google.cssfeedviz.css;
 
 import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
 import com.google.cssfeedviz.utils.AccountInfo;
+import com.google.cssfeedviz.utils.AdaptiveRateLimiter;
 import com.google.cssfeedviz.utils.Authenticator;
+import com.google.cssfeedviz.utils.IterablePublisher;
+import com.google.cssfeedviz.utils.ServiceEndpoint;
+import com.google.cssfeedviz.utils.TransportProfile;
 import com.google.shopping.css.v1.CssProduct;
 import com.google.shopping.css.v1.CssProductsServiceClient;
+import com.google.shopping.css.v1.CssProductsServiceClient.ListCssProductsPage;
 import com.google.shopping.css.v1.CssProductsServiceClient.ListCssProductsPagedResponse;
 import com.google.shopping.css.v1.CssProductsServiceSettings;
 import com.google.shopping.css.v1.ListCssProductsRequest;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
 
 /** A class for handling CSS Products for a given Account */
 public class ProductsService {
+  private static final String FIELD_MASK_HEADER = "x-goog-fieldmask";
+  private static final String PAGE_TOKENS_FIELD_MASK = "next_page_token";
+  private static final int MAX_THROTTLED_ATTEMPTS = 5;
 
   private AccountInfo accountInfo;
   private CssProductsServiceClient cssProductsServiceClient;
+  private CssProductPagesCapture pagesCapture;
+  private AdaptiveRateLimiter rateLimiter;
+  private TransportProfile transportProfile = TransportProfile.DEFAULT;
+  private ServiceEndpoint endpoint;
 
   private ProductsService() {}
 
@@ -41,34 +64,224 @@ public class ProductsService {
     this.accountInfo = accountInfo;
   }
 
+  /**
+   * Creates a ProductsService for the account. The CSS API client is only created once the first
+   * request is made, so runs that never call the CSS API, such as replays, skip loading it.
+   */
   public static ProductsService create(AccountInfo accountInfo) throws IOException {
     ProductsService productsService = new ProductsService();
     productsService.setAccountInfo(accountInfo);
+    return productsService;
+  }
 
-    GoogleCredentials credential = new Authenticator().authenticate(accountInfo);
+  public synchronized void setCssProductsServiceClient(
+      CssProductsServiceClient cssProductsServiceClient) {
+    this.cssProductsServiceClient = cssProductsServiceClient;
+  }
 
-    CssProductsServiceSettings cssProductsServiceSettings =
-        CssProductsServiceSettings.newBuilder()
-            .setCredentialsProvider(FixedCredentialsProvider.create(credential))
-            .build();
-    CssProductsServiceClient cssProductsServiceClient =
-        CssProductsServiceClient.create(cssProductsServiceSettings);
-    productsService.setCssProductsServiceClient(cssProductsServiceClient);
+  private synchronized CssProductsServiceClient getCssProductsServiceClient() {
+    if (this.cssProductsServiceClient == null) {
+      try {
+        CssProductsServiceSettings.Builder cssProductsServiceSettings =
+            CssProductsServiceSettings.newBuilder();
+        if (this.endpoint != null && this.endpoint.isPlaintext()) {
+          cssProductsServiceSettings.setCredentialsProvider(NoCredentialsProvider.create());
+        } else {
+          GoogleCredentials credential = new Authenticator().authenticate(this.accountInfo);
+          cssProductsServiceSettings.setCredentialsProvider(
+              FixedCredentialsProvider.create(credential));
+        }
+        if (this.transportProfile != TransportProfile.DEFAULT || this.endpoint != null) {
+          InstantiatingGrpcChannelProvider.Builder channelProvider =
+              this.transportProfile.configure(
+                  CssProductsServiceSettings.defaultGrpcTransportProviderBuilder());
+          if (this.endpoint != null) {
+            cssProductsServiceSettings.setEndpoint(this.endpoint.getAuthority());
+            this.endpoint.configure(channelProvider);
+          }
+          cssProductsServiceSettings.setTransportChannelProvider(channelProvider.build());
+        }
+        this.cssProductsServiceClient =
+            CssProductsServiceClient.create(cssProductsServiceSettings.build());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return this.cssProductsServiceClient;
+  }
 
-    return productsService;
+  /**
+   * Sets the capture that every page retrieved by {@link #publishCssProducts} is recorded to, or
+   * {@code null} to stop recording pages.
+   */
+  public void setPagesCapture(CssProductPagesCapture pagesCapture) {
+    this.pagesCapture = pagesCapture;
   }
 
-  public void setCssProductsServiceClient(CssProductsServiceClient cssProductsServiceClient) {
-    this.cssProductsServiceClient = cssProductsServiceClient;
+  /**
+   * Sets the rate limiter that every page request of {@link #listPageTokens} and {@link
+   * #publishCssProducts} waits for, or {@code null} to request pages without limit. Pages whose
+   * request exceeds the CSS API quota are requested again at the lowered rate.
+   */
+  public void setRateLimiter(AdaptiveRateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /** Sets the gRPC channel settings of the CSS API client. Has no effect once it is created. */
+  public synchronized void setTransportProfile(TransportProfile transportProfile) {
+    this.transportProfile = transportProfile;
+  }
+
+  /**
+   * Sets the endpoint the CSS API client connects to, or {@code null} for the default endpoint. Has
+   * no effect once the client is created.
+   */
+  public synchronized void setEndpoint(ServiceEndpoint endpoint) {
+    this.endpoint = endpoint;
   }
 
   public Iterable<CssProduct> listCssProducts() {
+    return listCssProducts(FetchProfile.FULL);
+  }
+
+  public Iterable<CssProduct> listCssProducts(FetchProfile fetchProfile) {
+    ListCssProductsPagedResponse response =
+        getListCssProductsPagedResponse(getListCssProductsRequest(""), fetchProfile.getFieldMask());
+    if (fetchProfile == FetchProfile.FULL) {
+      return response.iterateAll();
+    }
+    return Iterables.filter(response.iterateAll(), fetchProfile::includes);
+  }
 
-    String parent = getParent();
+  /**
+   * Returns the page token of every page of CSS Products for the account, starting with the empty
+   * token of the first page. Only the page tokens are retrieved from the CSS API, so the listing
+   * can be split into page ranges cheaply.
+   */
+  public List<String> listPageTokens() {
+    List<String> pageTokens = new ArrayList<String>();
+    pageTokens.add("");
+    for (ListCssProductsPage page : getPages("", PAGE_TOKENS_FIELD_MASK)) {
+      if (page.hasNextPage()) {
+        pageTokens.add(page.getNextPageToken());
+      }
+    }
+    return pageTokens;
+  }
+
+  /**
+   * Returns a publisher of the pages of CSS Products for the account. Pages are only retrieved
+   * from the CSS API as the subscriber requests them, and stop being retrieved when the
+   * subscription is cancelled.
+   */
+  public Flow.Publisher<List<CssProduct>> publishCssProducts(FetchProfile fetchProfile) {
+    return publishCssProducts(fetchProfile, "", "");
+  }
+
+  /**
+   * Returns a publisher of the pages of CSS Products from the page with the start page token up to,
+   * but excluding, the page with the end page token. An empty end page token publishes every page
+   * up to the last one.
+   */
+  public Flow.Publisher<List<CssProduct>> publishCssProducts(
+      FetchProfile fetchProfile, String startPageToken, String endPageToken) {
+    return new IterablePublisher<List<CssProduct>>(
+        getCssProductPages(fetchProfile, startPageToken, endPageToken));
+  }
+
+  private Iterable<List<CssProduct>> getCssProductPages(
+      FetchProfile fetchProfile, String startPageToken, String endPageToken) {
+    return () ->
+        new AbstractIterator<List<CssProduct>>() {
+          private final Iterator<ListCssProductsPage> pageIterator =
+              getPages(startPageToken, fetchProfile.getFieldMask()).iterator();
+          private boolean endReached = false;
+
+          @Override
+          protected List<CssProduct> computeNext() {
+            // The end page must not be requested, so stop before asking for the next page.
+            if (endReached || !pageIterator.hasNext()) {
+              return endOfData();
+            }
+            ListCssProductsPage page = pageIterator.next();
+            endReached = !endPageToken.isEmpty() && endPageToken.equals(page.getNextPageToken());
+            if (pagesCapture != null) {
+              try {
+                pagesCapture.write(page.getResponse());
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+            return fetchProfile.select(page.getResponse().getCssProductsList());
+          }
+        };
+  }
+
+  // Returns the pages from the page with the start page token onwards. Every page request waits for
+  // the rate limiter, and the listing resumes from the last retrieved page when a request exceeds
+  // the CSS API quota.
+  private Iterable<ListCssProductsPage> getPages(String startPageToken, String fieldMask) {
+    return () ->
+        new AbstractIterator<ListCssProductsPage>() {
+          private Iterator<ListCssProductsPage> pageIterator;
+          private String pageToken = startPageToken;
+
+          @Override
+          protected ListCssProductsPage computeNext() {
+            for (int attempt = 1; ; attempt++) {
+              // Either creating the iterator or advancing it requests the next page.
+              if (rateLimiter != null) {
+                rateLimiter.acquire();
+              }
+              try {
+                if (pageIterator == null) {
+                  pageIterator =
+                      getListCssProductsPagedResponse(
+                              getListCssProductsRequest(pageToken), fieldMask)
+                          .iteratePages()
+                          .iterator();
+                }
+                if (!pageIterator.hasNext()) {
+                  return endOfData();
+                }
+                ListCssProductsPage page = pageIterator.next();
+                if (rateLimiter != null) {
+                  rateLimiter.onSuccess();
+                }
+                pageToken = page.getNextPageToken();
+                return page;
+              } catch (RuntimeException e) {
+                if (rateLimiter == null
+                    || !AdaptiveRateLimiter.isThrottled(e)
+                    || attempt >= MAX_THROTTLED_ATTEMPTS) {
+                  throw e;
+                }
+                rateLimiter.onThrottled();
+                pageIterator = null;
+              }
+            }
+          }
+        };
+  }
+
+  private ListCssProductsRequest getListCssProductsRequest(String pageToken) {
+    return ListCssProductsRequest.newBuilder()
+        .setParent(getParent())
+        .setPageToken(pageToken)
+        .build();
+  }
 
-    ListCssProductsRequest request = ListCssProductsRequest.newBuilder().setParent(parent).build();
+  private ListCssProductsPagedResponse getListCssProductsPagedResponse(
+      ListCssProductsRequest request, String fieldMask) {
+    if (fieldMask == null) {
+      return getCssProductsServiceClient().listCssProducts(request);
+    }
 
-    ListCssProductsPagedResponse response = this.cssProductsServiceClient.listCssProducts(request);
-    return response.iterateAll();
+    // The call context is carried over to the requests for subsequent pages, so the field mask
+    // applies to the whole listing.
+    GrpcCallContext callContext =
+        GrpcCallContext.createDefault()
+            .withExtraHeaders(Map.of(FIELD_MASK_HEADER, List.of(fieldMask)));
+    return getCssProductsServiceClient().listCssProductsPagedCallable().call(request, callContext);
   }
 }
@@ -0,0 +1,206 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.export;
+
+import com.google.shopping.css.v1.CssProduct;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONObject;
+
+/**
+ * Exports a snapshot of CSS Products to gzip compressed, newline delimited JSON files for local
+ * analytics, for example with DuckDB. The files are partitioned Hive style by transfer date and
+ * feed label:
+ *
+ * <pre>
+ * {exportDir}/{tableName}/transfer_date=2024-06-01T120000/feed_label=DE/part-00000.ndjson.gz
+ * </pre>
+ *
+ * <p>Rows have the same fields as the rows written to BigQuery, with nested attributes and issues
+ * kept as nested objects. Pages are written as they arrive and the next page is only requested
+ * once the previous one has been written, so memory use does not grow with the number of CSS
+ * Products. At most {@code maxOpenFiles} partition files are open at a time; when another
+ * partition is written to, the least recently written file is closed and the partition continues
+ * in a new part file.
+ */
+public class SnapshotExporter {
+  public static final int DEFAULT_MAX_OPEN_FILES = 32;
+  private static final String FILE_EXTENSION = ".ndjson.gz";
+  private static final String EMPTY_PARTITION_VALUE = "__HIVE_DEFAULT_PARTITION__";
+  private static final DateTimeFormatter TRANSFER_DATE_FORMATTER =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HHmmss");
+
+  private final Path exportDir;
+  private final String tableName;
+  private final Function<CssProduct, Map<String, Object>> rowConverter;
+  private final int maxOpenFiles;
+
+  public SnapshotExporter(
+      Path exportDir,
+      String tableName,
+      Function<CssProduct, Map<String, Object>> rowConverter,
+      int maxOpenFiles) {
+    this.exportDir = exportDir;
+    this.tableName = tableName;
+    this.rowConverter = rowConverter;
+    this.maxOpenFiles = maxOpenFiles;
+  }
+
+  /** Exports every published CSS Product and returns the number of rows written. */
+  public long export(Flow.Publisher<List<CssProduct>> cssProductPages, LocalDateTime transferDate)
+      throws IOException, InterruptedException {
+    String transferDatePartition =
+        getPartitionName("transfer_date", TRANSFER_DATE_FORMATTER.format(transferDate));
+    Path transferDateDir = exportDir.resolve(tableName).resolve(transferDatePartition);
+    ExportSubscriber exportSubscriber = new ExportSubscriber(transferDateDir);
+    cssProductPages.subscribe(exportSubscriber);
+    try {
+      return exportSubscriber.completion.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  static String getPartitionName(String column, String value) {
+    return column
+        + "="
+        + (value.isEmpty()
+            ? EMPTY_PARTITION_VALUE
+            : URLEncoder.encode(value, StandardCharsets.UTF_8));
+  }
+
+  private class ExportSubscriber implements Flow.Subscriber<List<CssProduct>> {
+    private final Path transferDateDir;
+    private final CompletableFuture<Long> completion = new CompletableFuture<>();
+    private final Map<String, Integer> nextPartNumbers = new HashMap<String, Integer>();
+    // Ordered by access, so that the least recently written file is the first entry.
+    private final LinkedHashMap<String, Writer> openWriters =
+        new LinkedHashMap<String, Writer>(16, 0.75f, true);
+    private Flow.Subscription subscription;
+    private long rowCount = 0;
+
+    ExportSubscriber(Path transferDateDir) {
+      this.transferDateDir = transferDateDir;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<CssProduct> cssProducts) {
+      if (completion.isDone()) {
+        return;
+      }
+      try {
+        for (CssProduct cssProduct : cssProducts) {
+          Writer writer = getWriter(cssProduct.getFeedLabel());
+          writer.write(new JSONObject(rowConverter.apply(cssProduct)).toString());
+          writer.write('\n');
+          rowCount++;
+        }
+      } catch (IOException | RuntimeException e) {
+        onError(e);
+        return;
+      }
+      subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      if (!completion.isDone()) {
+        subscription.cancel();
+        try {
+          closeWriters();
+        } catch (IOException e) {
+          throwable.addSuppressed(e);
+        }
+        completion.completeExceptionally(throwable);
+      }
+    }
+
+    @Override
+    public void onComplete() {
+      try {
+        closeWriters();
+        completion.complete(rowCount);
+      } catch (IOException e) {
+        completion.completeExceptionally(e);
+      }
+    }
+
+    private Writer getWriter(String feedLabel) throws IOException {
+      Writer writer = openWriters.get(feedLabel);
+      if (writer != null) {
+        return writer;
+      }
+      if (openWriters.size() >= maxOpenFiles) {
+        Map.Entry<String, Writer> leastRecentlyWritten = openWriters.entrySet().iterator().next();
+        openWriters.remove(leastRecentlyWritten.getKey());
+        leastRecentlyWritten.getValue().close();
+      }
+      Path partitionDir = transferDateDir.resolve(getPartitionName("feed_label", feedLabel));
+      Files.createDirectories(partitionDir);
+      Path partPath;
+      do {
+        int partNumber = nextPartNumbers.merge(feedLabel, 1, Integer::sum) - 1;
+        partPath = partitionDir.resolve(String.format("part-%05d%s", partNumber, FILE_EXTENSION));
+      } while (Files.exists(partPath));
+      writer =
+          new BufferedWriter(
+              new OutputStreamWriter(
+                  new GZIPOutputStream(Files.newOutputStream(partPath)), StandardCharsets.UTF_8));
+      openWriters.put(feedLabel, writer);
+      return writer;
+    }
+
+    private void closeWriters() throws IOException {
+      IOException closeException = null;
+      for (Writer writer : openWriters.values()) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          closeException = e;
+        }
+      }
+      openWriters.clear();
+      if (closeException != null) {
+        throw closeException;
+      }
+    }
+  }
+}
@@ -14,142 +14,576 @@
 
 package com.google.cssfeedviz.gcp;
 
-import com.google.api.core.ApiFuture;
-import com.google.api.core.ApiFutureCallback;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
 import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.cloud.NoCredentials;
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.Clustering;
 import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.DatasetId;
 import com.google.cloud.bigquery.DatasetInfo;
-import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.Field.Mode;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.Schema;
 import com.google.cloud.bigquery.StandardSQLTypeName;
 import com.google.cloud.bigquery.StandardTableDefinition;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableId;
 import com.google.cloud.bigquery.TableInfo;
+import com.google.cloud.bigquery.TableResult;
 import com.google.cloud.bigquery.TimePartitioning;
-import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsRequest;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsResponse;
 import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
-import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
-import com.google.cloud.bigquery.storage.v1.Exceptions;
-import com.google.cloud.bigquery.storage.v1.Exceptions.StorageException;
-import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteSettings;
 import com.google.cloud.bigquery.storage.v1.TableName;
 import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+import com.google.cssfeedviz.css.FetchProfile;
 import com.google.cssfeedviz.utils.AccountInfo;
+import com.google.cssfeedviz.utils.AdaptiveRateLimiter;
 import com.google.cssfeedviz.utils.Authenticator;
+import com.google.cssfeedviz.utils.CancellationToken;
+import com.google.cssfeedviz.utils.IterablePublisher;
+import com.google.cssfeedviz.utils.LogFormatter;
+import com.google.cssfeedviz.utils.StringDictionary;
+import com.google.cssfeedviz.utils.ServiceEndpoint;
+import com.google.cssfeedviz.utils.TransportProfile;
 import com.google.protobuf.Descriptors.DescriptorValidationException;
 import com.google.protobuf.Timestamp;
 import com.google.protobuf.util.Timestamps;
 import com.google.shopping.css.v1.Attributes;
 import com.google.shopping.css.v1.CssProduct;
-import com.google.shopping.css.v1.CssProductStatus;
 import com.google.shopping.css.v1.CssProductStatus.ItemLevelIssue;
+import com.google.shopping.css.v1.CssProductStatus;
 import com.google.shopping.css.v1.ProductDimension;
 import com.google.shopping.css.v1.ProductWeight;
 import com.google.shopping.type.Price;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import javax.annotation.concurrent.GuardedBy;
 import org.json.JSONArray;
 
 public class BigQueryService {
+  private static final Logger logger = Logger.getLogger(BigQueryService.class.getName());
+
   private final String CSS_PRODUCTS_TABLE_NAME = "css_products";
+  private final String CSS_PRODUCTS_STATUS_TABLE_NAME = "css_products_status";
+  private final String CSS_PRODUCTS_WITH_ISSUES_TABLE_NAME = "css_products_with_issues";
+  private final String CSS_PRODUCT_STATUS_TABLE_NAME = "css_product_status";
+  private final String CSS_PRODUCT_ISSUES_TABLE_NAME = "css_product_issues";
+  private final String CSS_PRODUCT_ATTRIBUTES_TABLE_NAME = "css_product_attributes";
+  private final String CSS_TRANSFER_RUNS_TABLE_NAME = "css_transfer_runs";
+  private final String CSS_ISSUE_ROLLUPS_TABLE_NAME = "css_issue_rollups";
+  private final int ISSUE_ROLLUPS_INSERT_BATCH_SIZE = 500;
   private final String DEFAULT_INSERT_BATCH_SIZE = "100";
   private final int INSERT_BATCH_SIZE =
       Integer.parseInt(System.getProperty("feedviz.insert.batch.size", DEFAULT_INSERT_BATCH_SIZE));
+  private final String DEFAULT_MAX_INFLIGHT_BATCHES = "10";
+  private final int MAX_INFLIGHT_BATCHES =
+      Integer.parseInt(
+          System.getProperty("feedviz.max.inflight.batches", DEFAULT_MAX_INFLIGHT_BATCHES));
+  private final String SPILL_DIR = System.getProperty("feedviz.spill.dir");
+  private final String DEFAULT_SPILL_MEMORY_BATCHES = "100";
+  private final int SPILL_MEMORY_BATCHES =
+      Integer.parseInt(
+          System.getProperty("feedviz.spill.memory.batches", DEFAULT_SPILL_MEMORY_BATCHES));
+  private final String DEFAULT_MAX_APPEND_BYTES =
+      String.valueOf(RowSizeGuard.DEFAULT_MAX_REQUEST_BYTES);
+  private final long MAX_APPEND_BYTES =
+      Long.parseLong(System.getProperty("feedviz.max.append.bytes", DEFAULT_MAX_APPEND_BYTES));
+  private final String DEFAULT_OVERSIZED_ROW_POLICY = "truncate";
+  private final RowSizeGuard.OversizedRowPolicy OVERSIZED_ROW_POLICY =
+      RowSizeGuard.OversizedRowPolicy.fromName(
+          System.getProperty("feedviz.oversized.row.policy", DEFAULT_OVERSIZED_ROW_POLICY));
+  private final String DEFAULT_DEAD_LETTER_FILE = "dead_letters.ndjson";
+  private final String DEAD_LETTER_FILE =
+      System.getProperty("feedviz.dead.letter.file", DEFAULT_DEAD_LETTER_FILE);
+  private final String DEFAULT_MAX_DEAD_LETTER_ROWS = "10000";
+  private final long MAX_DEAD_LETTER_ROWS =
+      Long.parseLong(
+          System.getProperty("feedviz.max.dead.letter.rows", DEFAULT_MAX_DEAD_LETTER_ROWS));
+  private final String DEFAULT_STRING_DICTIONARY_SIZE =
+      String.valueOf(StringDictionary.DEFAULT_MAX_SIZE);
+  private final int STRING_DICTIONARY_SIZE =
+      Integer.parseInt(
+          System.getProperty("feedviz.string.dictionary.size", DEFAULT_STRING_DICTIONARY_SIZE));
+  private final String DEFAULT_PARTITION_TYPE = "HOUR";
+  private final TimePartitioning.Type PARTITION_TYPE =
+      TimePartitioning.Type.valueOf(
+          System.getProperty("feedviz.partition.type", DEFAULT_PARTITION_TYPE).toUpperCase());
+  private final String DEFAULT_PARTITION_EXPIRATION_DAYS = "30";
+  private final long PARTITION_EXPIRATION_DAYS =
+      Long.parseLong(
+          System.getProperty(
+              "feedviz.partition.expiration.days", DEFAULT_PARTITION_EXPIRATION_DAYS));
+  private final String DEFAULT_CLUSTERING_FIELDS = "feed_label,content_language,name";
+  private final List<String> CLUSTERING_FIELDS =
+      Splitter.on(',')
+          .trimResults()
+          .omitEmptyStrings()
+          .splitToList(System.getProperty("feedviz.clustering.fields", DEFAULT_CLUSTERING_FIELDS));
+  private final String DEFAULT_NORMALIZED_TABLES = "false";
+
+  private boolean normalizedTables =
+      Boolean.parseBoolean(
+          System.getProperty("feedviz.normalized.tables", DEFAULT_NORMALIZED_TABLES));
 
+  private WriteStream.Type writeStreamType = WriteStream.Type.COMMITTED;
+  private AdaptiveRateLimiter rateLimiter;
+  private TransportProfile transportProfile = TransportProfile.DEFAULT;
+  private ServiceEndpoint endpoint;
+  private ServiceEndpoint writeEndpoint;
+  private ProgressReporter progressReporter;
+  private String deadLetterQualifier;
+
+  // Canonicalizes low-cardinality column values, such as languages and currency codes.
+  private final StringDictionary stringDictionary = new StringDictionary(STRING_DICTIONARY_SIZE);
+
+  private final AccountInfo accountInfo;
   private BigQuery bigQuery;
   private ServiceAccountCredentials serviceAccountCredentials;
-  private final Object lock = new Object();
-
-  @GuardedBy("lock")
-  private Throwable error = null;
+  private BigInteger domainId;
+  private MetadataCache metadataCache;
 
-  public void setBigQuery(BigQuery bigQuery) {
+  public synchronized void setBigQuery(BigQuery bigQuery) {
     this.bigQuery = bigQuery;
   }
 
+  /**
+   * Sets whether full transfers are written to the normalized css_product_status,
+   * css_product_issues and css_product_attributes tables instead of the wide css_products table.
+   */
+  public void setNormalizedTables(boolean normalizedTables) {
+    this.normalizedTables = normalizedTables;
+  }
+
+  /**
+   * Sets the type of the write streams that CSS Products are streamed through. Rows written to
+   * PENDING streams are only visible once the streams are committed with {@link
+   * #commitWriteStreams}.
+   */
+  public void setWriteStreamType(WriteStream.Type writeStreamType) {
+    this.writeStreamType = writeStreamType;
+  }
+
+  /**
+   * Sets the rate limiter that every AppendRows request waits for, or {@code null} to append
+   * without limit. Appends rejected for exceeding the Storage Write API quota are sent again at the
+   * lowered rate.
+   */
+  public void setRateLimiter(AdaptiveRateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /** Sets the gRPC channel settings of the Storage Write API clients created for transfers. */
+  public void setTransportProfile(TransportProfile transportProfile) {
+    this.transportProfile = transportProfile;
+  }
+
+  /**
+   * Sets the endpoint of the BigQuery API, or {@code null} for the default endpoint. Has no effect
+   * once the BigQuery client is created.
+   */
+  public synchronized void setEndpoint(ServiceEndpoint endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * Sets the endpoint of the Storage Write API clients created for transfers, or {@code null} for
+   * the default endpoint.
+   */
+  public void setWriteEndpoint(ServiceEndpoint writeEndpoint) {
+    this.writeEndpoint = writeEndpoint;
+  }
+
+  /**
+   * Sets the cache of datasets and tables known to exist, which lets existence checks skip their
+   * metadata calls, or {@code null} to always check with BigQuery.
+   */
+  public void setMetadataCache(MetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
+  /** Sets the reporter of the progress of transfers, or {@code null} to not report progress. */
+  public void setProgressReporter(ProgressReporter progressReporter) {
+    this.progressReporter = progressReporter;
+  }
+
+  /**
+   * Sets a qualifier added to the name of the dead letter file, such as the shard of a sharded
+   * worker, so that processes running at the same time write separate files. {@code null} keeps
+   * the configured name.
+   */
+  public void setDeadLetterQualifier(String deadLetterQualifier) {
+    this.deadLetterQualifier = deadLetterQualifier;
+  }
+
   public boolean datasetExists(String datasetName) {
-    Dataset dataset = this.bigQuery.getDataset(DatasetId.of(datasetName));
-    return dataset != null;
+    return exists(
+        getDatasetKey(datasetName),
+        () -> getBigQuery().getDataset(DatasetId.of(datasetName)) != null);
   }
 
   public boolean tableExists(String datasetName, String tableName) {
-    Table table = this.bigQuery.getTable(TableId.of(datasetName, tableName));
-    return table != null;
+    return exists(
+        getTableKey(datasetName, tableName),
+        () -> getBigQuery().getTable(TableId.of(datasetName, tableName)) != null);
+  }
+
+  private boolean exists(String cacheKey, BooleanSupplier check) {
+    if (this.metadataCache != null && this.metadataCache.contains(cacheKey)) {
+      return true;
+    }
+    boolean exists = check.getAsBoolean();
+    if (exists) {
+      cacheExists(cacheKey);
+    }
+    return exists;
+  }
+
+  private void cacheExists(String cacheKey) {
+    if (this.metadataCache != null) {
+      this.metadataCache.put(cacheKey);
+    }
+  }
+
+  private static String getDatasetKey(String datasetName) {
+    return "dataset:" + datasetName;
+  }
+
+  private static String getTableKey(String datasetName, String tableName) {
+    return "table:" + datasetName + "." + tableName;
+  }
+
+  private static String getSchemaKey(String datasetName, String tableName, Schema schema) {
+    return getTableKey(datasetName, tableName)
+        + ":schema:"
+        + Integer.toHexString(schema.toString().hashCode());
   }
 
   public Dataset createDataset(String datasetName, String location) {
     DatasetInfo datasetInfo = DatasetInfo.newBuilder(datasetName).setLocation(location).build();
-    return this.bigQuery.create(datasetInfo);
+    Dataset dataset = getBigQuery().create(datasetInfo);
+    cacheExists(getDatasetKey(datasetName));
+    return dataset;
+  }
+
+  public String getTableName(FetchProfile fetchProfile) {
+    switch (fetchProfile) {
+      case STATUS_ONLY:
+        return CSS_PRODUCTS_STATUS_TABLE_NAME;
+      case ISSUES_ONLY:
+        return CSS_PRODUCTS_WITH_ISSUES_TABLE_NAME;
+      default:
+        return CSS_PRODUCTS_TABLE_NAME;
+    }
+  }
+
+  public Schema getSchema(FetchProfile fetchProfile) {
+    return fetchProfile.isStatusOnly() ? getCssProductsStatusSchema() : getCssProductsSchema();
   }
 
   public Table createCssProductsTable(String datasetName) {
-    TableId tableId = TableId.of(datasetName, CSS_PRODUCTS_TABLE_NAME);
-    long thirtyDaysInMs = 2592000000L;
-    TimePartitioning timePartitioning =
-        TimePartitioning.newBuilder(TimePartitioning.Type.HOUR)
-            .setField("transfer_date")
-            .setExpirationMs(thirtyDaysInMs)
-            .build();
-    StandardTableDefinition tableDefinition =
-        StandardTableDefinition.newBuilder()
-            .setSchema(getCssProductsSchema())
-            .setTimePartitioning(timePartitioning)
-            .build();
-    TableInfo tableInfo = TableInfo.newBuilder(tableId, tableDefinition).build();
-    return bigQuery.create(tableInfo);
-  }
-
-  public Map<String, String> getPriceAsMap(Price price) {
+    return createCssProductsTable(datasetName, FetchProfile.FULL);
+  }
+
+  public TimePartitioning getTransferDatePartitioning() {
+    TimePartitioning.Builder timePartitioning =
+        TimePartitioning.newBuilder(PARTITION_TYPE).setField("transfer_date");
+    if (PARTITION_EXPIRATION_DAYS > 0) {
+      timePartitioning.setExpirationMs(TimeUnit.DAYS.toMillis(PARTITION_EXPIRATION_DAYS));
+    }
+    return timePartitioning.build();
+  }
+
+  private Table createTable(
+      String datasetName,
+      String tableName,
+      Schema schema,
+      TimePartitioning timePartitioning,
+      List<String> clusteringFields) {
+    TableId tableId = TableId.of(datasetName, tableName);
+    StandardTableDefinition.Builder tableDefinition =
+        StandardTableDefinition.newBuilder().setSchema(schema);
+    if (timePartitioning != null) {
+      tableDefinition.setTimePartitioning(timePartitioning);
+    }
+    if (!clusteringFields.isEmpty()) {
+      tableDefinition.setClustering(Clustering.newBuilder().setFields(clusteringFields).build());
+    }
+    TableInfo tableInfo = TableInfo.newBuilder(tableId, tableDefinition.build()).build();
+    Table table = getBigQuery().create(tableInfo);
+    cacheExists(getTableKey(datasetName, tableName));
+    return table;
+  }
+
+  public Table createCssProductStatusTable(String datasetName) {
+    return createTable(
+        datasetName,
+        CSS_PRODUCT_STATUS_TABLE_NAME,
+        getCssProductStatusSchema(),
+        getTransferDatePartitioning(),
+        List.of("feed_label", "content_language", "name"));
+  }
+
+  public Table createCssProductIssuesTable(String datasetName) {
+    return createTable(
+        datasetName,
+        CSS_PRODUCT_ISSUES_TABLE_NAME,
+        getCssProductIssuesSchema(),
+        getTransferDatePartitioning(),
+        List.of("code", "servability", "feed_label", "content_language"));
+  }
+
+  /**
+   * Creates the css_product_attributes table. Attributes are only written when they change, so the
+   * table is not partitioned with an expiration like the snapshot tables.
+   */
+  public Table createCssProductAttributesTable(String datasetName) {
+    return createTable(
+        datasetName,
+        CSS_PRODUCT_ATTRIBUTES_TABLE_NAME,
+        getCssProductAttributesSchema(),
+        null,
+        List.of("name"));
+  }
+
+  /**
+   * Creates the css_transfer_runs table. It only gets one row per transfer, so it is partitioned by
+   * day and kept without an expiration.
+   */
+  public Table createTransferRunsTable(String datasetName) {
+    return createTable(
+        datasetName,
+        CSS_TRANSFER_RUNS_TABLE_NAME,
+        getTransferRunsSchema(),
+        TimePartitioning.newBuilder(TimePartitioning.Type.DAY).setField("transfer_date").build(),
+        List.of());
+  }
+
+  /**
+   * Creates the css_issue_rollups table. Like css_transfer_runs, it is small enough to be
+   * partitioned by day and kept without an expiration.
+   */
+  public Table createIssueRollupsTable(String datasetName) {
+    return createTable(
+        datasetName,
+        CSS_ISSUE_ROLLUPS_TABLE_NAME,
+        getIssueRollupsSchema(),
+        TimePartitioning.newBuilder(TimePartitioning.Type.DAY).setField("transfer_date").build(),
+        List.of("code", "country"));
+  }
+
+  public Table createCssProductsTable(String datasetName, FetchProfile fetchProfile) {
+    return createTable(
+        datasetName,
+        getTableName(fetchProfile),
+        getSchema(fetchProfile),
+        getTransferDatePartitioning(),
+        CLUSTERING_FIELDS);
+  }
+
+  /**
+   * Brings the partition expiration and clustering of an existing CSS Products table in line with
+   * the configuration. The partition type cannot be changed in place, and an expiration cannot be
+   * removed through the BigQuery client, so those mismatches only produce a warning. The table has
+   * to be recreated, or its expiration removed with {@code bq update
+   * --time_partitioning_expiration 0}, for them to take effect.
+   */
+  public Table updateCssProductsTableLayout(Table table) {
+    if (!(table.getDefinition() instanceof StandardTableDefinition)) {
+      return table;
+    }
+    StandardTableDefinition tableDefinition = table.getDefinition();
+    TimePartitioning timePartitioning = getTransferDatePartitioning();
+    TimePartitioning currentTimePartitioning = tableDefinition.getTimePartitioning();
+    StandardTableDefinition.Builder updatedTableDefinition = tableDefinition.toBuilder();
+    boolean updated = false;
+
+    if (!isPartitionedAsConfigured(table)) {
+      logger.log(
+          Level.WARNING,
+          "Table {0} is partitioned by {1} but {2} partitioning on {3} is configured;"
+              + " recreate the table to change its partitioning.",
+          new Object[] {
+            table.getTableId().getTable(),
+            currentTimePartitioning,
+            timePartitioning.getType(),
+            timePartitioning.getField()
+          });
+    } else if (isExpirationUnremovable(table)) {
+      logger.log(
+          Level.WARNING,
+          "Partitions of table {0} expire after {1} ms but no expiration is configured; remove it"
+              + " with bq update --time_partitioning_expiration 0.",
+          new Object[] {table.getTableId().getTable(), currentTimePartitioning.getExpirationMs()});
+    } else if (!Objects.equals(
+        timePartitioning.getExpirationMs(), currentTimePartitioning.getExpirationMs())) {
+      updatedTableDefinition.setTimePartitioning(
+          currentTimePartitioning.toBuilder()
+              .setExpirationMs(timePartitioning.getExpirationMs())
+              .build());
+      updated = true;
+    }
+
+    List<String> currentClusteringFields =
+        (tableDefinition.getClustering() != null)
+            ? tableDefinition.getClustering().getFields()
+            : List.of();
+    if (!CLUSTERING_FIELDS.isEmpty() && !CLUSTERING_FIELDS.equals(currentClusteringFields)) {
+      updatedTableDefinition.setClustering(
+          Clustering.newBuilder().setFields(CLUSTERING_FIELDS).build());
+      updated = true;
+    }
+
+    if (!updated) {
+      return table;
+    }
+    logger.log(
+        Level.INFO,
+        "Updating partitioning and clustering of table {0}",
+        table.getTableId().getTable());
+    return getBigQuery().update(
+        TableInfo.newBuilder(table.getTableId(), updatedTableDefinition.build()).build());
+  }
+
+  private boolean isPartitionedAsConfigured(Table table) {
+    TimePartitioning timePartitioning = getTransferDatePartitioning();
+    TimePartitioning currentTimePartitioning =
+        ((StandardTableDefinition) table.getDefinition()).getTimePartitioning();
+    return currentTimePartitioning != null
+        && timePartitioning.getType().equals(currentTimePartitioning.getType())
+        && timePartitioning.getField().equals(currentTimePartitioning.getField());
+  }
+
+  // The client leaves unset fields out of table updates, so an expiration cannot be cleared.
+  private boolean isExpirationUnremovable(Table table) {
+    TimePartitioning currentTimePartitioning =
+        ((StandardTableDefinition) table.getDefinition()).getTimePartitioning();
+    return getTransferDatePartitioning().getExpirationMs() == null
+        && currentTimePartitioning != null
+        && currentTimePartitioning.getExpirationMs() != null;
+  }
+
+  /**
+   * Adds the fields of the schema that an existing table is missing, and relaxes the REQUIRED
+   * fields that the schema has as NULLABLE, without recreating the table. Other differences cannot
+   * be changed in place, so they only produce a warning and the table has to be recreated for rows
+   * with those fields to be written.
+   */
+  public Table updateTableSchema(Table table, Schema schema) {
+    if (!(table.getDefinition() instanceof StandardTableDefinition)) {
+      return table;
+    }
+    StandardTableDefinition tableDefinition = table.getDefinition();
+    SchemaDiff schemaDiff = SchemaDiff.of(tableDefinition.getSchema(), schema);
+    if (!schemaDiff.getIncompatibleFields().isEmpty()) {
+      logger.log(
+          Level.WARNING,
+          "Fields {0} of table {1} do not match the schema; recreate the table to change them.",
+          new Object[] {schemaDiff.getIncompatibleFields(), table.getTableId().getTable()});
+    }
+    if (!schemaDiff.hasChanges()) {
+      return table;
+    }
+    logger.log(
+        Level.INFO,
+        "Updating schema of table {0}, adding {1} and relaxing {2}",
+        new Object[] {
+          table.getTableId().getTable(), schemaDiff.getAddedFields(), schemaDiff.getRelaxedFields()
+        });
+    return getBigQuery().update(
+        TableInfo.newBuilder(
+                table.getTableId(),
+                tableDefinition.toBuilder().setSchema(schemaDiff.getMergedSchema()).build())
+            .build());
+  }
+
+  public Map<String, Object> getPriceAsMap(Price price) {
     return Map.of(
-        "amount_micros", String.valueOf(price.getAmountMicros()),
-        "currency_code", price.getCurrencyCode());
+        "amount_micros",
+        price.getAmountMicros(),
+        "currency_code",
+        stringDictionary.intern(price.getCurrencyCode()));
   }
 
   public Map<String, Object> getProductDimensionAsMap(ProductDimension productDimension) {
-    return Map.of("value", productDimension.getValue(), "unit", productDimension.getUnit());
+    return Map.of(
+        "value",
+        productDimension.getValue(),
+        "unit",
+        stringDictionary.intern(productDimension.getUnit()));
   }
 
-  public String getTimestampAsString(Timestamp timestamp) {
+  /**
+   * Returns the timestamp as microseconds since the epoch, which the Storage Write API takes for
+   * TIMESTAMP columns as is, or {@code null} if the timestamp is not set.
+   */
+  public Long getTimestampAsMicros(Timestamp timestamp) {
     if (timestamp == Timestamp.getDefaultInstance()) {
       return null;
     }
-    return Timestamps.toString(timestamp);
+    return Timestamps.toMicros(timestamp);
+  }
+
+  /** Returns the transfer date, taken to be in UTC, as microseconds since the epoch. */
+  public long getTransferDateAsMicros(LocalDateTime transferDate) {
+    return TimeUnit.SECONDS.toMicros(transferDate.toEpochSecond(ZoneOffset.UTC))
+        + TimeUnit.NANOSECONDS.toMicros(transferDate.getNano());
   }
 
   public Map<String, Object> getItemLevelIssueAsMap(ItemLevelIssue itemLevelIssue) {
     Map<String, Object> itemLevelIssueMap = new HashMap<String, Object>();
-    itemLevelIssueMap.put("code", itemLevelIssue.getCode());
-    itemLevelIssueMap.put("servability", itemLevelIssue.getServability());
+    itemLevelIssueMap.put("code", stringDictionary.intern(itemLevelIssue.getCode()));
+    itemLevelIssueMap.put("servability", stringDictionary.intern(itemLevelIssue.getServability()));
     itemLevelIssueMap.put("resolution", itemLevelIssue.getResolution());
     itemLevelIssueMap.put("attribute", itemLevelIssue.getAttribute());
-    itemLevelIssueMap.put("destination", itemLevelIssue.getDestination());
+    itemLevelIssueMap.put("destination", stringDictionary.intern(itemLevelIssue.getDestination()));
     itemLevelIssueMap.put("description", itemLevelIssue.getDescription());
     itemLevelIssueMap.put("detail", itemLevelIssue.getDetail());
     itemLevelIssueMap.put("documentation", itemLevelIssue.getDocumentation());
-    itemLevelIssueMap.put("applicable_countries", itemLevelIssue.getApplicableCountriesList());
+    itemLevelIssueMap.put(
+        "applicable_countries",
+        stringDictionary.internAll(itemLevelIssue.getApplicableCountriesList()));
     return itemLevelIssueMap;
   }
 
-  public Map<String, Object> getCssProductAsMap(CssProduct cssProduct, LocalDateTime transferDate) {
-    Attributes cssProductAttributes = cssProduct.getAttributes();
-
+  public Map<String, Object> getAttributesAsMap(Attributes cssProductAttributes) {
     List<Map<String, String>> productDetailsList =
         cssProductAttributes.getProductDetailsList().stream()
             .map(
@@ -161,7 +595,11 @@ public class BigQueryService {
             .collect(Collectors.toList());
     ProductWeight cssProductWeight = cssProductAttributes.getProductWeight();
     Map<String, Object> productWeightMap =
-        Map.of("value", cssProductWeight.getValue(), "unit", cssProductWeight.getUnit());
+        Map.of(
+            "value",
+            cssProductWeight.getValue(),
+            "unit",
+            stringDictionary.intern(cssProductWeight.getUnit()));
     List<Map<String, String>> certificationsList =
         cssProductAttributes.getCertificationsList().stream()
             .map(
@@ -197,7 +635,7 @@ public class BigQueryService {
     attributesMap.put("product_highlights", cssProductAttributes.getProductHighlightsList());
     attributesMap.put("certifications", certificationsList);
     attributesMap.put(
-        "expiration_date", getTimestampAsString(cssProductAttributes.getExpirationDate()));
+        "expiration_date", getTimestampAsMicros(cssProductAttributes.getExpirationDate()));
     attributesMap.put("included_destinations", cssProductAttributes.getIncludedDestinationsList());
     attributesMap.put("excluded_destinations", cssProductAttributes.getExcludedDestinationsList());
     attributesMap.put("cpp_link", cssProductAttributes.getCppLink());
@@ -216,7 +654,7 @@ public class BigQueryService {
     attributesMap.put("gtin", cssProductAttributes.getGtin());
     attributesMap.put("google_product_category", cssProductAttributes.getGoogleProductCategory());
     attributesMap.put("adult", cssProductAttributes.getAdult());
-    attributesMap.put("multipack", String.valueOf(cssProductAttributes.getMultipack()));
+    attributesMap.put("multipack", cssProductAttributes.getMultipack());
     attributesMap.put("is_bundle", cssProductAttributes.getIsBundle());
     attributesMap.put("age_group", cssProductAttributes.getAgeGroup());
     attributesMap.put("color", cssProductAttributes.getColor());
@@ -232,45 +670,149 @@ public class BigQueryService {
     attributesMap.put("custom_label_2", cssProductAttributes.getCustomLabel2());
     attributesMap.put("custom_label_3", cssProductAttributes.getCustomLabel3());
     attributesMap.put("custom_label_4", cssProductAttributes.getCustomLabel4());
+    return attributesMap;
+  }
 
-    CssProductStatus cssProductStatus = cssProduct.getCssProductStatus();
-    List<Map<String, Object>> destinationStatusList =
-        cssProductStatus.getDestinationStatusesList().stream()
-            .map(
-                destinationStatus ->
-                    Map.of(
-                        "destination",
-                        destinationStatus.getDestination(),
-                        "approved_countries",
-                        destinationStatus.getApprovedCountriesList(),
-                        "pending_countries",
-                        destinationStatus.getPendingCountriesList()))
-            .collect(Collectors.toList());
+  public Map<String, Object> getCssProductAsMap(CssProduct cssProduct, LocalDateTime transferDate) {
+    Map<String, Object> rowContent = new HashMap<String, Object>();
+    rowContent.put("transfer_date", getTransferDateAsMicros(transferDate));
+    rowContent.put("name", cssProduct.getName());
+    rowContent.put("raw_provided_id", cssProduct.getRawProvidedId());
+    rowContent.put("content_language", stringDictionary.intern(cssProduct.getContentLanguage()));
+    rowContent.put("feed_label", stringDictionary.intern(cssProduct.getFeedLabel()));
+    rowContent.put("attributes", getAttributesAsMap(cssProduct.getAttributes()));
+    rowContent.put(
+        "css_product_status", getCssProductStatusAsMap(cssProduct.getCssProductStatus()));
+    return rowContent;
+  }
+
+  public List<Map<String, Object>> getDestinationStatusesAsList(
+      CssProductStatus cssProductStatus) {
+    return cssProductStatus.getDestinationStatusesList().stream()
+        .map(
+            destinationStatus ->
+                Map.of(
+                    "destination",
+                    stringDictionary.intern(destinationStatus.getDestination()),
+                    "approved_countries",
+                    stringDictionary.internAll(destinationStatus.getApprovedCountriesList()),
+                    "pending_countries",
+                    stringDictionary.internAll(destinationStatus.getPendingCountriesList())))
+        .collect(Collectors.toList());
+  }
+
+  public Map<String, Object> getCssProductStatusAsMap(CssProductStatus cssProductStatus) {
     List<Map<String, Object>> itemLevelIssueList =
         cssProductStatus.getItemLevelIssuesList().stream()
             .map(itemLevelIssue -> getItemLevelIssueAsMap(itemLevelIssue))
             .collect(Collectors.toList());
     Map<String, Object> cssProductStatusMap = new HashMap<String, Object>();
-    cssProductStatusMap.put("destination_statuses", destinationStatusList);
+    cssProductStatusMap.put("destination_statuses", getDestinationStatusesAsList(cssProductStatus));
     cssProductStatusMap.put("item_level_issues", itemLevelIssueList);
     cssProductStatusMap.put(
-        "creation_date", getTimestampAsString(cssProductStatus.getCreationDate()));
+        "creation_date", getTimestampAsMicros(cssProductStatus.getCreationDate()));
     cssProductStatusMap.put(
-        "last_update_date", getTimestampAsString(cssProductStatus.getLastUpdateDate()));
+        "last_update_date", getTimestampAsMicros(cssProductStatus.getLastUpdateDate()));
     cssProductStatusMap.put(
-        "google_expiration_date", getTimestampAsString(cssProductStatus.getGoogleExpirationDate()));
+        "google_expiration_date", getTimestampAsMicros(cssProductStatus.getGoogleExpirationDate()));
+    return cssProductStatusMap;
+  }
+
+  public Map<String, Object> getCssProductStatusRowAsMap(
+      CssProduct cssProduct, LocalDateTime transferDate) {
+    Attributes cssProductAttributes = cssProduct.getAttributes();
+
+    Map<String, Object> attributesMap = new HashMap<String, Object>();
+    attributesMap.put("title", cssProductAttributes.getTitle());
+    attributesMap.put("brand", cssProductAttributes.getBrand());
+    attributesMap.put("gtin", cssProductAttributes.getGtin());
+    attributesMap.put("mpn", cssProductAttributes.getMpn());
+    attributesMap.put("item_group_id", cssProductAttributes.getItemGroupId());
+    attributesMap.put("google_product_category", cssProductAttributes.getGoogleProductCategory());
+    attributesMap.put("cpp_link", cssProductAttributes.getCppLink());
 
     Map<String, Object> rowContent = new HashMap<String, Object>();
-    rowContent.put("transfer_date", transferDate.toString());
+    rowContent.put("transfer_date", getTransferDateAsMicros(transferDate));
     rowContent.put("name", cssProduct.getName());
     rowContent.put("raw_provided_id", cssProduct.getRawProvidedId());
-    rowContent.put("content_language", cssProduct.getContentLanguage());
-    rowContent.put("feed_label", cssProduct.getFeedLabel());
+    rowContent.put("content_language", stringDictionary.intern(cssProduct.getContentLanguage()));
+    rowContent.put("feed_label", stringDictionary.intern(cssProduct.getFeedLabel()));
     rowContent.put("attributes", attributesMap);
-    rowContent.put("css_product_status", cssProductStatusMap);
+    rowContent.put(
+        "css_product_status", getCssProductStatusAsMap(cssProduct.getCssProductStatus()));
+    return rowContent;
+  }
+
+  public Map<String, Object> getRowAsMap(
+      CssProduct cssProduct, FetchProfile fetchProfile, LocalDateTime transferDate) {
+    return fetchProfile.isStatusOnly()
+        ? getCssProductStatusRowAsMap(cssProduct, transferDate)
+        : getCssProductAsMap(cssProduct, transferDate);
+  }
+
+  public long getAttributesHash(Attributes cssProductAttributes) {
+    return Hashing.farmHashFingerprint64().hashBytes(cssProductAttributes.toByteArray()).asLong();
+  }
+
+  public Map<String, Object> getCssProductStatusFactAsMap(
+      CssProduct cssProduct, long attributesHash, LocalDateTime transferDate) {
+    CssProductStatus cssProductStatus = cssProduct.getCssProductStatus();
+    Map<String, Object> rowContent = new HashMap<String, Object>();
+    rowContent.put("transfer_date", getTransferDateAsMicros(transferDate));
+    rowContent.put("name", cssProduct.getName());
+    rowContent.put("raw_provided_id", cssProduct.getRawProvidedId());
+    rowContent.put("content_language", stringDictionary.intern(cssProduct.getContentLanguage()));
+    rowContent.put("feed_label", stringDictionary.intern(cssProduct.getFeedLabel()));
+    rowContent.put("attributes_hash", attributesHash);
+    rowContent.put("item_level_issue_count", cssProductStatus.getItemLevelIssuesCount());
+    rowContent.put("destination_statuses", getDestinationStatusesAsList(cssProductStatus));
+    rowContent.put("creation_date", getTimestampAsMicros(cssProductStatus.getCreationDate()));
+    rowContent.put(
+        "last_update_date", getTimestampAsMicros(cssProductStatus.getLastUpdateDate()));
+    rowContent.put(
+        "google_expiration_date", getTimestampAsMicros(cssProductStatus.getGoogleExpirationDate()));
     return rowContent;
   }
 
+  public Map<String, Object> getCssProductIssueFactAsMap(
+      CssProduct cssProduct, ItemLevelIssue itemLevelIssue, LocalDateTime transferDate) {
+    Map<String, Object> rowContent = getItemLevelIssueAsMap(itemLevelIssue);
+    rowContent.put("transfer_date", getTransferDateAsMicros(transferDate));
+    rowContent.put("name", cssProduct.getName());
+    rowContent.put("content_language", stringDictionary.intern(cssProduct.getContentLanguage()));
+    rowContent.put("feed_label", stringDictionary.intern(cssProduct.getFeedLabel()));
+    return rowContent;
+  }
+
+  public Map<String, Object> getCssProductAttributesDimensionAsMap(
+      CssProduct cssProduct, long attributesHash, LocalDateTime transferDate) {
+    Map<String, Object> rowContent = new HashMap<String, Object>();
+    rowContent.put("transfer_date", getTransferDateAsMicros(transferDate));
+    rowContent.put("name", cssProduct.getName());
+    rowContent.put("attributes_hash", attributesHash);
+    rowContent.put("attributes", getAttributesAsMap(cssProduct.getAttributes()));
+    return rowContent;
+  }
+
+  /** Returns the most recently written attributes hash of every CSS Product. */
+  public Map<String, Long> getLatestAttributesHashes(String datasetName)
+      throws InterruptedException {
+    String query =
+        String.format(
+            "SELECT name, ARRAY_AGG(attributes_hash ORDER BY transfer_date DESC LIMIT 1)[OFFSET(0)]"
+                + " AS attributes_hash FROM `%s.%s.%s` GROUP BY name",
+            getServiceAccountCredentials().getProjectId(),
+            datasetName,
+            CSS_PRODUCT_ATTRIBUTES_TABLE_NAME);
+    TableResult result = getBigQuery().query(QueryJobConfiguration.newBuilder(query).build());
+    Map<String, Long> attributesHashes = new HashMap<String, Long>();
+    for (FieldValueList row : result.iterateAll()) {
+      attributesHashes.put(
+          row.get("name").getStringValue(), row.get("attributes_hash").getLongValue());
+    }
+    return attributesHashes;
+  }
+
   public Field getCssProductsAttributesField() {
     Field priceAmountMicros = Field.of("amount_micros", StandardSQLTypeName.INT64);
     Field priceCurrencyCode = Field.of("currency_code", StandardSQLTypeName.STRING);
@@ -377,39 +919,48 @@ public class BigQueryService {
         Field.of("custom_label_4", StandardSQLTypeName.STRING));
   }
 
+  public Field getDestinationStatusesField() {
+    return Field.newBuilder(
+            "destination_statuses",
+            StandardSQLTypeName.STRUCT,
+            Field.of("destination", StandardSQLTypeName.STRING),
+            Field.newBuilder("approved_countries", StandardSQLTypeName.STRING)
+                .setMode(Mode.REPEATED)
+                .build(),
+            Field.newBuilder("pending_countries", StandardSQLTypeName.STRING)
+                .setMode(Mode.REPEATED)
+                .build(),
+            Field.newBuilder("disapproved_countries", StandardSQLTypeName.STRING)
+                .setMode(Mode.REPEATED)
+                .build())
+        .setMode(Mode.REPEATED)
+        .build();
+  }
+
+  public List<Field> getItemLevelIssueFields() {
+    return List.of(
+        Field.of("code", StandardSQLTypeName.STRING),
+        Field.of("servability", StandardSQLTypeName.STRING),
+        Field.of("resolution", StandardSQLTypeName.STRING),
+        Field.of("attribute", StandardSQLTypeName.STRING),
+        Field.of("destination", StandardSQLTypeName.STRING),
+        Field.of("description", StandardSQLTypeName.STRING),
+        Field.of("detail", StandardSQLTypeName.STRING),
+        Field.of("documentation", StandardSQLTypeName.STRING),
+        Field.newBuilder("applicable_countries", StandardSQLTypeName.STRING)
+            .setMode(Mode.REPEATED)
+            .build());
+  }
+
   public Field getCssProductsCssProductStatusField() {
     return Field.of(
         "css_product_status",
         StandardSQLTypeName.STRUCT,
-        Field.newBuilder(
-                "destination_statuses",
-                StandardSQLTypeName.STRUCT,
-                Field.of("destination", StandardSQLTypeName.STRING),
-                Field.newBuilder("approved_countries", StandardSQLTypeName.STRING)
-                    .setMode(Mode.REPEATED)
-                    .build(),
-                Field.newBuilder("pending_countries", StandardSQLTypeName.STRING)
-                    .setMode(Mode.REPEATED)
-                    .build(),
-                Field.newBuilder("disapproved_countries", StandardSQLTypeName.STRING)
-                    .setMode(Mode.REPEATED)
-                    .build())
-            .setMode(Mode.REPEATED)
-            .build(),
+        getDestinationStatusesField(),
         Field.newBuilder(
                 "item_level_issues",
                 StandardSQLTypeName.STRUCT,
-                Field.of("code", StandardSQLTypeName.STRING),
-                Field.of("servability", StandardSQLTypeName.STRING),
-                Field.of("resolution", StandardSQLTypeName.STRING),
-                Field.of("attribute", StandardSQLTypeName.STRING),
-                Field.of("destination", StandardSQLTypeName.STRING),
-                Field.of("description", StandardSQLTypeName.STRING),
-                Field.of("detail", StandardSQLTypeName.STRING),
-                Field.of("documentation", StandardSQLTypeName.STRING),
-                Field.newBuilder("applicable_countries", StandardSQLTypeName.STRING)
-                    .setMode(Mode.REPEATED)
-                    .build())
+                getItemLevelIssueFields().toArray(new Field[0]))
             .setMode(Mode.REPEATED)
             .build(),
         Field.of("creation_date", StandardSQLTypeName.TIMESTAMP),
@@ -428,6 +979,216 @@ public class BigQueryService {
         getCssProductsCssProductStatusField());
   }
 
+  public Field getCssProductsStatusAttributesField() {
+    return Field.of(
+        "attributes",
+        StandardSQLTypeName.STRUCT,
+        Field.of("title", StandardSQLTypeName.STRING),
+        Field.of("brand", StandardSQLTypeName.STRING),
+        Field.of("gtin", StandardSQLTypeName.STRING),
+        Field.of("mpn", StandardSQLTypeName.STRING),
+        Field.of("item_group_id", StandardSQLTypeName.STRING),
+        Field.of("google_product_category", StandardSQLTypeName.STRING),
+        Field.of("cpp_link", StandardSQLTypeName.STRING));
+  }
+
+  public Schema getCssProductsStatusSchema() {
+    return Schema.of(
+        Field.of("transfer_date", StandardSQLTypeName.TIMESTAMP),
+        Field.of("name", StandardSQLTypeName.STRING),
+        Field.of("raw_provided_id", StandardSQLTypeName.STRING),
+        Field.of("content_language", StandardSQLTypeName.STRING),
+        Field.of("feed_label", StandardSQLTypeName.STRING),
+        getCssProductsStatusAttributesField(),
+        getCssProductsCssProductStatusField());
+  }
+
+  public Schema getCssProductStatusSchema() {
+    return Schema.of(
+        Field.of("transfer_date", StandardSQLTypeName.TIMESTAMP),
+        Field.of("name", StandardSQLTypeName.STRING),
+        Field.of("raw_provided_id", StandardSQLTypeName.STRING),
+        Field.of("content_language", StandardSQLTypeName.STRING),
+        Field.of("feed_label", StandardSQLTypeName.STRING),
+        Field.of("attributes_hash", StandardSQLTypeName.INT64),
+        Field.of("item_level_issue_count", StandardSQLTypeName.INT64),
+        getDestinationStatusesField(),
+        Field.of("creation_date", StandardSQLTypeName.TIMESTAMP),
+        Field.of("last_update_date", StandardSQLTypeName.TIMESTAMP),
+        Field.of("google_expiration_date", StandardSQLTypeName.TIMESTAMP));
+  }
+
+  public Schema getCssProductIssuesSchema() {
+    List<Field> fields = new ArrayList<Field>();
+    fields.add(Field.of("transfer_date", StandardSQLTypeName.TIMESTAMP));
+    fields.add(Field.of("name", StandardSQLTypeName.STRING));
+    fields.add(Field.of("content_language", StandardSQLTypeName.STRING));
+    fields.add(Field.of("feed_label", StandardSQLTypeName.STRING));
+    fields.addAll(getItemLevelIssueFields());
+    return Schema.of(fields);
+  }
+
+  public Schema getCssProductAttributesSchema() {
+    return Schema.of(
+        Field.of("transfer_date", StandardSQLTypeName.TIMESTAMP),
+        Field.of("name", StandardSQLTypeName.STRING),
+        Field.of("attributes_hash", StandardSQLTypeName.INT64),
+        getCssProductsAttributesField());
+  }
+
+  public Schema getTransferRunsSchema() {
+    return Schema.of(
+        Field.of("transfer_date", StandardSQLTypeName.TIMESTAMP),
+        Field.of("domain_id", StandardSQLTypeName.INT64),
+        Field.of("fetch_profile", StandardSQLTypeName.STRING),
+        Field.of("write_stream_type", StandardSQLTypeName.STRING),
+        Field.of("status", StandardSQLTypeName.STRING),
+        Field.of("error", StandardSQLTypeName.STRING),
+        Field.of("pages_fetched", StandardSQLTypeName.INT64),
+        Field.of("products_fetched", StandardSQLTypeName.INT64),
+        Field.of("products_converted", StandardSQLTypeName.INT64),
+        Field.of("rows_converted", StandardSQLTypeName.INT64),
+        Field.of("rows_appended", StandardSQLTypeName.INT64),
+        Field.of("rows_rejected", StandardSQLTypeName.INT64),
+        Field.of("estimated_bytes_sent", StandardSQLTypeName.INT64),
+        Field.of("batches_spilled", StandardSQLTypeName.INT64),
+        Field.of("fetch_seconds", StandardSQLTypeName.FLOAT64),
+        Field.of("convert_seconds", StandardSQLTypeName.FLOAT64),
+        Field.of("append_wait_seconds", StandardSQLTypeName.FLOAT64),
+        Field.of("total_seconds", StandardSQLTypeName.FLOAT64),
+        Field.of("peak_heap_bytes", StandardSQLTypeName.INT64));
+  }
+
+  public Schema getIssueRollupsSchema() {
+    return Schema.of(
+        Field.of("transfer_date", StandardSQLTypeName.TIMESTAMP),
+        Field.of("domain_id", StandardSQLTypeName.INT64),
+        Field.of("fetch_profile", StandardSQLTypeName.STRING),
+        Field.of("code", StandardSQLTypeName.STRING),
+        Field.of("servability", StandardSQLTypeName.STRING),
+        Field.of("destination", StandardSQLTypeName.STRING),
+        Field.of("country", StandardSQLTypeName.STRING),
+        Field.of("product_count", StandardSQLTypeName.INT64));
+  }
+
+  public Map<String, Object> getIssueRollupAsMap(
+      IssueRollup.Key key,
+      long productCount,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate) {
+    Map<String, Object> rowContent = new HashMap<String, Object>();
+    // Written through insertAll, which takes TIMESTAMP values as strings.
+    rowContent.put("transfer_date", transferDate.toString());
+    rowContent.put("domain_id", this.domainId.longValue());
+    rowContent.put("fetch_profile", fetchProfile.getName());
+    rowContent.put("code", key.code());
+    rowContent.put("servability", key.servability());
+    rowContent.put("destination", key.destination());
+    rowContent.put("country", key.country());
+    rowContent.put("product_count", productCount);
+    return rowContent;
+  }
+
+  /**
+   * Writes the issue counts of a transfer to the css_issue_rollups table. Like the transfer run,
+   * the rollups are not worth failing a transfer for, so errors are only printed.
+   */
+  public void recordIssueRollups(
+      String datasetName,
+      IssueRollup issueRollup,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate) {
+    Map<IssueRollup.Key, Long> productCounts = issueRollup.getProductCounts();
+    if (productCounts.isEmpty()) {
+      return;
+    }
+    try {
+      prepareTable(
+          datasetName,
+          CSS_ISSUE_ROLLUPS_TABLE_NAME,
+          getIssueRollupsSchema(),
+          () -> createIssueRollupsTable(datasetName));
+      TableId tableId = TableId.of(datasetName, CSS_ISSUE_ROLLUPS_TABLE_NAME);
+      List<Map.Entry<IssueRollup.Key, Long>> rollups =
+          new ArrayList<Map.Entry<IssueRollup.Key, Long>>(productCounts.entrySet());
+      for (int start = 0; start < rollups.size(); start += ISSUE_ROLLUPS_INSERT_BATCH_SIZE) {
+        InsertAllRequest.Builder request = InsertAllRequest.newBuilder(tableId);
+        for (Map.Entry<IssueRollup.Key, Long> rollup :
+            rollups.subList(
+                start, Math.min(start + ISSUE_ROLLUPS_INSERT_BATCH_SIZE, rollups.size()))) {
+          request.addRow(
+              getIssueRollupAsMap(rollup.getKey(), rollup.getValue(), fetchProfile, transferDate));
+        }
+        InsertAllResponse response = getBigQuery().insertAll(request.build());
+        if (response.hasErrors()) {
+          logger.log(
+              Level.WARNING,
+              "Failed to record the issue rollups: {0}",
+              response.getInsertErrors());
+          return;
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to record the issue rollups", e);
+    }
+  }
+
+  public Map<String, Object> getTransferRunAsMap(
+      TransferRunStats transferRunStats, FetchProfile fetchProfile, LocalDateTime transferDate) {
+    Throwable error = transferRunStats.getError();
+    Map<String, Object> rowContent = new HashMap<String, Object>();
+    // Written through insertAll, which takes TIMESTAMP values as strings.
+    rowContent.put("transfer_date", transferDate.toString());
+    rowContent.put("domain_id", this.domainId.longValue());
+    rowContent.put("fetch_profile", fetchProfile.getName());
+    rowContent.put("write_stream_type", this.writeStreamType.name());
+    rowContent.put("status", (error == null) ? "SUCCEEDED" : "FAILED");
+    rowContent.put("error", (error == null) ? null : error.toString());
+    rowContent.put("pages_fetched", transferRunStats.getPageCount());
+    rowContent.put("products_fetched", transferRunStats.getFetchedProductCount());
+    rowContent.put("products_converted", transferRunStats.getConvertedProductCount());
+    rowContent.put("rows_converted", transferRunStats.getConvertedRowCount());
+    rowContent.put("rows_appended", transferRunStats.getAppendedRowCount());
+    rowContent.put("rows_rejected", transferRunStats.getRejectedRowCount());
+    rowContent.put("estimated_bytes_sent", transferRunStats.getEstimatedBytesSent());
+    rowContent.put("batches_spilled", transferRunStats.getSpilledBatchCount());
+    rowContent.put("fetch_seconds", transferRunStats.getFetchSeconds());
+    rowContent.put("convert_seconds", transferRunStats.getConvertSeconds());
+    rowContent.put("append_wait_seconds", transferRunStats.getAppendWaitSeconds());
+    rowContent.put("total_seconds", transferRunStats.getTotalSeconds());
+    rowContent.put("peak_heap_bytes", TransferRunStats.getPeakHeapBytes());
+    return rowContent;
+  }
+
+  /**
+   * Writes the outcome of a transfer to the css_transfer_runs table. A transfer is not failed
+   * because its run could not be recorded, so errors are only printed.
+   */
+  public void recordTransferRun(
+      String datasetName,
+      TransferRunStats transferRunStats,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate) {
+    try {
+      prepareTable(
+          datasetName,
+          CSS_TRANSFER_RUNS_TABLE_NAME,
+          getTransferRunsSchema(),
+          () -> createTransferRunsTable(datasetName));
+      InsertAllResponse response =
+          getBigQuery().insertAll(
+              InsertAllRequest.newBuilder(TableId.of(datasetName, CSS_TRANSFER_RUNS_TABLE_NAME))
+                  .addRow(getTransferRunAsMap(transferRunStats, fetchProfile, transferDate))
+                  .build());
+      if (response.hasErrors()) {
+        logger.log(
+            Level.WARNING, "Failed to record the transfer run: {0}", response.getInsertErrors());
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to record the transfer run", e);
+    }
+  }
+
   public void streamCssProducts(
       String datasetName,
       String datasetLocation,
@@ -438,117 +1199,776 @@ public class BigQueryService {
           IOException,
           IllegalArgumentException,
           DescriptorValidationException {
+    streamCssProducts(datasetName, datasetLocation, cssProducts, FetchProfile.FULL, transferDate);
+  }
 
-    if (!datasetExists(datasetName)) createDataset(datasetName, datasetLocation);
-    if (!tableExists(datasetName, CSS_PRODUCTS_TABLE_NAME)) createCssProductsTable(datasetName);
+  public void streamCssProducts(
+      String datasetName,
+      String datasetLocation,
+      Iterable<CssProduct> cssProducts,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate)
+      throws InterruptedException,
+          ExecutionException,
+          IOException,
+          IllegalArgumentException,
+          DescriptorValidationException {
+    streamCssProducts(
+        datasetName,
+        datasetLocation,
+        new IterablePublisher<List<CssProduct>>(
+            Iterables.partition(cssProducts, INSERT_BATCH_SIZE)),
+        fetchProfile,
+        transferDate);
+  }
 
-    TableId tableId =
-        TableId.of(
-            this.serviceAccountCredentials.getProjectId(), datasetName, CSS_PRODUCTS_TABLE_NAME);
+  /**
+   * Streams pages of CSS Products into a single BigQuery dataset, see {@link
+   * #streamCssProducts(List, Flow.Publisher, FetchProfile, LocalDateTime)}.
+   *
+   * <p>Returns the name of the write stream used for each table. When the write stream type is
+   * PENDING the streams are finalized but not committed, see {@link #commitWriteStreams}.
+   */
+  public Map<String, String> streamCssProducts(
+      String datasetName,
+      String datasetLocation,
+      Flow.Publisher<List<CssProduct>> cssProductPages,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate)
+      throws InterruptedException,
+          ExecutionException,
+          IOException,
+          IllegalArgumentException,
+          DescriptorValidationException {
+    return streamCssProducts(
+            List.of(new DatasetSink(datasetName, datasetLocation)),
+            cssProductPages,
+            fetchProfile,
+            transferDate)
+        .get(datasetName);
+  }
 
-    BigQueryWriteClient writeClient = BigQueryWriteClient.create();
-    WriteStream writeStream = createWriteStream(writeClient, tableId);
-    JsonStreamWriter streamWriter =
-        JsonStreamWriter.newBuilder(
-                writeStream.getName(), writeStream.getTableSchema(), writeClient)
-            .build();
+  /**
+   * Streams pages of CSS Products into a single BigQuery dataset like {@link
+   * #streamCssProducts(String, String, Flow.Publisher, FetchProfile, LocalDateTime)}, but measures
+   * the transfer into the given stats and issue rollup instead of recording them in the
+   * css_transfer_runs and css_issue_rollups tables. The workers of a sharded transfer leave them to
+   * the coordinator, which records them once their streams are committed.
+   */
+  public Map<String, String> streamCssProducts(
+      String datasetName,
+      String datasetLocation,
+      Flow.Publisher<List<CssProduct>> cssProductPages,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate,
+      TransferRunStats transferRunStats,
+      IssueRollup issueRollup)
+      throws InterruptedException,
+          ExecutionException,
+          IOException,
+          IllegalArgumentException,
+          DescriptorValidationException {
+    return streamCssProducts(
+            List.of(new DatasetSink(datasetName, datasetLocation)),
+            cssProductPages,
+            fetchProfile,
+            transferDate,
+            transferRunStats,
+            issueRollup,
+            false)
+        .get(datasetName);
+  }
 
+  /**
+   * Streams pages of CSS Products into BigQuery. Pages are converted by a {@link
+   * CssProductRowsProcessor} and appended by a {@link TableWritersSubscriber}, which only requests
+   * more rows while it has append capacity, so the pages are pulled from the publisher no faster
+   * than BigQuery accepts them. When feedviz.spill.dir is set, a {@link SpillingRowBatchBuffer}
+   * spills the batches BigQuery has not caught up with to disk instead, so the listing is never
+   * held back.
+   *
+   * <p>The pages are retrieved and converted once for all the given datasets. Every dataset has its
+   * own write streams, {@link TableWritersSubscriber} and spill buffer, and the processor buffers
+   * up to feedviz.max.inflight.batches batches for each of them, so a dataset falling behind only
+   * holds back the others once its buffer is full. The first failure in any dataset stops the
+   * transfer into all of them.
+   *
+   * <p>Returns the name of the write stream used for each table, keyed by the name of its dataset.
+   * When the write stream type is PENDING the streams are finalized but not committed, see {@link
+   * #commitWriteStreams}.
+   *
+   * <p>Whether it succeeds or fails, the transfer is recorded in the css_transfer_runs table of
+   * every dataset. Once it has succeeded, its issue counts are recorded in the css_issue_rollups
+   * table of every dataset.
+   */
+  public Map<String, Map<String, String>> streamCssProducts(
+      List<DatasetSink> datasetSinks,
+      Flow.Publisher<List<CssProduct>> cssProductPages,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate)
+      throws InterruptedException,
+          ExecutionException,
+          IOException,
+          IllegalArgumentException,
+          DescriptorValidationException {
+    return streamCssProducts(
+        datasetSinks,
+        cssProductPages,
+        fetchProfile,
+        transferDate,
+        new TransferRunStats(),
+        new IssueRollup(),
+        true);
+  }
+
+  private Map<String, Map<String, String>> streamCssProducts(
+      List<DatasetSink> datasetSinks,
+      Flow.Publisher<List<CssProduct>> cssProductPages,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate,
+      TransferRunStats transferRunStats,
+      IssueRollup issueRollup,
+      boolean recordTransfer)
+      throws InterruptedException,
+          ExecutionException,
+          IOException,
+          IllegalArgumentException,
+          DescriptorValidationException {
+    if (datasetSinks.isEmpty()
+        || datasetSinks.stream().map(DatasetSink::datasetName).distinct().count()
+            != datasetSinks.size()) {
+      throw new IllegalArgumentException("Datasets must be given once each: " + datasetSinks);
+    }
+
+    // Identifies the log records of this transfer, which may be interleaved with those of others.
+    String runId = UUID.randomUUID().toString();
+    logger.log(
+        Level.INFO,
+        "Starting transfer",
+        LogFormatter.fields(
+            "run_id", runId,
+            "domain_id", this.domainId,
+            "datasets", datasetSinks.stream().map(DatasetSink::datasetName).toList(),
+            "fetch_profile", fetchProfile.getName()));
+
+    List<String> tableNames = getTransferTableNames(fetchProfile);
+    // Stops the listing, the conversion and the appends of this transfer on its first failure.
+    CancellationToken cancellationToken = new CancellationToken();
     ExecutorService executorService =
         Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    Function<List<CssProduct>, RowBatch> converter;
+    List<DatasetWriter> openedWriters;
+    boolean writersOpened = false;
+    try {
+      try {
+        converter = prepareDatasets(datasetSinks, fetchProfile, transferDate);
+        openedWriters =
+            openDatasetWriters(datasetSinks, tableNames, cancellationToken, executorService, runId);
+      } catch (RuntimeException e) {
+        if (this.metadataCache == null || !isNotFound(e)) {
+          throw e;
+        }
+        // A dataset or table deleted since it was cached is only found missing once it is used.
+        logger.log(
+            Level.WARNING,
+            "A cached dataset or table was not found, checking them again",
+            LogFormatter.fields("run_id", runId, "error", e.toString()));
+        for (DatasetSink datasetSink : datasetSinks) {
+          invalidateCachedMetadata(datasetSink.datasetName());
+        }
+        converter = prepareDatasets(datasetSinks, fetchProfile, transferDate);
+        openedWriters =
+            openDatasetWriters(datasetSinks, tableNames, cancellationToken, executorService, runId);
+      }
+      writersOpened = true;
+    } finally {
+      if (!writersOpened) {
+        executorService.shutdownNow();
+      }
+    }
+    List<DatasetWriter> datasetWriters = openedWriters;
+    ProgressReporter.Progress progress = null;
+    Throwable streamError;
+    try {
+      CssProductRowsProcessor rowsProcessor =
+          new CssProductRowsProcessor(
+              transferRunStats.trackConversion(issueRollup.trackConversion(converter)),
+              INSERT_BATCH_SIZE,
+              executorService,
+              MAX_INFLIGHT_BATCHES,
+              cancellationToken);
+      // The processor is only subscribed to once every dataset has its writer, as it starts
+      // delivering batches to its first subscriber right away.
+      for (DatasetWriter datasetWriter : datasetWriters) {
+        datasetWriter.subscribeTo(rowsProcessor);
+      }
+      if (this.progressReporter != null) {
+        progress =
+            this.progressReporter.start(
+                fetchProfile,
+                transferRunStats::getFetchedProductCount,
+                // A CSS Product is only appended once it has been appended to every dataset.
+                () ->
+                    datasetWriters.stream()
+                        .mapToLong(DatasetWriter::getAppendedProductCount)
+                        .min()
+                        .orElse(0),
+                () ->
+                    datasetWriters.stream()
+                        .mapToLong(DatasetWriter::getAcknowledgedRowCount)
+                        .sum(),
+                () -> datasetWriters.stream().mapToLong(DatasetWriter::getInFlightBytes).sum());
+      }
+      transferRunStats.trackPages(cssProductPages).subscribe(rowsProcessor);
+
+      CompletableFuture.allOf(
+              datasetWriters.stream()
+                  .map(datasetWriter -> datasetWriter.subscriber.getCompletion())
+                  .toArray(CompletableFuture[]::new))
+          .exceptionally(
+              ex -> {
+                cancellationToken.cancel((ex instanceof CompletionException) ? ex.getCause() : ex);
+                return null;
+              })
+          .join();
+      datasetWriters.forEach(datasetWriter -> datasetWriter.writeClient.close());
 
-    List<CompletableFuture<AppendRowsResponse>> futures = new ArrayList<>();
-    long offset = 0;
-    for (List<CssProduct> batch : Iterables.partition(cssProducts, INSERT_BATCH_SIZE)) {
-      List<Map<String, Object>> batchRows =
-          batch.stream().map(cssProduct -> getCssProductAsMap(cssProduct, transferDate)).toList();
-      JSONArray jsonArray = new JSONArray(batchRows);
-
-      // The offset is used to track the number of rows that have been written to the stream.
-      // The offset is used to ensure that the rows are written in the correct order.
-      final long currentOffset = offset;
-      CompletableFuture<AppendRowsResponse> future =
-          CompletableFuture.supplyAsync(
-              () -> {
-                try {
-                  ApiFuture<AppendRowsResponse> apiFuture =
-                      streamWriter.append(jsonArray, currentOffset);
-                  return apiFuture.get();
-                } catch (DescriptorValidationException
-                    | InterruptedException
-                    | ExecutionException
-                    | IOException e) {
-                  throw new CompletionException(e);
-                }
-              },
-              executorService);
-      futures.add(future);
-      offset += jsonArray.length();
-    }
-
-    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-        .thenRun(streamWriter::close)
-        .thenRun(writeClient::close)
-        .exceptionally(
-            ex -> {
-              synchronized (this.lock) {
-                this.error = ex;
-              }
-              return null;
-            })
-        .join();
-
-    executorService.shutdown();
-    synchronized (this.lock) {
-      if (this.error != null) {
-        throw new RuntimeException(this.error);
+      streamError = cancellationToken.getCause();
+      if (streamError != null) {
+        // Drops the deliveries still queued for the stopped stages.
+        executorService.shutdownNow();
+      } else {
+        executorService.shutdown();
       }
+    } finally {
+      // The dead letter files are closed even when the transfer stops before its end.
+      for (DatasetWriter datasetWriter : datasetWriters) {
+        datasetWriter.deadLetterFile.close();
+      }
+    }
+    for (DatasetWriter datasetWriter : datasetWriters) {
+      DeadLetterFile deadLetterFile = datasetWriter.deadLetterFile;
+      if (deadLetterFile.getRowCount() > 0) {
+        logger.log(
+            Level.WARNING,
+            "Rows were written to the dead letter file",
+            LogFormatter.fields(
+                "run_id", runId,
+                "dataset", datasetWriter.datasetName,
+                "rows", deadLetterFile.getRowCount(),
+                "path", deadLetterFile.getPath()));
+      }
+      if (datasetWriter.getSpilledBatchCount() > 0) {
+        logger.log(
+            Level.INFO,
+            "Batches were spilled to disk while BigQuery appends fell behind",
+            LogFormatter.fields(
+                "run_id", runId,
+                "dataset", datasetWriter.datasetName,
+                "batches", datasetWriter.getSpilledBatchCount()));
+      }
+    }
+    if (progress != null) {
+      progress.finish(streamError);
     }
+    logger.log(
+        (streamError != null) ? Level.SEVERE : Level.INFO,
+        (streamError != null) ? "Transfer failed" : "Transfer finished",
+        LogFormatter.fields(
+            "run_id", runId,
+            "domain_id", this.domainId,
+            "fetched_products", transferRunStats.getFetchedProductCount(),
+            "error", (streamError != null) ? streamError.toString() : null));
+    for (DatasetWriter datasetWriter : datasetWriters) {
+      transferRunStats.finish(
+          datasetWriter.getAcknowledgedRowCount(),
+          datasetWriter.deadLetterFile.getRowCount(),
+          datasetWriter.rowSizeGuard.getEstimatedBytes(),
+          datasetWriter.getSpilledBatchCount(),
+          streamError);
+      if (recordTransfer) {
+        recordTransferRun(datasetWriter.datasetName, transferRunStats, fetchProfile, transferDate);
+      }
+    }
+    if (streamError != null) {
+      throw new RuntimeException(streamError);
+    }
+
+    Map<String, Map<String, String>> writeStreamNames =
+        new LinkedHashMap<String, Map<String, String>>();
+    for (DatasetWriter datasetWriter : datasetWriters) {
+      if (recordTransfer) {
+        recordIssueRollups(datasetWriter.datasetName, issueRollup, fetchProfile, transferDate);
+      }
+      writeStreamNames.put(datasetWriter.datasetName, datasetWriter.getWriteStreamNames());
+    }
+    return writeStreamNames;
   }
 
-  private WriteStream createWriteStream(BigQueryWriteClient writeClient, TableId tableId) {
-    WriteStream stream = WriteStream.newBuilder().setType(WriteStream.Type.COMMITTED).build();
-    TableName parentTable =
-        TableName.of(tableId.getProject(), tableId.getDataset(), tableId.getTable());
-    CreateWriteStreamRequest createWriteStreamRequest =
-        CreateWriteStreamRequest.newBuilder()
-            .setParent(parentTable.toString())
-            .setWriteStream(stream)
-            .build();
-    return writeClient.createWriteStream(createWriteStreamRequest);
+  /** Returns the tables a transfer with the given fetch profile appends to. */
+  private List<String> getTransferTableNames(FetchProfile fetchProfile) {
+    if (this.normalizedTables && fetchProfile == FetchProfile.FULL) {
+      return List.of(
+          CSS_PRODUCT_STATUS_TABLE_NAME,
+          CSS_PRODUCT_ISSUES_TABLE_NAME,
+          CSS_PRODUCT_ATTRIBUTES_TABLE_NAME);
+    }
+    return List.of(getTableName(fetchProfile));
   }
 
-  public BigQueryService(AccountInfo accountInfo) throws IOException {
+  /**
+   * Creates any missing datasets and tables of a transfer and returns the converter of its pages
+   * into rows.
+   */
+  private Function<List<CssProduct>, RowBatch> prepareDatasets(
+      List<DatasetSink> datasetSinks, FetchProfile fetchProfile, LocalDateTime transferDate)
+      throws InterruptedException {
+    if (this.normalizedTables && fetchProfile == FetchProfile.FULL) {
+      // Attributes are only skipped when every dataset already has them.
+      Map<String, Long> attributesHashes = null;
+      for (DatasetSink datasetSink : datasetSinks) {
+        String datasetName = datasetSink.datasetName();
+        if (!datasetExists(datasetName)) createDataset(datasetName, datasetSink.datasetLocation());
+        Map<String, Long> datasetAttributesHashes = prepareNormalizedTables(datasetName);
+        if (attributesHashes == null) {
+          attributesHashes = datasetAttributesHashes;
+        } else {
+          attributesHashes
+              .entrySet()
+              .removeIf(
+                  entry -> !entry.getValue().equals(datasetAttributesHashes.get(entry.getKey())));
+        }
+      }
+      Map<String, Long> commonAttributesHashes = attributesHashes;
+      return batch -> getNormalizedRowBatch(batch, commonAttributesHashes, transferDate);
+    } else {
+      String tableName = getTableName(fetchProfile);
+      for (DatasetSink datasetSink : datasetSinks) {
+        String datasetName = datasetSink.datasetName();
+        if (!datasetExists(datasetName)) createDataset(datasetName, datasetSink.datasetLocation());
+        prepareCssProductsTable(datasetName, fetchProfile);
+      }
+      return batch ->
+          new RowBatch(
+              batch.size(),
+              Map.of(
+                  tableName,
+                  new JSONArray(
+                      batch.stream()
+                          .map(cssProduct -> getRowAsMap(cssProduct, fetchProfile, transferDate))
+                          .toList())));
+    }
+  }
+
+  /**
+   * Opens a writer for every dataset. If one of them fails to open, the writers opened so far are
+   * closed without finalizing their streams, as nothing has been appended to them yet.
+   */
+  private List<DatasetWriter> openDatasetWriters(
+      List<DatasetSink> datasetSinks,
+      List<String> tableNames,
+      CancellationToken cancellationToken,
+      ExecutorService executorService,
+      String runId)
+      throws IOException, DescriptorValidationException, InterruptedException {
+    List<DatasetWriter> datasetWriters = new ArrayList<DatasetWriter>();
+    try {
+      for (DatasetSink datasetSink : datasetSinks) {
+        datasetWriters.add(
+            new DatasetWriter(
+                datasetSink.datasetName(),
+                getDeadLetterPath(datasetSink.datasetName(), datasetSinks.size() > 1),
+                tableNames,
+                cancellationToken,
+                executorService,
+                runId));
+      }
+    } catch (Throwable e) {
+      datasetWriters.forEach(DatasetWriter::close);
+      throw e;
+    }
+    return datasetWriters;
+  }
 
-    this.serviceAccountCredentials =
-        (ServiceAccountCredentials) new Authenticator().authenticate(accountInfo);
-    BigQueryOptions bigQueryOptions =
-        BigQueryOptions.newBuilder().setCredentials(this.serviceAccountCredentials).build();
-    this.bigQuery = bigQueryOptions.getService();
+  /** Forgets everything the metadata cache remembers about the dataset and its tables. */
+  private void invalidateCachedMetadata(String datasetName) {
+    this.metadataCache.remove(getDatasetKey(datasetName));
+    this.metadataCache.removeWithPrefix(getTableKey(datasetName, ""));
   }
 
-  static class AppendRowsCompleteCallback implements ApiFutureCallback<AppendRowsResponse> {
-    private final BigQueryService parent;
+  /** Returns whether the failure, or any of its causes, reports a missing dataset or table. */
+  static boolean isNotFound(Throwable throwable) {
+    for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ApiException apiException
+          && apiException.getStatusCode().getCode() == StatusCode.Code.NOT_FOUND) {
+        return true;
+      }
+      if (cause instanceof BigQueryException bigQueryException
+          && bigQueryException.getCode() == 404) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-    AppendRowsCompleteCallback(BigQueryService parent) {
-      this.parent = parent;
+  /**
+   * Returns the dead letter file of the dataset. The dead letter qualifier and, when a transfer
+   * writes to several datasets, the dataset name are added to the file name, so that every process
+   * and dataset has its own file.
+   */
+  Path getDeadLetterPath(String datasetName, boolean severalDatasets) {
+    List<String> qualifiers = new ArrayList<String>();
+    if (deadLetterQualifier != null) {
+      qualifiers.add(deadLetterQualifier);
     }
+    if (severalDatasets) {
+      qualifiers.add(datasetName);
+    }
+    Path path = Path.of(DEAD_LETTER_FILE);
+    if (qualifiers.isEmpty()) {
+      return path;
+    }
+    String qualifier = String.join(".", qualifiers);
+    String fileName = path.getFileName().toString();
+    int extension = fileName.lastIndexOf('.');
+    return path.resolveSibling(
+        (extension > 0)
+            ? fileName.substring(0, extension) + "." + qualifier + fileName.substring(extension)
+            : fileName + "." + qualifier);
+  }
 
-    @Override
-    public void onFailure(Throwable throwable) {
-      synchronized (this.parent.lock) {
-        if (this.parent.error == null) {
-          StorageException storageException = Exceptions.toStorageException(throwable);
-          this.parent.error =
-              (storageException != null) ? storageException : new RuntimeException(throwable);
+  /** The write streams and subscriber appending the rows of a transfer to one dataset. */
+  private class DatasetWriter {
+    private final String datasetName;
+    private final BigQueryWriteClient writeClient;
+    private final DeadLetterFile deadLetterFile;
+    private final RowSizeGuard rowSizeGuard;
+    private final Map<String, TableStreamWriter> tableWriters =
+        new HashMap<String, TableStreamWriter>();
+    private final TableWritersSubscriber subscriber;
+    private final SpillingRowBatchBuffer spillBuffer;
+
+    DatasetWriter(
+        String datasetName,
+        Path deadLetterPath,
+        List<String> tableNames,
+        CancellationToken cancellationToken,
+        ExecutorService executorService,
+        String runId)
+        throws IOException, DescriptorValidationException, InterruptedException {
+      this.datasetName = datasetName;
+      this.writeClient = createWriteClient();
+      this.deadLetterFile = new DeadLetterFile(deadLetterPath, MAX_DEAD_LETTER_ROWS);
+      this.rowSizeGuard = new RowSizeGuard(MAX_APPEND_BYTES, OVERSIZED_ROW_POLICY, deadLetterFile);
+      try {
+        for (String tableName : tableNames) {
+          TableStreamWriter tableWriter =
+              new TableStreamWriter(
+                  writeClient,
+                  getTableId(datasetName, tableName),
+                  writeStreamType,
+                  rowSizeGuard,
+                  deadLetterFile,
+                  rateLimiter,
+                  executorService);
+          tableWriter.setLogFields(
+              LogFormatter.fields(
+                  "run_id", runId,
+                  "domain_id", domainId,
+                  "dataset", datasetName,
+                  "table", tableName));
+          tableWriters.put(tableName, tableWriter);
         }
+        this.subscriber =
+            new TableWritersSubscriber(tableWriters, MAX_INFLIGHT_BATCHES, cancellationToken);
+        this.spillBuffer =
+            (SPILL_DIR != null)
+                ? new SpillingRowBatchBuffer(
+                    Path.of(SPILL_DIR), SPILL_MEMORY_BATCHES, executorService)
+                : null;
+      } catch (Throwable e) {
+        close();
+        throw e;
+      }
+    }
+
+    /** Subscribes the writer to the converted rows, through its spill buffer if it has one. */
+    void subscribeTo(CssProductRowsProcessor rowsProcessor) {
+      if (spillBuffer != null) {
+        rowsProcessor.subscribe(spillBuffer);
+        spillBuffer.subscribe(subscriber);
+      } else {
+        rowsProcessor.subscribe(subscriber);
+      }
+    }
+
+    /**
+     * Releases the write client, the write streams and the spill directory of a writer that is
+     * abandoned before it was subscribed to.
+     */
+    void close() {
+      tableWriters.values().forEach(TableStreamWriter::close);
+      if (spillBuffer != null) {
+        spillBuffer.close();
       }
-      System.out.format("Error: %s\n", throwable.toString());
+      writeClient.close();
+    }
+
+    long getAppendedProductCount() {
+      return subscriber.getAppendedProductCount();
     }
 
-    @Override
-    public void onSuccess(AppendRowsResponse appendRowsResponse) {
-      System.out.format(
-          "Append %d success\n", appendRowsResponse.getAppendResult().getOffset().getValue());
+    long getSentRowCount() {
+      return tableWriters.values().stream().mapToLong(TableStreamWriter::getRowCount).sum();
+    }
+
+    long getAcknowledgedRowCount() {
+      return tableWriters.values().stream()
+          .mapToLong(TableStreamWriter::getAcknowledgedRowCount)
+          .sum();
+    }
+
+    long getInFlightBytes() {
+      return ProgressReporter.estimateInFlightBytes(
+          getSentRowCount(), getAcknowledgedRowCount(), rowSizeGuard.getEstimatedBytes());
+    }
+
+    long getSpilledBatchCount() {
+      return (spillBuffer != null) ? spillBuffer.getSpilledBatchCount() : 0;
+    }
+
+    Map<String, String> getWriteStreamNames() {
+      Map<String, String> writeStreamNames = new HashMap<String, String>();
+      for (Map.Entry<String, TableStreamWriter> tableWriter : tableWriters.entrySet()) {
+        writeStreamNames.put(tableWriter.getKey(), tableWriter.getValue().getStreamName());
+      }
+      return writeStreamNames;
+    }
+  }
+
+  /**
+   * Creates the dataset and the tables a transfer with the given fetch profile writes to, so that
+   * several workers can stream into them without racing to create them.
+   */
+  public void prepareCssProductsTables(
+      String datasetName, String datasetLocation, FetchProfile fetchProfile) {
+    if (!datasetExists(datasetName)) createDataset(datasetName, datasetLocation);
+
+    if (this.normalizedTables && fetchProfile == FetchProfile.FULL) {
+      prepareNormalizedTable(datasetName, CSS_PRODUCT_STATUS_TABLE_NAME);
+      prepareNormalizedTable(datasetName, CSS_PRODUCT_ISSUES_TABLE_NAME);
+      prepareNormalizedTable(datasetName, CSS_PRODUCT_ATTRIBUTES_TABLE_NAME);
+    } else {
+      prepareCssProductsTable(datasetName, fetchProfile);
     }
   }
+
+  /**
+   * Atomically commits the finalized PENDING write streams of each table, making their rows
+   * visible together. BigQuery commits the streams of each table separately, so the tables are
+   * committed one after the other.
+   */
+  public void commitWriteStreams(String datasetName, Map<String, List<String>> writeStreamNames)
+      throws IOException {
+    try (BigQueryWriteClient writeClient = createWriteClient()) {
+      for (Map.Entry<String, List<String>> tableStreams : writeStreamNames.entrySet()) {
+        TableId tableId = getTableId(datasetName, tableStreams.getKey());
+        BatchCommitWriteStreamsRequest commitRequest =
+            BatchCommitWriteStreamsRequest.newBuilder()
+                .setParent(
+                    TableName.of(tableId.getProject(), tableId.getDataset(), tableId.getTable())
+                        .toString())
+                .addAllWriteStreams(tableStreams.getValue())
+                .build();
+        BatchCommitWriteStreamsResponse commitResponse =
+            writeClient.batchCommitWriteStreams(commitRequest);
+        if (!commitResponse.hasCommitTime()) {
+          throw new RuntimeException(
+              String.format(
+                  "Failed to commit the write streams of table %s: %s",
+                  tableStreams.getKey(), commitResponse.getStreamErrorsList()));
+        }
+      }
+    }
+  }
+
+  private void prepareCssProductsTable(String datasetName, FetchProfile fetchProfile) {
+    // The layout and schema are part of the key, so changes to them are still applied to the table.
+    String layoutKey =
+        String.format(
+            "%s:layout:%s,%d,%s",
+            getSchemaKey(datasetName, getTableName(fetchProfile), getSchema(fetchProfile)),
+            PARTITION_TYPE,
+            PARTITION_EXPIRATION_DAYS,
+            CLUSTERING_FIELDS);
+    if (this.metadataCache != null && this.metadataCache.contains(layoutKey)) {
+      return;
+    }
+    Table table = getBigQuery().getTable(TableId.of(datasetName, getTableName(fetchProfile)));
+    boolean layoutApplied = true;
+    if (table == null) {
+      createCssProductsTable(datasetName, fetchProfile);
+    } else {
+      // Layouts that cannot be changed in place are checked again on every transfer, so that the
+      // warning is not silenced for the lifetime of the cache entry.
+      layoutApplied =
+          !(table.getDefinition() instanceof StandardTableDefinition)
+              || (isPartitionedAsConfigured(table) && !isExpirationUnremovable(table));
+      table = updateCssProductsTableLayout(table);
+      if (table != null) {
+        updateTableSchema(table, getSchema(fetchProfile));
+      }
+    }
+    if (layoutApplied) {
+      cacheExists(layoutKey);
+    }
+  }
+
+  /**
+   * Creates the table if it does not exist, and otherwise brings its schema in line with the given
+   * one. Returns whether the table already existed.
+   */
+  private boolean prepareTable(
+      String datasetName, String tableName, Schema schema, Runnable createTable) {
+    String schemaKey = getSchemaKey(datasetName, tableName, schema);
+    if (this.metadataCache != null && this.metadataCache.contains(schemaKey)) {
+      return true;
+    }
+    Table table = getBigQuery().getTable(TableId.of(datasetName, tableName));
+    if (table == null) {
+      createTable.run();
+    } else {
+      updateTableSchema(table, schema);
+    }
+    cacheExists(schemaKey);
+    return table != null;
+  }
+
+  /**
+   * Creates any missing normalized tables and returns the latest attributes hash of every CSS
+   * Product already in the css_product_attributes table.
+   */
+  private Map<String, Long> prepareNormalizedTables(String datasetName)
+      throws InterruptedException {
+    Map<String, Long> attributesHashes = new ConcurrentHashMap<String, Long>();
+    if (prepareNormalizedTable(datasetName, CSS_PRODUCT_ATTRIBUTES_TABLE_NAME)) {
+      attributesHashes.putAll(getLatestAttributesHashes(datasetName));
+    }
+    prepareNormalizedTable(datasetName, CSS_PRODUCT_STATUS_TABLE_NAME);
+    prepareNormalizedTable(datasetName, CSS_PRODUCT_ISSUES_TABLE_NAME);
+    return attributesHashes;
+  }
+
+  private boolean prepareNormalizedTable(String datasetName, String tableName) {
+    switch (tableName) {
+      case CSS_PRODUCT_STATUS_TABLE_NAME:
+        return prepareTable(
+            datasetName,
+            tableName,
+            getCssProductStatusSchema(),
+            () -> createCssProductStatusTable(datasetName));
+      case CSS_PRODUCT_ISSUES_TABLE_NAME:
+        return prepareTable(
+            datasetName,
+            tableName,
+            getCssProductIssuesSchema(),
+            () -> createCssProductIssuesTable(datasetName));
+      default:
+        return prepareTable(
+            datasetName,
+            tableName,
+            getCssProductAttributesSchema(),
+            () -> createCssProductAttributesTable(datasetName));
+    }
+  }
+
+  private RowBatch getNormalizedRowBatch(
+      List<CssProduct> batch, Map<String, Long> attributesHashes, LocalDateTime transferDate) {
+    JSONArray statusRows = new JSONArray();
+    JSONArray issueRows = new JSONArray();
+    JSONArray attributesRows = new JSONArray();
+    for (CssProduct cssProduct : batch) {
+      long attributesHash = getAttributesHash(cssProduct.getAttributes());
+      statusRows.put(getCssProductStatusFactAsMap(cssProduct, attributesHash, transferDate));
+      for (ItemLevelIssue itemLevelIssue :
+          cssProduct.getCssProductStatus().getItemLevelIssuesList()) {
+        issueRows.put(getCssProductIssueFactAsMap(cssProduct, itemLevelIssue, transferDate));
+      }
+      Long previousHash = attributesHashes.put(cssProduct.getName(), attributesHash);
+      if (previousHash == null || previousHash != attributesHash) {
+        attributesRows.put(
+            getCssProductAttributesDimensionAsMap(cssProduct, attributesHash, transferDate));
+      }
+    }
+    return new RowBatch(
+        batch.size(),
+        Map.of(
+            CSS_PRODUCT_STATUS_TABLE_NAME,
+            statusRows,
+            CSS_PRODUCT_ISSUES_TABLE_NAME,
+            issueRows,
+            CSS_PRODUCT_ATTRIBUTES_TABLE_NAME,
+            attributesRows));
+  }
+
+  private TableId getTableId(String datasetName, String tableName) {
+    return TableId.of(getServiceAccountCredentials().getProjectId(), datasetName, tableName);
+  }
+
+  // Creates a new write client every time it is called. Each dataset of a transfer gets its own
+  // client, which is closed once its streams are complete.
+  private BigQueryWriteClient createWriteClient() throws IOException {
+    if (this.transportProfile == TransportProfile.DEFAULT && this.writeEndpoint == null) {
+      return BigQueryWriteClient.create();
+    }
+    BigQueryWriteSettings.Builder writeSettings = BigQueryWriteSettings.newBuilder();
+    InstantiatingGrpcChannelProvider.Builder channelProvider =
+        this.transportProfile.configure(
+            BigQueryWriteSettings.defaultGrpcTransportProviderBuilder());
+    if (this.writeEndpoint != null) {
+      writeSettings.setEndpoint(this.writeEndpoint.getAuthority());
+      this.writeEndpoint.configure(channelProvider);
+      if (this.writeEndpoint.isPlaintext()) {
+        writeSettings.setCredentialsProvider(NoCredentialsProvider.create());
+      }
+    }
+    return BigQueryWriteClient.create(
+        writeSettings.setTransportChannelProvider(channelProvider.build()).build());
+  }
+
+  // The credentials and the BigQuery client are only created on first use, so runs that never reach
+  // BigQuery do not authenticate with it.
+  private synchronized ServiceAccountCredentials getServiceAccountCredentials() {
+    if (this.serviceAccountCredentials == null) {
+      try {
+        this.serviceAccountCredentials =
+            (ServiceAccountCredentials) new Authenticator().authenticate(this.accountInfo);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return this.serviceAccountCredentials;
+  }
+
+  private synchronized BigQuery getBigQuery() {
+    if (this.bigQuery == null) {
+      BigQueryOptions.Builder bigQueryOptions =
+          BigQueryOptions.newBuilder().setCredentials(getServiceAccountCredentials());
+      if (this.endpoint != null) {
+        bigQueryOptions.setHost(this.endpoint.getUrl());
+        if (this.endpoint.isPlaintext()) {
+          bigQueryOptions
+              .setCredentials(NoCredentials.getInstance())
+              .setProjectId(getServiceAccountCredentials().getProjectId());
+        }
+      }
+      this.bigQuery = bigQueryOptions.build().getService();
+    }
+    return this.bigQuery;
+  }
+
+  public BigQueryService(AccountInfo accountInfo) throws IOException {
+    this.accountInfo = accountInfo;
+    this.domainId = accountInfo.getDomainId();
+  }
 }
@@ -0,0 +1,117 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.common.collect.Lists;
+import com.google.cssfeedviz.utils.CancellationToken;
+import com.google.shopping.css.v1.CssProduct;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.Function;
+
+/**
+ * Converts pages of CSS Products into {@link RowBatch}es of at most {@code batchSize} products.
+ *
+ * <p>The next page is only requested once every batch of the current page has been accepted
+ * downstream, so a writer that runs out of append capacity holds back the CSS API listing. When
+ * the downstream subscriber cancels, the upstream subscription is cancelled as well.
+ *
+ * <p>A failed conversion cancels the {@link CancellationToken} of the transfer, and once it is
+ * cancelled, by this or any other stage, the upstream subscription is cancelled and the batches
+ * not yet delivered are dropped.
+ */
+public class CssProductRowsProcessor extends SubmissionPublisher<RowBatch>
+    implements Flow.Processor<List<CssProduct>, RowBatch> {
+  private final Function<List<CssProduct>, RowBatch> converter;
+  private final int batchSize;
+  private final CancellationToken cancellationToken;
+  private Flow.Subscription subscription;
+
+  public CssProductRowsProcessor(
+      Function<List<CssProduct>, RowBatch> converter,
+      int batchSize,
+      Executor executor,
+      int maxBufferCapacity) {
+    this(converter, batchSize, executor, maxBufferCapacity, new CancellationToken());
+  }
+
+  public CssProductRowsProcessor(
+      Function<List<CssProduct>, RowBatch> converter,
+      int batchSize,
+      Executor executor,
+      int maxBufferCapacity,
+      CancellationToken cancellationToken) {
+    super(executor, maxBufferCapacity);
+    this.converter = converter;
+    this.batchSize = batchSize;
+    this.cancellationToken = cancellationToken;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+    cancellationToken.onCancel(
+        () -> {
+          subscription.cancel();
+          closeExceptionally(cancellationToken.getCause());
+        });
+    subscription.request(1);
+  }
+
+  @Override
+  public void onNext(List<CssProduct> cssProducts) {
+    for (List<CssProduct> batch : Lists.partition(cssProducts, batchSize)) {
+      if (cancellationToken.isCancelled() || !hasSubscribers()) {
+        subscription.cancel();
+        return;
+      }
+      RowBatch rowBatch;
+      try {
+        rowBatch = converter.apply(batch);
+      } catch (RuntimeException e) {
+        cancellationToken.cancel(e);
+        subscription.cancel();
+        closeExceptionally(e);
+        return;
+      }
+      try {
+        // Blocks while the subscriber's buffer is full.
+        submit(rowBatch);
+      } catch (IllegalStateException e) {
+        // Closed by the cancellation of the transfer while waiting for buffer space.
+        subscription.cancel();
+        return;
+      }
+    }
+    if (!cancellationToken.isCancelled() && hasSubscribers()) {
+      subscription.request(1);
+    } else {
+      subscription.cancel();
+    }
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    cancellationToken.cancel(throwable);
+    closeExceptionally(throwable);
+  }
+
+  @Override
+  public void onComplete() {
+    close();
+  }
+}
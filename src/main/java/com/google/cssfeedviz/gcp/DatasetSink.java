@@ -0,0 +1,43 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.common.base.Splitter;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A BigQuery dataset that CSS Products are transferred to, with the location it is created in. */
+public record DatasetSink(String datasetName, String datasetLocation) {
+
+  /**
+   * Parses a comma separated list of datasets, each given as {@code name@location}, such as
+   * {@code css_feedviz_eu@EU,css_feedviz_us@US}.
+   */
+  public static List<DatasetSink> parseList(String sinks) {
+    List<DatasetSink> datasetSinks = new ArrayList<DatasetSink>();
+    for (String sink : Splitter.on(',').trimResults().omitEmptyStrings().split(sinks)) {
+      List<String> parts = Splitter.on('@').trimResults().splitToList(sink);
+      if (parts.size() != 2 || parts.get(0).isEmpty() || parts.get(1).isEmpty()) {
+        throw new IllegalArgumentException(
+            "Invalid dataset '" + sink + "', expected the form name@location");
+      }
+      datasetSinks.add(new DatasetSink(parts.get(0), parts.get(1)));
+    }
+    if (datasetSinks.isEmpty()) {
+      throw new IllegalArgumentException("No datasets given in '" + sinks + "'");
+    }
+    return datasetSinks;
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.json.JSONObject;
+
+/**
+ * A newline delimited JSON file of rows that could not be written to BigQuery, together with the
+ * table they were meant for and the reason they were rejected. Rows in the file can be fixed up
+ * and loaded separately without failing the rest of the transfer.
+ *
+ * <p>The file is only created once the first row is written, and every row is flushed as it is
+ * written, so rows rejected before a transfer is killed are not lost. Once more than {@code
+ * maxRowCount} rows have been rejected, further writes fail, as that points at a problem with the
+ * transfer rather than with individual CSS Products.
+ */
+public class DeadLetterFile implements Closeable {
+  private final Path path;
+  private final long maxRowCount;
+  private Writer writer;
+  private long rowCount = 0;
+
+  public DeadLetterFile(Path path) {
+    this(path, Long.MAX_VALUE);
+  }
+
+  public DeadLetterFile(Path path, long maxRowCount) {
+    this.path = path;
+    this.maxRowCount = maxRowCount;
+  }
+
+  /**
+   * Writes a rejected row to the file.
+   *
+   * @throws IllegalStateException if more than {@code maxRowCount} rows have been rejected
+   */
+  public synchronized void write(String tableName, String reason, Object row) throws IOException {
+    if (rowCount >= maxRowCount) {
+      throw new IllegalStateException(
+          String.format(
+              "More than %d rows were rejected, see %s for the rejected rows", maxRowCount, path));
+    }
+    if (writer == null) {
+      writer =
+          Files.newBufferedWriter(
+              path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+    JSONObject deadLetter = new JSONObject();
+    deadLetter.put("table", tableName);
+    deadLetter.put("reason", reason);
+    deadLetter.put("row", row);
+    writer.write(deadLetter.toString());
+    writer.write('\n');
+    writer.flush();
+    rowCount++;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public synchronized long getRowCount() {
+    return rowCount;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+    }
+  }
+}
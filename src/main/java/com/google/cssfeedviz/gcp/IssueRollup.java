@@ -0,0 +1,94 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.shopping.css.v1.CssProduct;
+import com.google.shopping.css.v1.CssProductStatus.ItemLevelIssue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Counts the CSS Products with each item level issue as they stream through BigQueryService, by
+ * issue code, servability, destination and country. Dashboards can then read the counts of a
+ * transfer from the small css_issue_rollups table, instead of unnesting the issues of every CSS
+ * Product in the snapshot.
+ *
+ * <p>The counts are updated on the thread converting the batches and read on the thread running
+ * the transfer, so each key has its own {@link LongAdder} in a concurrent map. The counts of other
+ * processes, such as the workers of a sharded transfer, are added with {@link #addProductCounts}.
+ */
+public class IssueRollup {
+  /** An issue applying to a country. Issues without applicable countries have a null country. */
+  public record Key(String code, String servability, String destination, String country) {}
+
+  private final Map<Key, LongAdder> productCounts = new ConcurrentHashMap<Key, LongAdder>();
+
+  /** Returns a converter that counts the issues of each batch before converting it. */
+  public Function<List<CssProduct>, RowBatch> trackConversion(
+      Function<List<CssProduct>, RowBatch> converter) {
+    return batch -> {
+      add(batch);
+      return converter.apply(batch);
+    };
+  }
+
+  public void add(List<CssProduct> cssProducts) {
+    for (CssProduct cssProduct : cssProducts) {
+      // A CSS Product is counted once per key, even if the issue is reported for several of its
+      // attributes.
+      Set<Key> keys = new HashSet<Key>();
+      for (ItemLevelIssue itemLevelIssue :
+          cssProduct.getCssProductStatus().getItemLevelIssuesList()) {
+        if (itemLevelIssue.getApplicableCountriesList().isEmpty()) {
+          keys.add(getKey(itemLevelIssue, null));
+        }
+        for (String country : itemLevelIssue.getApplicableCountriesList()) {
+          keys.add(getKey(itemLevelIssue, country));
+        }
+      }
+      for (Key key : keys) {
+        productCounts.computeIfAbsent(key, k -> new LongAdder()).increment();
+      }
+    }
+  }
+
+  /** Adds the product counts of another rollup, as returned by {@link #getProductCounts}. */
+  public void addProductCounts(Map<Key, Long> counts) {
+    counts.forEach(
+        (key, productCount) ->
+            productCounts.computeIfAbsent(key, k -> new LongAdder()).add(productCount));
+  }
+
+  /** Returns the number of CSS Products counted for each key so far. */
+  public Map<Key, Long> getProductCounts() {
+    Map<Key, Long> counts = new HashMap<Key, Long>();
+    productCounts.forEach((key, productCount) -> counts.put(key, productCount.sum()));
+    return counts;
+  }
+
+  private static Key getKey(ItemLevelIssue itemLevelIssue, String country) {
+    return new Key(
+        itemLevelIssue.getCode(),
+        itemLevelIssue.getServability(),
+        itemLevelIssue.getDestination(),
+        country);
+  }
+}
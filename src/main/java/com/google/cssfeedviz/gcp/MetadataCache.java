@@ -0,0 +1,139 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers which BigQuery datasets and tables are known to exist, and which schema and layout
+ * their tables were last brought in line with, so that later transfers can skip the metadata calls
+ * that check them. Entries are trusted for a limited time after they were last checked, in case
+ * the dataset or table has been changed or deleted since.
+ *
+ * <p>Entries do not depend on the CSS domain, so a single cache can be shared by the transfers of
+ * several domains into the same datasets. The cache is either kept in memory only, or persisted to
+ * a JSON file in the configuration directory to be shared with later transfers.
+ */
+public class MetadataCache {
+  private static final Logger logger = Logger.getLogger(MetadataCache.class.getName());
+  public static final String FILE_NAME = "bigquery-metadata.json";
+  private static final String ENTRIES_KEY = "entries";
+  public static final Duration DEFAULT_MAX_AGE = Duration.ofDays(1);
+
+  private final Path path;
+  private final Duration maxAge;
+  private final Map<String, Instant> checkTimes = new ConcurrentHashMap<String, Instant>();
+
+  private MetadataCache(Path path, Duration maxAge) {
+    this.path = path;
+    this.maxAge = maxAge;
+  }
+
+  /** Returns an empty cache that is only kept in memory. */
+  public static MetadataCache inMemory(Duration maxAge) {
+    return new MetadataCache(null, maxAge);
+  }
+
+  public static MetadataCache load(Path path) {
+    return load(path, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * Loads the cache from the given file. A missing or unreadable file results in an empty cache,
+   * which is written to the file as entries are added.
+   */
+  public static MetadataCache load(Path path, Duration maxAge) {
+    MetadataCache metadataCache = new MetadataCache(path, maxAge);
+    if (!Files.exists(path)) {
+      return metadataCache;
+    }
+    try {
+      JSONObject entries = new JSONObject(Files.readString(path)).getJSONObject(ENTRIES_KEY);
+      for (String key : entries.keySet()) {
+        metadataCache.checkTimes.put(key, Instant.ofEpochMilli(entries.getLong(key)));
+      }
+    } catch (IOException | JSONException e) {
+      logger.log(
+          Level.WARNING,
+          "Ignoring the unreadable metadata cache {0}: {1}",
+          new Object[] {path, e.getMessage()});
+    }
+    return metadataCache;
+  }
+
+  /** Returns the file the cache is persisted to, or {@code null} if it is only kept in memory. */
+  public Path getPath() {
+    return path;
+  }
+
+  public Duration getMaxAge() {
+    return maxAge;
+  }
+
+  /** Returns whether the key was recorded within the maximum age of the cache. */
+  public boolean contains(String key) {
+    Instant checkTime = checkTimes.get(key);
+    return checkTime != null && checkTime.plus(maxAge).isAfter(Instant.now());
+  }
+
+  /** Records that the key exists as of now. */
+  public void put(String key) {
+    checkTimes.put(key, Instant.now());
+    save();
+  }
+
+  public void remove(String key) {
+    if (checkTimes.remove(key) != null) {
+      save();
+    }
+  }
+
+  /** Removes every key starting with the prefix. */
+  public void removeWithPrefix(String prefix) {
+    if (checkTimes.keySet().removeIf(key -> key.startsWith(prefix))) {
+      save();
+    }
+  }
+
+  // The cache only saves metadata calls, so failing to write it does not fail the transfer.
+  private synchronized void save() {
+    if (path == null) {
+      return;
+    }
+    JSONObject entries = new JSONObject();
+    checkTimes.forEach((key, checkTime) -> entries.put(key, checkTime.toEpochMilli()));
+    try {
+      Path tempPath = Files.createTempFile(path.toAbsolutePath().getParent(), FILE_NAME, ".tmp");
+      Files.writeString(tempPath, new JSONObject().put(ENTRIES_KEY, entries).toString());
+      Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.log(
+          Level.WARNING,
+          "Failed to write the metadata cache {0}: {1}",
+          new Object[] {path, e.getMessage()});
+    }
+  }
+}
@@ -0,0 +1,284 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.cssfeedviz.css.FetchProfile;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reports the progress of long transfers at a fixed interval, either as a line on standard output
+ * or by rewriting a JSON status file. The progress is read from the counters the transfer keeps
+ * anyway, so reporting adds nothing to the listing, conversion and append threads.
+ *
+ * <p>The remaining time is estimated from the average rate at which CSS Products are appended and
+ * the expected number of CSS Products, which is either given or taken from the last successful
+ * transfer with the same fetch profile, as recorded in the state file.
+ */
+public class ProgressReporter {
+  private static final Logger logger = Logger.getLogger(ProgressReporter.class.getName());
+  public static final String STATE_FILE_NAME = "transfer-state.json";
+
+  private final Duration interval;
+  private final Path statusFile;
+  private final Path stateFile;
+  private final long expectedProductCount;
+
+  /**
+   * Creates a reporter that writes to the status file, or to standard output if it is {@code
+   * null}. A {@code null} state file disables recording the product count of the transfer, and an
+   * expected product count of 0 falls back to the recorded one.
+   */
+  public ProgressReporter(
+      Duration interval, Path statusFile, Path stateFile, long expectedProductCount) {
+    this.interval = interval;
+    this.statusFile = statusFile;
+    this.stateFile = stateFile;
+    this.expectedProductCount = expectedProductCount;
+  }
+
+  /** Starts reporting the progress of a transfer read from the given counters. */
+  public Progress start(
+      FetchProfile fetchProfile,
+      LongSupplier fetchedProductCount,
+      LongSupplier appendedProductCount,
+      LongSupplier appendedRowCount,
+      LongSupplier inFlightBytes) {
+    long expected =
+        (expectedProductCount > 0)
+            ? expectedProductCount
+            : loadProductCount(stateFile, fetchProfile);
+    Progress progress =
+        new Progress(
+            fetchProfile,
+            expected,
+            fetchedProductCount,
+            appendedProductCount,
+            appendedRowCount,
+            inFlightBytes);
+    progress.scheduler.scheduleAtFixedRate(
+        progress::report, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    return progress;
+  }
+
+  /**
+   * Estimates the size of the rows sent to BigQuery and not yet acknowledged, from the average
+   * size of the rows sent so far.
+   */
+  public static long estimateInFlightBytes(long sentRows, long acknowledgedRows, long sentBytes) {
+    if (sentRows <= 0) {
+      return 0;
+    }
+    return Math.max(0, sentRows - acknowledgedRows) * (sentBytes / sentRows);
+  }
+
+  /** Returns the number of CSS Products fetched by the last successful transfer, or 0. */
+  static long loadProductCount(Path stateFile, FetchProfile fetchProfile) {
+    if (stateFile == null || !Files.exists(stateFile)) {
+      return 0;
+    }
+    try {
+      return new JSONObject(Files.readString(stateFile)).optLong(fetchProfile.getName(), 0);
+    } catch (IOException | JSONException e) {
+      logger.log(
+          Level.WARNING,
+          "Ignoring the unreadable state file {0}: {1}",
+          new Object[] {stateFile, e.getMessage()});
+      return 0;
+    }
+  }
+
+  // The state only improves later estimates, so failing to write it does not fail the transfer.
+  static void saveProductCount(Path stateFile, FetchProfile fetchProfile, long productCount) {
+    JSONObject state = new JSONObject();
+    try {
+      if (Files.exists(stateFile)) {
+        state = new JSONObject(Files.readString(stateFile));
+      }
+    } catch (IOException | JSONException e) {
+      // Replaced by a new state file.
+    }
+    state.put(fetchProfile.getName(), productCount);
+    try {
+      writeAtomically(stateFile, state);
+    } catch (IOException e) {
+      logger.log(
+          Level.WARNING,
+          "Failed to write the state file {0}: {1}",
+          new Object[] {stateFile, e.getMessage()});
+    }
+  }
+
+  private static void writeAtomically(Path path, JSONObject content) throws IOException {
+    Path tempPath =
+        Files.createTempFile(
+            path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+    Files.writeString(tempPath, content.toString());
+    Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /** The progress of a single transfer. */
+  public class Progress {
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "progress-reporter");
+              thread.setDaemon(true);
+              return thread;
+            });
+    private final FetchProfile fetchProfile;
+    private final long expectedProductCount;
+    private final LongSupplier fetchedProductCount;
+    private final LongSupplier appendedProductCount;
+    private final LongSupplier appendedRowCount;
+    private final LongSupplier inFlightBytes;
+    private final long startNanos = System.nanoTime();
+    private long lastNanos = startNanos;
+    private long lastAppendedRowCount = 0;
+
+    private Progress(
+        FetchProfile fetchProfile,
+        long expectedProductCount,
+        LongSupplier fetchedProductCount,
+        LongSupplier appendedProductCount,
+        LongSupplier appendedRowCount,
+        LongSupplier inFlightBytes) {
+      this.fetchProfile = fetchProfile;
+      this.expectedProductCount = expectedProductCount;
+      this.fetchedProductCount = fetchedProductCount;
+      this.appendedProductCount = appendedProductCount;
+      this.appendedRowCount = appendedRowCount;
+      this.inFlightBytes = inFlightBytes;
+    }
+
+    public long getExpectedProductCount() {
+      return expectedProductCount;
+    }
+
+    /**
+     * Returns the status of the transfer as of the given time, with the current rate measured
+     * since the previous status.
+     */
+    synchronized JSONObject getStatus(String state, long nowNanos) {
+      long fetched = fetchedProductCount.getAsLong();
+      long appendedProducts = appendedProductCount.getAsLong();
+      long appendedRows = appendedRowCount.getAsLong();
+      double elapsedSeconds = (nowNanos - startNanos) / 1e9;
+      double sampleSeconds = (nowNanos - lastNanos) / 1e9;
+      double currentRowsPerSecond =
+          (sampleSeconds > 0) ? (appendedRows - lastAppendedRowCount) / sampleSeconds : 0;
+      double averageRowsPerSecond = (elapsedSeconds > 0) ? appendedRows / elapsedSeconds : 0;
+      lastNanos = nowNanos;
+      lastAppendedRowCount = appendedRows;
+
+      JSONObject status = new JSONObject();
+      status.put("state", state);
+      status.put("updated_at", Instant.now().toString());
+      status.put("fetch_profile", fetchProfile.getName());
+      status.put("elapsed_seconds", Math.round(elapsedSeconds));
+      status.put("products_fetched", fetched);
+      status.put("products_appended", appendedProducts);
+      status.put("rows_appended", appendedRows);
+      status.put("current_rows_per_second", Math.round(currentRowsPerSecond));
+      status.put("average_rows_per_second", Math.round(averageRowsPerSecond));
+      status.put("in_flight_bytes", inFlightBytes.getAsLong());
+      if (expectedProductCount > 0) {
+        status.put("expected_products", expectedProductCount);
+        double productsPerSecond = (elapsedSeconds > 0) ? appendedProducts / elapsedSeconds : 0;
+        if (state.equals("RUNNING") && productsPerSecond > 0) {
+          long remaining = Math.max(0, expectedProductCount - appendedProducts);
+          status.put("eta_seconds", Math.round(remaining / productsPerSecond));
+        }
+      }
+      return status;
+    }
+
+    private void report() {
+      write(getStatus("RUNNING", System.nanoTime()));
+    }
+
+    /**
+     * Stops reporting and reports the final status of the transfer, with the error it failed with
+     * or {@code null}. The number of CSS Products fetched by a successful transfer is recorded in
+     * the state file.
+     */
+    public void finish(Throwable error) {
+      scheduler.shutdownNow();
+      write(getStatus((error == null) ? "SUCCEEDED" : "FAILED", System.nanoTime()));
+      if (error == null && stateFile != null) {
+        saveProductCount(stateFile, fetchProfile, fetchedProductCount.getAsLong());
+      }
+    }
+
+    private void write(JSONObject status) {
+      if (statusFile == null) {
+        logger.info(formatStatus(status));
+        return;
+      }
+      try {
+        writeAtomically(statusFile, status);
+      } catch (IOException e) {
+        logger.log(
+            Level.WARNING,
+            "Failed to write the status file {0}: {1}",
+            new Object[] {statusFile, e.getMessage()});
+      }
+    }
+  }
+
+  /** Formats a status as a single line of progress. */
+  static String formatStatus(JSONObject status) {
+    StringBuilder line =
+        new StringBuilder(
+            String.format(
+                "Progress: %d CSS Products fetched, %d appended",
+                status.getLong("products_fetched"), status.getLong("products_appended")));
+    if (status.has("expected_products")) {
+      long expected = status.getLong("expected_products");
+      line.append(
+          String.format(
+              " of about %d (%.1f%%)",
+              expected, 100.0 * status.getLong("products_appended") / expected));
+    }
+    line.append(
+        String.format(
+            ", %d rows/s now, %d rows/s average, %d bytes in flight",
+            status.getLong("current_rows_per_second"),
+            status.getLong("average_rows_per_second"),
+            status.getLong("in_flight_bytes")));
+    if (status.has("eta_seconds")) {
+      long etaSeconds = status.getLong("eta_seconds");
+      line.append(
+          String.format(
+              ", ETA %d:%02d:%02d", etaSeconds / 3600, (etaSeconds / 60) % 60, etaSeconds % 60));
+    }
+    if (!status.getString("state").equals("RUNNING")) {
+      line.append(" (").append(status.getString("state").toLowerCase()).append(")");
+    }
+    return line.toString();
+  }
+}
@@ -0,0 +1,217 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Encodes {@link RowBatch}es for {@link SpillingRowBatchBuffer} segments.
+ *
+ * <p>Every value is written with a tag for its type, so a spilled batch is read back with the same
+ * value types it was converted with, such as an Integer or a Long, rather than the types a JSON
+ * parser would pick. Each distinct string of a batch, including the column names, is written once
+ * and referred to by its index afterwards, so the rows read back share their strings the way the
+ * converted rows did.
+ */
+class RowBatchCodec {
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte STRING_REFERENCE = 2;
+  private static final byte BOOLEAN = 3;
+  private static final byte INTEGER = 4;
+  private static final byte LONG = 5;
+  private static final byte DOUBLE = 6;
+  private static final byte FLOAT = 7;
+  private static final byte BIG_DECIMAL = 8;
+  private static final byte BIG_INTEGER = 9;
+  private static final byte OBJECT = 10;
+  private static final byte ARRAY = 11;
+
+  private RowBatchCodec() {}
+
+  static byte[] encode(RowBatch rowBatch) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+      output.writeInt(rowBatch.productCount());
+      output.writeInt(rowBatch.rows().size());
+      for (Map.Entry<String, JSONArray> tableRows : rowBatch.rows().entrySet()) {
+        writeString(output, tableRows.getKey(), stringIndexes);
+        writeValue(output, tableRows.getValue(), stringIndexes);
+      }
+    } catch (IOException e) {
+      // A ByteArrayOutputStream does not throw.
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  static RowBatch decode(byte[] bytes) throws IOException {
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      List<String> strings = new ArrayList<String>();
+      int productCount = input.readInt();
+      int tableCount = input.readInt();
+      Map<String, JSONArray> rows = new HashMap<String, JSONArray>();
+      for (int i = 0; i < tableCount; i++) {
+        String tableName = (String) readValue(input, strings);
+        rows.put(tableName, (JSONArray) readValue(input, strings));
+      }
+      return new RowBatch(productCount, rows);
+    }
+  }
+
+  private static void writeString(
+      DataOutputStream output, String value, Map<String, Integer> stringIndexes)
+      throws IOException {
+    Integer index = stringIndexes.get(value);
+    if (index != null) {
+      output.writeByte(STRING_REFERENCE);
+      output.writeInt(index);
+      return;
+    }
+    stringIndexes.put(value, stringIndexes.size());
+    byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+    output.writeByte(STRING);
+    output.writeInt(utf8.length);
+    output.write(utf8);
+  }
+
+  private static void writeValue(
+      DataOutputStream output, Object value, Map<String, Integer> stringIndexes)
+      throws IOException {
+    if (value == null || JSONObject.NULL.equals(value)) {
+      output.writeByte(NULL);
+    } else if (value instanceof String string) {
+      writeString(output, string, stringIndexes);
+    } else if (value instanceof Boolean booleanValue) {
+      output.writeByte(BOOLEAN);
+      output.writeBoolean(booleanValue);
+    } else if (value instanceof Integer integerValue) {
+      output.writeByte(INTEGER);
+      output.writeInt(integerValue);
+    } else if (value instanceof Long longValue) {
+      output.writeByte(LONG);
+      output.writeLong(longValue);
+    } else if (value instanceof Double doubleValue) {
+      output.writeByte(DOUBLE);
+      output.writeDouble(doubleValue);
+    } else if (value instanceof Float floatValue) {
+      output.writeByte(FLOAT);
+      output.writeFloat(floatValue);
+    } else if (value instanceof BigDecimal bigDecimal) {
+      output.writeByte(BIG_DECIMAL);
+      writeString(output, bigDecimal.toString(), stringIndexes);
+    } else if (value instanceof BigInteger bigInteger) {
+      output.writeByte(BIG_INTEGER);
+      writeString(output, bigInteger.toString(), stringIndexes);
+    } else if (value instanceof JSONObject jsonObject) {
+      writeObject(output, jsonObject.keySet(), jsonObject::opt, stringIndexes);
+    } else if (value instanceof Map<?, ?> map) {
+      writeObject(output, map.keySet(), map::get, stringIndexes);
+    } else if (value instanceof JSONArray jsonArray) {
+      output.writeByte(ARRAY);
+      output.writeInt(jsonArray.length());
+      for (int i = 0; i < jsonArray.length(); i++) {
+        writeValue(output, jsonArray.opt(i), stringIndexes);
+      }
+    } else if (value instanceof Collection<?> collection) {
+      output.writeByte(ARRAY);
+      output.writeInt(collection.size());
+      for (Object element : collection) {
+        writeValue(output, element, stringIndexes);
+      }
+    } else {
+      throw new IllegalArgumentException(
+          "Cannot spill a value of type " + value.getClass().getName());
+    }
+  }
+
+  private static <K> void writeObject(
+      DataOutputStream output,
+      Collection<K> keys,
+      Function<K, Object> values,
+      Map<String, Integer> stringIndexes)
+      throws IOException {
+    output.writeByte(OBJECT);
+    output.writeInt(keys.size());
+    for (K key : keys) {
+      writeString(output, key.toString(), stringIndexes);
+      writeValue(output, values.apply(key), stringIndexes);
+    }
+  }
+
+  private static Object readValue(DataInputStream input, List<String> strings)
+      throws IOException {
+    byte tag = input.readByte();
+    switch (tag) {
+      case NULL:
+        return JSONObject.NULL;
+      case STRING:
+        byte[] utf8 = new byte[input.readInt()];
+        input.readFully(utf8);
+        String string = new String(utf8, StandardCharsets.UTF_8);
+        strings.add(string);
+        return string;
+      case STRING_REFERENCE:
+        return strings.get(input.readInt());
+      case BOOLEAN:
+        return input.readBoolean();
+      case INTEGER:
+        return input.readInt();
+      case LONG:
+        return input.readLong();
+      case DOUBLE:
+        return input.readDouble();
+      case FLOAT:
+        return input.readFloat();
+      case BIG_DECIMAL:
+        return new BigDecimal((String) readValue(input, strings));
+      case BIG_INTEGER:
+        return new BigInteger((String) readValue(input, strings));
+      case OBJECT:
+        int fieldCount = input.readInt();
+        JSONObject jsonObject = new JSONObject();
+        for (int i = 0; i < fieldCount; i++) {
+          String key = (String) readValue(input, strings);
+          jsonObject.put(key, readValue(input, strings));
+        }
+        return jsonObject;
+      case ARRAY:
+        int length = input.readInt();
+        JSONArray jsonArray = new JSONArray();
+        for (int i = 0; i < length; i++) {
+          jsonArray.put(readValue(input, strings));
+        }
+        return jsonArray;
+      default:
+        throw new IOException("Unknown value tag " + tag + " in spilled batch");
+    }
+  }
+}
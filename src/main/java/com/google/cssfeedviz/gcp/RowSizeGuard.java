@@ -0,0 +1,245 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.common.base.Utf8;
+import com.google.cssfeedviz.utils.LogFormatter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Keeps AppendRows requests under the request size limit of the Storage Write API.
+ *
+ * <p>The serialized size of each row is estimated from its field names and values, without
+ * serializing it. Batches over the limit are split in halves until every part fits, and rows that
+ * are too large on their own are handled according to the {@link OversizedRowPolicy}.
+ */
+public class RowSizeGuard {
+  private static final Logger logger = Logger.getLogger(RowSizeGuard.class.getName());
+
+  // AppendRows requests are limited to 10MB, the remainder is left for the request overhead.
+  public static final long DEFAULT_MAX_REQUEST_BYTES = 8L * 1024 * 1024;
+  // Approximates the tag and length prefix protobuf encodes every field and row with.
+  private static final int FIELD_OVERHEAD_BYTES = 4;
+  private static final String TRUNCATED_SUFFIX = "...";
+
+  /** What happens to a single row that is larger than the request size limit. */
+  public enum OversizedRowPolicy {
+    /** Fails the transfer. */
+    FAIL,
+    /** Shortens the longest string values of the row until it fits. */
+    TRUNCATE,
+    /** Writes the row to the dead letter file instead of BigQuery. */
+    DEAD_LETTER;
+
+    public static OversizedRowPolicy fromName(String name) {
+      return valueOf(name.toUpperCase().replace('-', '_'));
+    }
+  }
+
+  private final long maxRequestBytes;
+  private final OversizedRowPolicy oversizedRowPolicy;
+  private final DeadLetterFile deadLetterFile;
+  private final LongAdder estimatedBytes = new LongAdder();
+
+  public RowSizeGuard(
+      long maxRequestBytes, OversizedRowPolicy oversizedRowPolicy, DeadLetterFile deadLetterFile) {
+    if (oversizedRowPolicy == OversizedRowPolicy.DEAD_LETTER && deadLetterFile == null) {
+      throw new IllegalArgumentException("The dead-letter policy requires a dead letter file");
+    }
+    this.maxRequestBytes = maxRequestBytes;
+    this.oversizedRowPolicy = oversizedRowPolicy;
+    this.deadLetterFile = deadLetterFile;
+  }
+
+  /**
+   * Splits the rows into consecutive parts that each fit into a single AppendRows request. Rows
+   * keep their order, apart from oversized rows that are diverted to the dead letter file.
+   *
+   * @throws IllegalStateException if a row is oversized and the policy is {@link
+   *     OversizedRowPolicy#FAIL}
+   */
+  public List<JSONArray> split(String tableName, JSONArray rows) {
+    long[] rowSizes = new long[rows.length()];
+    long totalSize = 0;
+    for (int i = 0; i < rows.length(); i++) {
+      rowSizes[i] = estimateSize(rows.get(i)) + FIELD_OVERHEAD_BYTES;
+      totalSize += rowSizes[i];
+    }
+    estimatedBytes.add(totalSize);
+    List<JSONArray> parts = new ArrayList<JSONArray>();
+    if (totalSize <= maxRequestBytes) {
+      parts.add(rows);
+    } else {
+      split(tableName, rows, rowSizes, 0, rows.length(), totalSize, parts);
+    }
+    return parts;
+  }
+
+  private void split(
+      String tableName,
+      JSONArray rows,
+      long[] rowSizes,
+      int start,
+      int end,
+      long size,
+      List<JSONArray> parts) {
+    if (size <= maxRequestBytes) {
+      JSONArray part = new JSONArray();
+      for (int i = start; i < end; i++) {
+        part.put(rows.get(i));
+      }
+      parts.add(part);
+    } else if (end - start == 1) {
+      Object row = guardOversizedRow(tableName, rows.get(start), rowSizes[start]);
+      if (row != null) {
+        parts.add(new JSONArray().put(row));
+      }
+    } else {
+      int middle = (start + end) >>> 1;
+      long firstHalfSize = 0;
+      for (int i = start; i < middle; i++) {
+        firstHalfSize += rowSizes[i];
+      }
+      split(tableName, rows, rowSizes, start, middle, firstHalfSize, parts);
+      split(tableName, rows, rowSizes, middle, end, size - firstHalfSize, parts);
+    }
+  }
+
+  // Returns the row to append, or null if it has been diverted.
+  private Object guardOversizedRow(String tableName, Object row, long rowSize) {
+    String reason =
+        String.format(
+            "Row of about %d bytes exceeds the %d byte request limit", rowSize, maxRequestBytes);
+    switch (oversizedRowPolicy) {
+      case TRUNCATE:
+        // Truncates a copy, as the same rows may be appended to several datasets at once.
+        if (row instanceof JSONObject jsonRow) {
+          JSONObject truncatedRow = new JSONObject(jsonRow.toString());
+          if (truncate(truncatedRow)) {
+            logger.log(
+                Level.WARNING,
+                reason + ", truncated it",
+                LogFormatter.fields("table", tableName, "row_bytes", rowSize));
+            return truncatedRow;
+          }
+        }
+        throw new IllegalStateException(reason + " and cannot be truncated");
+      case DEAD_LETTER:
+        try {
+          deadLetterFile.write(tableName, reason, row);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return null;
+      default:
+        throw new IllegalStateException(reason);
+    }
+  }
+
+  /** Truncates the longest string values of the row until it fits. */
+  boolean truncate(JSONObject row) {
+    long excess = estimateSize(row) + FIELD_OVERHEAD_BYTES - maxRequestBytes;
+    while (excess > 0) {
+      LongestString longest = new LongestString();
+      longest.find(row, null, null);
+      if (longest.length <= TRUNCATED_SUFFIX.length()) {
+        return false;
+      }
+      String value = longest.get();
+      // Cutting at least the excess in characters removes at least the excess in UTF-8 bytes.
+      int cut = (int) Math.max(0, value.length() - excess - TRUNCATED_SUFFIX.length());
+      if (cut > 0 && Character.isHighSurrogate(value.charAt(cut - 1))) {
+        cut--;
+      }
+      longest.set(value.substring(0, cut) + TRUNCATED_SUFFIX);
+      excess = estimateSize(row) + FIELD_OVERHEAD_BYTES - maxRequestBytes;
+    }
+    return true;
+  }
+
+  /** Returns the estimated size of all the rows passed to {@link #split} so far. */
+  public long getEstimatedBytes() {
+    return estimatedBytes.sum();
+  }
+
+  /** Estimates the number of bytes the value takes up in an AppendRows request. */
+  public long estimateSize(Object value) {
+    if (value instanceof String string) {
+      return Utf8.encodedLength(string) + FIELD_OVERHEAD_BYTES;
+    } else if (value instanceof JSONObject jsonObject) {
+      long size = FIELD_OVERHEAD_BYTES;
+      for (String key : jsonObject.keySet()) {
+        size += estimateSize(jsonObject.opt(key));
+      }
+      return size;
+    } else if (value instanceof JSONArray jsonArray) {
+      long size = 0;
+      for (int i = 0; i < jsonArray.length(); i++) {
+        size += estimateSize(jsonArray.opt(i));
+      }
+      return size;
+    } else if (value == null || value == JSONObject.NULL) {
+      return 0;
+    }
+    return Utf8.encodedLength(value.toString()) + FIELD_OVERHEAD_BYTES;
+  }
+
+  /** Locates the longest string value within a row. */
+  private static class LongestString {
+    private Object parent;
+    private Object key;
+    private int length = -1;
+
+    void find(Object value, Object valueParent, Object valueKey) {
+      if (value instanceof String string) {
+        if (string.length() > length) {
+          parent = valueParent;
+          key = valueKey;
+          length = string.length();
+        }
+      } else if (value instanceof JSONObject jsonObject) {
+        for (String childKey : jsonObject.keySet()) {
+          find(jsonObject.opt(childKey), jsonObject, childKey);
+        }
+      } else if (value instanceof JSONArray jsonArray) {
+        for (int i = 0; i < jsonArray.length(); i++) {
+          find(jsonArray.opt(i), jsonArray, i);
+        }
+      }
+    }
+
+    String get() {
+      return (parent instanceof JSONObject jsonObject)
+          ? jsonObject.getString((String) key)
+          : ((JSONArray) parent).getString((Integer) key);
+    }
+
+    void set(String value) {
+      if (parent instanceof JSONObject jsonObject) {
+        jsonObject.put((String) key, value);
+      } else {
+        ((JSONArray) parent).put((Integer) key, value);
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.Field.Mode;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.Schema;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The differences between the schema of an existing table and the schema a transfer writes to it.
+ * BigQuery lets a table gain NULLABLE and REPEATED fields, including fields nested in records, and
+ * relax REQUIRED fields to NULLABLE without recreating it. These changes make up the merged
+ * schema. Any other difference, such as a changed type, is incompatible and the existing field is
+ * kept as it is. Fields the table has but the written schema lacks are kept too.
+ */
+public class SchemaDiff {
+  private final List<String> addedFields = new ArrayList<String>();
+  private final List<String> relaxedFields = new ArrayList<String>();
+  private final List<String> incompatibleFields = new ArrayList<String>();
+  private final Schema mergedSchema;
+
+  private SchemaDiff(Schema currentSchema, Schema desiredSchema) {
+    this.mergedSchema = Schema.of(merge("", currentSchema.getFields(), desiredSchema.getFields()));
+  }
+
+  public static SchemaDiff of(Schema currentSchema, Schema desiredSchema) {
+    return new SchemaDiff(currentSchema, desiredSchema);
+  }
+
+  /** Returns whether the table has to be updated to the merged schema. */
+  public boolean hasChanges() {
+    return !addedFields.isEmpty() || !relaxedFields.isEmpty();
+  }
+
+  public Schema getMergedSchema() {
+    return mergedSchema;
+  }
+
+  /** Returns the paths of the fields the merged schema adds, such as {@code attributes.size}. */
+  public List<String> getAddedFields() {
+    return addedFields;
+  }
+
+  public List<String> getRelaxedFields() {
+    return relaxedFields;
+  }
+
+  /** Returns the fields that cannot be changed in place, along with the reason. */
+  public List<String> getIncompatibleFields() {
+    return incompatibleFields;
+  }
+
+  private List<Field> merge(String prefix, FieldList currentFields, FieldList desiredFields) {
+    List<Field> mergedFields = new ArrayList<Field>();
+    for (Field currentField : currentFields) {
+      Field desiredField = find(desiredFields, currentField.getName());
+      mergedFields.add(
+          (desiredField == null) ? currentField : mergeField(prefix, currentField, desiredField));
+    }
+    // New fields can only be added after the existing ones.
+    for (Field desiredField : desiredFields) {
+      if (find(currentFields, desiredField.getName()) != null) {
+        continue;
+      }
+      String path = prefix + desiredField.getName();
+      if (getMode(desiredField) == Mode.REQUIRED) {
+        incompatibleFields.add(path + " (REQUIRED fields cannot be added)");
+      } else {
+        addedFields.add(path);
+        mergedFields.add(desiredField);
+      }
+    }
+    return mergedFields;
+  }
+
+  private Field mergeField(String prefix, Field currentField, Field desiredField) {
+    String path = prefix + currentField.getName();
+    if (!currentField.getType().equals(desiredField.getType())) {
+      incompatibleFields.add(
+          String.format("%s (%s, not %s)", path, currentField.getType(), desiredField.getType()));
+      return currentField;
+    }
+
+    Field.Builder mergedField = currentField.toBuilder();
+    Mode currentMode = getMode(currentField);
+    Mode desiredMode = getMode(desiredField);
+    if (currentMode == Mode.REQUIRED && desiredMode == Mode.NULLABLE) {
+      mergedField.setMode(Mode.NULLABLE);
+      relaxedFields.add(path);
+    } else if (currentMode != desiredMode) {
+      incompatibleFields.add(String.format("%s (%s, not %s)", path, currentMode, desiredMode));
+    }
+
+    if (currentField.getSubFields() != null && desiredField.getSubFields() != null) {
+      mergedField.setType(
+          currentField.getType(),
+          FieldList.of(
+              merge(path + ".", currentField.getSubFields(), desiredField.getSubFields())));
+    }
+    return mergedField.build();
+  }
+
+  // BigQuery field names are case insensitive.
+  private static Field find(FieldList fields, String name) {
+    for (Field field : fields) {
+      if (field.getName().equalsIgnoreCase(name)) {
+        return field;
+      }
+    }
+    return null;
+  }
+
+  private static Mode getMode(Field field) {
+    return (field.getMode() == null) ? Mode.NULLABLE : field.getMode();
+  }
+}
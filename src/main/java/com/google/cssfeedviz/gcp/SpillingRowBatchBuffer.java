@@ -0,0 +1,309 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Buffers {@link RowBatch}es between the {@link CssProductRowsProcessor} and the {@link
+ * TableWritersSubscriber} without ever holding back the CSS API listing.
+ *
+ * <p>Up to {@code maxInMemoryBatches} batches are held in memory. Any further batches are spilled
+ * to append-only segment files of length-prefixed records, encoded by {@link RowBatchCodec}, and
+ * are replayed from disk once the writers request them. Batches are always delivered in the order
+ * they were received, so once a batch has been spilled every following batch is spilled as well
+ * until the disk is drained.
+ */
+public class SpillingRowBatchBuffer implements Flow.Processor<RowBatch, RowBatch> {
+  private static final Logger logger = Logger.getLogger(SpillingRowBatchBuffer.class.getName());
+  private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+  private final int maxInMemoryBatches;
+  private final long segmentSize;
+  private final Path segmentDir;
+  private final Executor executor;
+  private final AtomicLong demand = new AtomicLong();
+  private final AtomicInteger pendingDrains = new AtomicInteger();
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private final ArrayDeque<RowBatch> inMemoryBatches = new ArrayDeque<RowBatch>();
+
+  @GuardedBy("lock")
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+  @GuardedBy("lock")
+  private long spilledBatches = 0;
+
+  @GuardedBy("lock")
+  private long totalSpilledBatches = 0;
+
+  @GuardedBy("lock")
+  private int segmentCount = 0;
+
+  private Flow.Subscription upstream;
+  private Flow.Subscriber<? super RowBatch> downstream;
+  private volatile boolean upstreamDone = false;
+  private volatile Throwable error = null;
+  private volatile boolean cancelled = false;
+  private boolean terminated = false;
+
+  public SpillingRowBatchBuffer(Path spillDir, int maxInMemoryBatches, Executor executor)
+      throws IOException {
+    this(spillDir, maxInMemoryBatches, DEFAULT_SEGMENT_SIZE, executor);
+  }
+
+  public SpillingRowBatchBuffer(
+      Path spillDir, int maxInMemoryBatches, long segmentSize, Executor executor)
+      throws IOException {
+    this.maxInMemoryBatches = maxInMemoryBatches;
+    this.segmentSize = segmentSize;
+    this.executor = executor;
+    Files.createDirectories(spillDir);
+    this.segmentDir = Files.createTempDirectory(spillDir, "spill-");
+  }
+
+  /** Returns the number of batches that have been spilled to disk so far. */
+  public long getSpilledBatchCount() {
+    synchronized (lock) {
+      return totalSpilledBatches;
+    }
+  }
+
+  /** Deletes the spill directory of a buffer that is abandoned before it was subscribed to. */
+  public void close() {
+    deleteSegments();
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super RowBatch> subscriber) {
+    this.downstream = subscriber;
+    subscriber.onSubscribe(
+        new Flow.Subscription() {
+          @Override
+          public void request(long n) {
+            if (n <= 0) {
+              onError(new IllegalArgumentException("Subscribers must request a positive number"));
+              return;
+            }
+            demand.getAndAccumulate(
+                n, (current, added) -> (current + added < 0) ? Long.MAX_VALUE : current + added);
+            drain();
+          }
+
+          @Override
+          public void cancel() {
+            cancelled = true;
+            if (upstream != null) {
+              upstream.cancel();
+            }
+            drain();
+          }
+        });
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.upstream = subscription;
+    // Batches are accepted as fast as they are produced, the disk absorbs what memory cannot.
+    subscription.request(Long.MAX_VALUE);
+  }
+
+  @Override
+  public void onNext(RowBatch rowBatch) {
+    synchronized (lock) {
+      if (spilledBatches == 0 && inMemoryBatches.size() < maxInMemoryBatches) {
+        inMemoryBatches.add(rowBatch);
+      } else {
+        try {
+          spill(rowBatch);
+        } catch (IOException e) {
+          upstream.cancel();
+          error = e;
+        }
+      }
+    }
+    drain();
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    error = throwable;
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    upstreamDone = true;
+    drain();
+  }
+
+  private void drain() {
+    if (pendingDrains.getAndIncrement() == 0) {
+      executor.execute(this::drainLoop);
+    }
+  }
+
+  // Only one drain runs at a time, so the downstream subscriber is never called concurrently.
+  private void drainLoop() {
+    int missed = 1;
+    do {
+      if (terminated) {
+        return;
+      }
+      try {
+        while (!cancelled && error == null && demand.get() > 0) {
+          RowBatch next = poll();
+          if (next == null) {
+            break;
+          }
+          downstream.onNext(next);
+          demand.decrementAndGet();
+        }
+      } catch (IOException e) {
+        upstream.cancel();
+        error = e;
+      }
+      if (cancelled || error != null || (upstreamDone && isEmpty())) {
+        terminated = true;
+        deleteSegments();
+        if (cancelled) {
+          return;
+        } else if (error != null) {
+          downstream.onError(error);
+        } else {
+          downstream.onComplete();
+        }
+        return;
+      }
+      missed = pendingDrains.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private boolean isEmpty() {
+    synchronized (lock) {
+      return inMemoryBatches.isEmpty() && spilledBatches == 0;
+    }
+  }
+
+  // Batches in memory are always older than those on disk.
+  private RowBatch poll() throws IOException {
+    synchronized (lock) {
+      if (!inMemoryBatches.isEmpty()) {
+        return inMemoryBatches.poll();
+      }
+      if (spilledBatches == 0) {
+        return null;
+      }
+      Segment segment = segments.peek();
+      while (segment.readPosition == segment.writePosition) {
+        segments.poll().delete();
+        segment = segments.peek();
+      }
+      spilledBatches--;
+      return RowBatchCodec.decode(segment.read());
+    }
+  }
+
+  @GuardedBy("lock")
+  private void spill(RowBatch rowBatch) throws IOException {
+    Segment segment = segments.peekLast();
+    if (segment == null || segment.writePosition >= segmentSize) {
+      segment =
+          new Segment(segmentDir.resolve(String.format("segment-%06d", segmentCount++)));
+      segments.add(segment);
+    }
+    segment.append(RowBatchCodec.encode(rowBatch));
+    spilledBatches++;
+    totalSpilledBatches++;
+  }
+
+  private void deleteSegments() {
+    synchronized (lock) {
+      inMemoryBatches.clear();
+      try {
+        for (Segment segment : segments) {
+          segment.delete();
+        }
+        segments.clear();
+        Files.deleteIfExists(segmentDir);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to delete spill segments in " + segmentDir, e);
+      }
+    }
+  }
+
+  /** An append-only file of records, each prefixed by its length. */
+  private static class Segment {
+    private final Path path;
+    private final FileChannel channel;
+    private long writePosition = 0;
+    private long readPosition = 0;
+
+    Segment(Path path) throws IOException {
+      this.path = path;
+      this.channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+    }
+
+    void append(byte[] record) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + record.length);
+      buffer.putInt(record.length).put(record).flip();
+      while (buffer.hasRemaining()) {
+        writePosition += channel.write(buffer, writePosition);
+      }
+    }
+
+    byte[] read() throws IOException {
+      ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+      readFully(lengthBuffer);
+      ByteBuffer recordBuffer = ByteBuffer.allocate(lengthBuffer.flip().getInt());
+      readFully(recordBuffer);
+      return recordBuffer.array();
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, readPosition);
+        if (read < 0) {
+          throw new IOException("Unexpected end of spill segment " + path);
+        }
+        readPosition += read;
+      }
+    }
+
+    void delete() throws IOException {
+      channel.close();
+      Files.deleteIfExists(path);
+    }
+  }
+}
@@ -0,0 +1,422 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.Exceptions.AppendSerializationError;
+import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.cssfeedviz.utils.AdaptiveRateLimiter;
+import com.google.cssfeedviz.utils.LogFormatter;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
+import org.json.JSONArray;
+
+/**
+ * Appends batches of rows to a single BigQuery table through a write stream. Rows appended to a
+ * COMMITTED stream are visible as soon as they are acknowledged, while a PENDING stream is
+ * finalized on completion and its rows only become visible once the stream is committed.
+ *
+ * <p>When a dead letter file is given, rows rejected by BigQuery are written to it and the valid
+ * rows of their append are sent again, instead of failing the transfer.
+ *
+ * <p>When a rate limiter is given, every append waits for it, and appends rejected for exceeding
+ * the Storage Write API quota are sent again at the lowered rate.
+ *
+ * <p>Once {@link #cancel} has been called, no further rows are sent and the appends still waiting
+ * for a response are failed right away.
+ */
+public class TableStreamWriter {
+  private static final Logger logger = Logger.getLogger(TableStreamWriter.class.getName());
+  private static final int MAX_THROTTLED_ATTEMPTS = 5;
+
+  private final BigQueryWriteClient writeClient;
+  private final TableId tableId;
+  private final WriteStream writeStream;
+  private final RowSizeGuard rowSizeGuard;
+  private final DeadLetterFile deadLetterFile;
+  private final AdaptiveRateLimiter rateLimiter;
+  private final JsonStreamWriter streamWriter;
+  private final Executor executor;
+  // Only the appends that have not completed yet are kept, so that long transfers do not retain
+  // every response. The first failure is kept for complete() instead.
+  private final Set<CompletableFuture<AppendRowsResponse>> pendingFutures =
+      ConcurrentHashMap.newKeySet();
+  private final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+  private final Object lock = new Object();
+  private final LongAdder acknowledgedRowCount = new LongAdder();
+  private volatile Throwable cancellationCause = null;
+  private Map<String, Object> logFields = Map.of();
+
+  @GuardedBy("lock")
+  private long offset = 0;
+
+  // Incremented whenever the offset is rewound, which invalidates every append sent before.
+  @GuardedBy("lock")
+  private int generation = 0;
+
+  public TableStreamWriter(BigQueryWriteClient writeClient, TableId tableId, Executor executor)
+      throws IOException, DescriptorValidationException, InterruptedException {
+    this(writeClient, tableId, WriteStream.Type.COMMITTED, executor);
+  }
+
+  public TableStreamWriter(
+      BigQueryWriteClient writeClient,
+      TableId tableId,
+      WriteStream.Type writeStreamType,
+      Executor executor)
+      throws IOException, DescriptorValidationException, InterruptedException {
+    this(
+        writeClient,
+        tableId,
+        writeStreamType,
+        new RowSizeGuard(
+            RowSizeGuard.DEFAULT_MAX_REQUEST_BYTES, RowSizeGuard.OversizedRowPolicy.FAIL, null),
+        null,
+        null,
+        executor);
+  }
+
+  public TableStreamWriter(
+      BigQueryWriteClient writeClient,
+      TableId tableId,
+      WriteStream.Type writeStreamType,
+      RowSizeGuard rowSizeGuard,
+      DeadLetterFile deadLetterFile,
+      AdaptiveRateLimiter rateLimiter,
+      Executor executor)
+      throws IOException, DescriptorValidationException, InterruptedException {
+    this.writeClient = writeClient;
+    this.tableId = tableId;
+    this.rowSizeGuard = rowSizeGuard;
+    this.deadLetterFile = deadLetterFile;
+    this.rateLimiter = rateLimiter;
+    this.writeStream = createWriteStream(writeClient, tableId, writeStreamType);
+    // Without an explicit table schema, the writer looks up the schema of the stream itself, and
+    // refreshes its descriptor on the same connection when fields are added to the table.
+    this.streamWriter = JsonStreamWriter.newBuilder(writeStream.getName(), writeClient).build();
+    // Responses arrive in offset order, and their callbacks have to be handled in the same order
+    // for failed appends to be detected before the appends they invalidate.
+    this.executor = MoreExecutors.newSequentialExecutor(executor);
+  }
+
+  /**
+   * Sets the fields added to the log records of this writer, such as the run the appends belong to.
+   * Every append is logged at {@link Level#FINE} with its offset, row count and estimated size.
+   */
+  public void setLogFields(Map<String, Object> logFields) {
+    this.logFields = logFields;
+  }
+
+  /**
+   * Appends the rows at the next offset of the stream. Appends are issued in the order this method
+   * is called, and the returned future completes once BigQuery has acknowledged the rows.
+   *
+   * <p>Rows that do not fit into a single AppendRows request are split across several requests by
+   * the {@link RowSizeGuard}, and the future completes once all of them have been acknowledged.
+   */
+  public CompletableFuture<AppendRowsResponse> append(JSONArray rows) {
+    if (rows.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    List<JSONArray> parts;
+    try {
+      parts = rowSizeGuard.split(tableId.getTable(), rows);
+    } catch (RuntimeException e) {
+      CompletableFuture<AppendRowsResponse> future = CompletableFuture.failedFuture(e);
+      track(future);
+      return future;
+    }
+    List<CompletableFuture<AppendRowsResponse>> partFutures =
+        new ArrayList<CompletableFuture<AppendRowsResponse>>();
+    // Waiting for the rate limiter while holding the lock would also hold back the resends of
+    // failed appends, so the permits of every part are acquired first.
+    if (rateLimiter != null && !parts.isEmpty()) {
+      rateLimiter.acquire(parts.size());
+    }
+    synchronized (lock) {
+      for (JSONArray part : parts) {
+        CompletableFuture<AppendRowsResponse> partFuture = new CompletableFuture<>();
+        track(partFuture);
+        partFutures.add(partFuture);
+        send(part, partFuture, 1);
+      }
+    }
+    if (partFutures.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    } else if (partFutures.size() == 1) {
+      return partFutures.get(0);
+    }
+    CompletableFuture<AppendRowsResponse> lastPartFuture = partFutures.get(partFutures.size() - 1);
+    return CompletableFuture.allOf(partFutures.toArray(new CompletableFuture[0]))
+        .thenCompose(result -> lastPartFuture);
+  }
+
+  private void track(CompletableFuture<AppendRowsResponse> future) {
+    pendingFutures.add(future);
+    future.whenComplete(
+        (appendRowsResponse, throwable) -> {
+          if (throwable != null) {
+            firstFailure.compareAndSet(null, throwable);
+          }
+          pendingFutures.remove(future);
+        });
+  }
+
+  // Appends the rows at the next offset, with a permit of the rate limiter the caller has acquired
+  // before taking the lock. Rows the client fails to serialize are rejected right away, before
+  // anything has been sent, so the permit is kept for the remaining rows.
+  @GuardedBy("lock")
+  private void send(JSONArray rows, CompletableFuture<AppendRowsResponse> future, int attempt) {
+    while (!rows.isEmpty()) {
+      if (cancellationCause != null) {
+        future.completeExceptionally(cancellationCause);
+        return;
+      }
+      final long currentOffset = offset;
+      final int currentGeneration = generation;
+      ApiFuture<AppendRowsResponse> apiFuture;
+      try {
+        apiFuture = streamWriter.append(rows, currentOffset);
+      } catch (AppendSerializationError e) {
+        try {
+          rows = rejectRows(rows, e);
+        } catch (RuntimeException | IOException rejectException) {
+          future.completeExceptionally(rejectException);
+          return;
+        }
+        continue;
+      } catch (DescriptorValidationException | IOException e) {
+        future.completeExceptionally(e);
+        return;
+      }
+
+      // The offset is used to track the number of rows that have been written to the stream.
+      // The offset is used to ensure that the rows are written in the correct order.
+      offset += rows.length();
+      final JSONArray sentRows = rows;
+      // Estimating the size walks every row, so it is skipped unless the records are logged.
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(
+            Level.FINE,
+            "Append sent",
+            getLogFields(
+                "offset", currentOffset,
+                "rows", sentRows.length(),
+                "batch_bytes", rowSizeGuard.estimateSize(sentRows),
+                "attempt", attempt));
+      }
+      ApiFutures.addCallback(
+          apiFuture,
+          new ApiFutureCallback<AppendRowsResponse>() {
+            @Override
+            public void onFailure(Throwable throwable) {
+              onAppendFailure(
+                  sentRows, currentOffset, currentGeneration, attempt, throwable, future);
+            }
+
+            @Override
+            public void onSuccess(AppendRowsResponse appendRowsResponse) {
+              if (rateLimiter != null) {
+                rateLimiter.onSuccess();
+              }
+              acknowledgedRowCount.add(sentRows.length());
+              future.complete(appendRowsResponse);
+            }
+          },
+          executor);
+      return;
+    }
+    future.complete(null);
+  }
+
+  private void onAppendFailure(
+      JSONArray rows,
+      long failedOffset,
+      int failedGeneration,
+      int attempt,
+      Throwable throwable,
+      CompletableFuture<AppendRowsResponse> future) {
+    boolean throttled =
+        rateLimiter != null
+            && AdaptiveRateLimiter.isThrottled(throwable)
+            && attempt < MAX_THROTTLED_ATTEMPTS;
+    if (rateLimiter != null) {
+      if (throttled) {
+        rateLimiter.onThrottled();
+      }
+      // Most failures send the rows again, so the permit for that is acquired before taking the
+      // lock. It is left unused when the append fails for good.
+      rateLimiter.acquire();
+    }
+    synchronized (lock) {
+      if (failedGeneration < generation) {
+        // Sent before an earlier append was rejected, so it failed on its offset. Send it again.
+        send(rows, future, attempt);
+        return;
+      }
+      if (throttled) {
+        logger.log(
+            Level.WARNING,
+            "Append throttled, sending it again",
+            getLogFields("offset", failedOffset, "rows", rows.length(), "attempt", attempt));
+        // Nothing was written, so the append is sent again at the same offset.
+        offset = failedOffset;
+        generation++;
+        send(rows, future, attempt + 1);
+        return;
+      }
+      if (!(throwable instanceof AppendSerializationError appendSerializationError)
+          || deadLetterFile == null) {
+        logger.log(
+            Level.WARNING,
+            "Append failed: " + throwable,
+            getLogFields("offset", failedOffset, "rows", rows.length(), "attempt", attempt));
+        future.completeExceptionally(throwable);
+        return;
+      }
+      JSONArray validRows;
+      try {
+        validRows = rejectRows(rows, appendSerializationError);
+      } catch (RuntimeException | IOException e) {
+        future.completeExceptionally(e);
+        return;
+      }
+      // None of the rows were written, and every append sent after them fails on its offset.
+      offset = failedOffset;
+      generation++;
+      send(validRows, future, attempt);
+    }
+  }
+
+  // Returns the fields of this writer followed by the given fields of a single record.
+  private Map<String, Object> getLogFields(Object... keysAndValues) {
+    Map<String, Object> fields = new LinkedHashMap<String, Object>(logFields);
+    fields.putAll(LogFormatter.fields(keysAndValues));
+    return fields;
+  }
+
+  // Writes the rejected rows to the dead letter file and returns the remaining rows.
+  private JSONArray rejectRows(JSONArray rows, AppendSerializationError appendSerializationError)
+      throws IOException {
+    Map<Integer, String> rowErrors = appendSerializationError.getRowIndexToErrorMessage();
+    if (deadLetterFile == null || rowErrors.isEmpty()) {
+      throw appendSerializationError;
+    }
+    JSONArray validRows = new JSONArray();
+    for (int i = 0; i < rows.length(); i++) {
+      String rowError = rowErrors.get(i);
+      if (rowError == null) {
+        validRows.put(rows.get(i));
+      } else {
+        deadLetterFile.write(tableId.getTable(), rowError, rows.get(i));
+      }
+    }
+    if (validRows.length() == rows.length()) {
+      throw appendSerializationError;
+    }
+    return validRows;
+  }
+
+  /** Stops sending rows and fails every append that has not completed yet with the cause. */
+  public void cancel(Throwable cause) {
+    cancellationCause = cause;
+    pendingFutures.forEach(future -> future.completeExceptionally(cause));
+  }
+
+  public long getRowCount() {
+    synchronized (lock) {
+      return offset;
+    }
+  }
+
+  /** Returns the number of rows BigQuery has acknowledged so far. */
+  public long getAcknowledgedRowCount() {
+    return acknowledgedRowCount.sum();
+  }
+
+  /** Returns the number of appends that have not completed yet. */
+  int getPendingAppendCount() {
+    return pendingFutures.size();
+  }
+
+  public String getStreamName() {
+    return writeStream.getName();
+  }
+
+  /**
+   * Returns a future that completes, and closes the stream, once every append has finished.
+   * PENDING streams are also finalized, so that no further rows can be appended before they are
+   * committed.
+   */
+  public CompletableFuture<Void> complete() {
+    return CompletableFuture.allOf(pendingFutures.toArray(new CompletableFuture[0]))
+        .thenRun(
+            () -> {
+              Throwable failure = firstFailure.get();
+              if (failure != null) {
+                throw new CompletionException(failure);
+              }
+              streamWriter.close();
+              if (writeStream.getType() == WriteStream.Type.PENDING) {
+                writeClient.finalizeWriteStream(writeStream.getName());
+              }
+            });
+  }
+
+  /**
+   * Closes the stream without waiting for appends or finalizing it, for a writer that is abandoned
+   * before the transfer starts.
+   */
+  public void close() {
+    streamWriter.close();
+  }
+
+  private static WriteStream createWriteStream(
+      BigQueryWriteClient writeClient, TableId tableId, WriteStream.Type writeStreamType) {
+    WriteStream stream = WriteStream.newBuilder().setType(writeStreamType).build();
+    TableName parentTable =
+        TableName.of(tableId.getProject(), tableId.getDataset(), tableId.getTable());
+    CreateWriteStreamRequest createWriteStreamRequest =
+        CreateWriteStreamRequest.newBuilder()
+            .setParent(parentTable.toString())
+            .setWriteStream(stream)
+            .build();
+    return writeClient.createWriteStream(createWriteStreamRequest);
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cssfeedviz.utils.CancellationToken;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONArray;
+
+/**
+ * Appends {@link RowBatch}es to their tables. At most {@code maxInFlight} batches are appended at
+ * a time, and another batch is only requested once an append has completed.
+ *
+ * <p>The first failed append cancels the {@link CancellationToken} of the transfer. Once it is
+ * cancelled, by this or any other stage, the subscription is cancelled, the appends still waiting
+ * on the table writers are failed and {@link #getCompletion()} completes exceptionally.
+ */
+public class TableWritersSubscriber implements Flow.Subscriber<RowBatch> {
+  private final Map<String, TableStreamWriter> tableWriters;
+  private final int maxInFlight;
+  private final CancellationToken cancellationToken;
+  private final CompletableFuture<Void> completion = new CompletableFuture<>();
+  private final LongAdder appendedProductCount = new LongAdder();
+  private Flow.Subscription subscription;
+
+  public TableWritersSubscriber(Map<String, TableStreamWriter> tableWriters, int maxInFlight) {
+    this(tableWriters, maxInFlight, new CancellationToken());
+  }
+
+  public TableWritersSubscriber(
+      Map<String, TableStreamWriter> tableWriters,
+      int maxInFlight,
+      CancellationToken cancellationToken) {
+    this.tableWriters = tableWriters;
+    this.maxInFlight = maxInFlight;
+    this.cancellationToken = cancellationToken;
+  }
+
+  public CompletableFuture<Void> getCompletion() {
+    return completion;
+  }
+
+  /** Returns the number of CSS Products whose rows have all been acknowledged by BigQuery. */
+  public long getAppendedProductCount() {
+    return appendedProductCount.sum();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+    cancellationToken.onCancel(() -> fail(cancellationToken.getCause()));
+    subscription.request(maxInFlight);
+  }
+
+  @Override
+  public void onNext(RowBatch rowBatch) {
+    if (completion.isDone()) {
+      return;
+    }
+    List<CompletableFuture<AppendRowsResponse>> appends = new ArrayList<>();
+    for (Map.Entry<String, JSONArray> tableRows : rowBatch.rows().entrySet()) {
+      appends.add(tableWriters.get(tableRows.getKey()).append(tableRows.getValue()));
+    }
+    CompletableFuture.allOf(appends.toArray(new CompletableFuture[0]))
+        .whenComplete(
+            (result, throwable) -> {
+              if (throwable instanceof CompletionException completionException) {
+                onError(completionException.getCause());
+              } else if (throwable != null) {
+                onError(throwable);
+              } else {
+                appendedProductCount.add(rowBatch.productCount());
+                subscription.request(1);
+              }
+            });
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    cancellationToken.cancel(throwable);
+    fail(throwable);
+  }
+
+  private void fail(Throwable throwable) {
+    if (completion.completeExceptionally(throwable)) {
+      subscription.cancel();
+      tableWriters.values().forEach(tableWriter -> tableWriter.cancel(throwable));
+    }
+  }
+
+  @Override
+  public void onComplete() {
+    CompletableFuture.allOf(
+            tableWriters.values().stream()
+                .map(TableStreamWriter::complete)
+                .toArray(CompletableFuture[]::new))
+        .whenComplete(
+            (result, throwable) -> {
+              if (throwable != null) {
+                completion.completeExceptionally(throwable);
+              } else {
+                completion.complete(null);
+              }
+            });
+  }
+}
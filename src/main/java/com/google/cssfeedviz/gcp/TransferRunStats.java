@@ -0,0 +1,222 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import com.google.shopping.css.v1.CssProduct;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Measures a single transfer as it streams through BigQueryService: the pages and CSS Products
+ * retrieved, the time spent converting them, and, once the transfer has finished, the rows
+ * appended and rejected. The counters are updated from the listing and conversion threads, so they
+ * are kept in {@link LongAdder}s.
+ *
+ * <p>The counts of runs in other processes, such as the workers of a sharded transfer, can be added
+ * up through {@link #getCounts} and {@link #addCounts}.
+ */
+public class TransferRunStats {
+  private static final String CONVERT_NANOS_KEY = "convert_nanos";
+
+  private final long startNanos = System.nanoTime();
+  private final LongAdder pageCount = new LongAdder();
+  private final LongAdder fetchedProductCount = new LongAdder();
+  private final LongAdder convertedProductCount = new LongAdder();
+  private final LongAdder convertedRowCount = new LongAdder();
+  private final LongAdder convertNanos = new LongAdder();
+  private volatile long fetchEndNanos;
+  private volatile long endNanos;
+  private volatile long appendedRowCount;
+  private volatile long rejectedRowCount;
+  private volatile long estimatedBytesSent;
+  private volatile long spilledBatchCount;
+  private volatile Throwable error;
+
+  /** Returns a publisher of the same pages that counts them as they are retrieved. */
+  public Flow.Publisher<List<CssProduct>> trackPages(Flow.Publisher<List<CssProduct>> pages) {
+    return subscriber ->
+        pages.subscribe(
+            new Flow.Subscriber<List<CssProduct>>() {
+              @Override
+              public void onSubscribe(Flow.Subscription subscription) {
+                subscriber.onSubscribe(subscription);
+              }
+
+              @Override
+              public void onNext(List<CssProduct> page) {
+                pageCount.increment();
+                fetchedProductCount.add(page.size());
+                subscriber.onNext(page);
+              }
+
+              @Override
+              public void onError(Throwable throwable) {
+                fetchEndNanos = System.nanoTime();
+                subscriber.onError(throwable);
+              }
+
+              @Override
+              public void onComplete() {
+                fetchEndNanos = System.nanoTime();
+                subscriber.onComplete();
+              }
+            });
+  }
+
+  /** Returns a converter that counts and times the batches converted by the given converter. */
+  public Function<List<CssProduct>, RowBatch> trackConversion(
+      Function<List<CssProduct>, RowBatch> converter) {
+    return batch -> {
+      long start = System.nanoTime();
+      RowBatch rowBatch = converter.apply(batch);
+      convertNanos.add(System.nanoTime() - start);
+      convertedProductCount.add(batch.size());
+      rowBatch.rows().values().forEach(rows -> convertedRowCount.add(rows.length()));
+      return rowBatch;
+    };
+  }
+
+  /** Records the outcome of the transfer, with the error it failed with or {@code null}. */
+  public synchronized void finish(
+      long appendedRowCount,
+      long rejectedRowCount,
+      long estimatedBytesSent,
+      long spilledBatchCount,
+      Throwable error) {
+    this.appendedRowCount = appendedRowCount;
+    this.rejectedRowCount = rejectedRowCount;
+    this.estimatedBytesSent = estimatedBytesSent;
+    this.spilledBatchCount = spilledBatchCount;
+    finish(error);
+  }
+
+  /** Records the end of a transfer whose counts were added with {@link #addCounts}. */
+  public synchronized void finish(Throwable error) {
+    this.endNanos = System.nanoTime();
+    this.error = error;
+  }
+
+  /** Returns the counts of the run, keyed by their column in the css_transfer_runs table. */
+  public synchronized Map<String, Long> getCounts() {
+    Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    counts.put("pages_fetched", getPageCount());
+    counts.put("products_fetched", getFetchedProductCount());
+    counts.put("products_converted", getConvertedProductCount());
+    counts.put("rows_converted", getConvertedRowCount());
+    counts.put("rows_appended", appendedRowCount);
+    counts.put("rows_rejected", rejectedRowCount);
+    counts.put("estimated_bytes_sent", estimatedBytesSent);
+    counts.put("batches_spilled", spilledBatchCount);
+    counts.put(CONVERT_NANOS_KEY, convertNanos.sum());
+    return counts;
+  }
+
+  /**
+   * Adds counts returned by {@link #getCounts} to those of this run. The fetch, append wait and
+   * total times remain those of this run.
+   */
+  public synchronized void addCounts(Map<String, Long> counts) {
+    pageCount.add(counts.getOrDefault("pages_fetched", 0L));
+    fetchedProductCount.add(counts.getOrDefault("products_fetched", 0L));
+    convertedProductCount.add(counts.getOrDefault("products_converted", 0L));
+    convertedRowCount.add(counts.getOrDefault("rows_converted", 0L));
+    appendedRowCount += counts.getOrDefault("rows_appended", 0L);
+    rejectedRowCount += counts.getOrDefault("rows_rejected", 0L);
+    estimatedBytesSent += counts.getOrDefault("estimated_bytes_sent", 0L);
+    spilledBatchCount += counts.getOrDefault("batches_spilled", 0L);
+    convertNanos.add(counts.getOrDefault(CONVERT_NANOS_KEY, 0L));
+  }
+
+  public long getPageCount() {
+    return pageCount.sum();
+  }
+
+  public long getFetchedProductCount() {
+    return fetchedProductCount.sum();
+  }
+
+  public long getConvertedProductCount() {
+    return convertedProductCount.sum();
+  }
+
+  public long getConvertedRowCount() {
+    return convertedRowCount.sum();
+  }
+
+  public long getAppendedRowCount() {
+    return appendedRowCount;
+  }
+
+  public long getRejectedRowCount() {
+    return rejectedRowCount;
+  }
+
+  public long getEstimatedBytesSent() {
+    return estimatedBytesSent;
+  }
+
+  public long getSpilledBatchCount() {
+    return spilledBatchCount;
+  }
+
+  public Throwable getError() {
+    return error;
+  }
+
+  /** Returns the time from the start of the transfer until the listing ended. */
+  public double getFetchSeconds() {
+    return toSeconds(((fetchEndNanos != 0) ? fetchEndNanos : getEndNanos()) - startNanos);
+  }
+
+  /** Returns the time spent converting batches, summed over the converting threads. */
+  public double getConvertSeconds() {
+    return toSeconds(convertNanos.sum());
+  }
+
+  /** Returns the time spent waiting for BigQuery appends after the listing ended. */
+  public double getAppendWaitSeconds() {
+    return (fetchEndNanos != 0) ? toSeconds(Math.max(0, getEndNanos() - fetchEndNanos)) : 0;
+  }
+
+  public double getTotalSeconds() {
+    return toSeconds(getEndNanos() - startNanos);
+  }
+
+  private long getEndNanos() {
+    return (endNanos != 0) ? endNanos : System.nanoTime();
+  }
+
+  private static double toSeconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  /** Returns the sum of the peak usage of the JVM's heap memory pools. */
+  public static long getPeakHeapBytes() {
+    long peakHeapBytes = 0;
+    for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (memoryPool.getType() == MemoryType.HEAP && memoryPool.getPeakUsage() != null) {
+        peakHeapBytes += memoryPool.getPeakUsage().getUsed();
+      }
+    }
+    return peakHeapBytes;
+  }
+}
@@ -0,0 +1,353 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.shard;
+
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.cssfeedviz.TransferCssProducts;
+import com.google.cssfeedviz.css.FetchProfile;
+import com.google.cssfeedviz.css.ProductsService;
+import com.google.cssfeedviz.gcp.BigQueryService;
+import com.google.cssfeedviz.gcp.IssueRollup;
+import com.google.cssfeedviz.gcp.TransferRunStats;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Splits a transfer across several worker processes.
+ *
+ * <p>The coordinator lists only the page tokens of the CSS Products, splits the pages into one
+ * {@link TransferShard} per worker and starts a worker process for each of them. Every worker
+ * streams its pages into PENDING write streams and records the stream names in a manifest. Once
+ * all workers have succeeded the coordinator commits their streams together, so a transfer is
+ * either written in full for its transfer_date or not at all.
+ *
+ * <p>Workers also record the counts of their run and their issue counts in the manifest. The
+ * coordinator adds them up and records a single transfer run once the commit has succeeded or the
+ * transfer has failed, and the issue rollups only once the commit has succeeded.
+ *
+ * <p>A worker that exits with a non-zero status, or that is still running once the worker timeout
+ * has passed since the workers were started, fails its shard. Workers that overrun are destroyed.
+ */
+public class ShardedTransfer {
+  private static final Logger logger = Logger.getLogger(ShardedTransfer.class.getName());
+  public static final Duration DEFAULT_WORKER_TIMEOUT = Duration.ofHours(6);
+  private static final String MANIFEST_WRITE_STREAMS_KEY = "write_streams";
+  private static final String MANIFEST_RUN_COUNTS_KEY = "run_counts";
+  private static final String MANIFEST_ISSUE_COUNTS_KEY = "issue_counts";
+  private static final String NATIVE_IMAGE_PROPERTY = "org.graalvm.nativeimage.imagecode";
+
+  private final ProductsService productsService;
+  private final BigQueryService bigQueryService;
+  private Duration workerTimeout = DEFAULT_WORKER_TIMEOUT;
+
+  public ShardedTransfer(ProductsService productsService, BigQueryService bigQueryService) {
+    this.productsService = productsService;
+    this.bigQueryService = bigQueryService;
+  }
+
+  /** Sets how long the coordinator waits for its workers before destroying those still running. */
+  public void setWorkerTimeout(Duration workerTimeout) {
+    this.workerTimeout = workerTimeout;
+  }
+
+  public void coordinate(
+      String datasetName,
+      String datasetLocation,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate,
+      int shardCount,
+      Path shardDir)
+      throws IOException, InterruptedException {
+    TransferRunStats transferRunStats = new TransferRunStats();
+    IssueRollup issueRollup = new IssueRollup();
+    // The run is recorded with the write stream type of the workers.
+    this.bigQueryService.setWriteStreamType(WriteStream.Type.PENDING);
+    List<TransferShard> shards =
+        TransferShard.split(this.productsService.listPageTokens(), shardCount);
+    this.bigQueryService.prepareCssProductsTables(datasetName, datasetLocation, fetchProfile);
+
+    Files.createDirectories(shardDir);
+    Path runDir = Files.createTempDirectory(shardDir, "transfer-");
+    Map<TransferShard, Process> workers = new LinkedHashMap<TransferShard, Process>();
+    long deadline = System.nanoTime() + this.workerTimeout.toNanos();
+    for (TransferShard shard : shards) {
+      workers.put(
+          shard,
+          startWorker(getWorkerCommand(shard, getManifestPath(runDir, shard), transferDate)));
+    }
+
+    Map<String, List<String>> writeStreamNames = new HashMap<String, List<String>>();
+    List<Integer> failedShards = new ArrayList<Integer>();
+    for (Map.Entry<TransferShard, Process> worker : workers.entrySet()) {
+      if (!waitForWorker(worker.getKey(), worker.getValue(), deadline)) {
+        failedShards.add(worker.getKey().index());
+        continue;
+      }
+      // Workers only write their manifest once every row has been appended to their streams.
+      Path manifestPath = getManifestPath(runDir, worker.getKey());
+      if (!Files.exists(manifestPath)) {
+        failedShards.add(worker.getKey().index());
+        continue;
+      }
+      for (Map.Entry<String, String> writeStream : readManifest(manifestPath).entrySet()) {
+        writeStreamNames
+            .computeIfAbsent(writeStream.getKey(), tableName -> new ArrayList<String>())
+            .add(writeStream.getValue());
+      }
+      transferRunStats.addCounts(readManifestRunCounts(manifestPath));
+      issueRollup.addProductCounts(readManifestIssueCounts(manifestPath));
+    }
+
+    if (!failedShards.isEmpty()) {
+      RuntimeException error =
+          new RuntimeException(
+              String.format(
+                  "Transfer shards %s failed, no CSS Products were committed", failedShards));
+      recordTransferRun(datasetName, transferRunStats, fetchProfile, transferDate, error);
+      throw error;
+    }
+    try {
+      this.bigQueryService.commitWriteStreams(datasetName, writeStreamNames);
+    } catch (IOException | RuntimeException e) {
+      recordTransferRun(datasetName, transferRunStats, fetchProfile, transferDate, e);
+      throw e;
+    }
+    recordTransferRun(datasetName, transferRunStats, fetchProfile, transferDate, null);
+    this.bigQueryService.recordIssueRollups(datasetName, issueRollup, fetchProfile, transferDate);
+  }
+
+  /**
+   * Waits for the worker until the deadline and returns whether it exited successfully. A worker
+   * still running at the deadline is destroyed.
+   */
+  private boolean waitForWorker(TransferShard shard, Process worker, long deadline)
+      throws InterruptedException {
+    if (!worker.waitFor(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+      logger.log(
+          Level.WARNING,
+          "Worker of shard {0} did not finish within {1}, destroying it",
+          new Object[] {shard.index(), this.workerTimeout});
+      worker.destroyForcibly().waitFor();
+      return false;
+    }
+    // A worker may fail after writing its manifest, for example while closing its clients.
+    if (worker.exitValue() != 0) {
+      logger.log(
+          Level.WARNING,
+          "Worker of shard {0} exited with status {1}",
+          new Object[] {shard.index(), worker.exitValue()});
+      return false;
+    }
+    return true;
+  }
+
+  private void recordTransferRun(
+      String datasetName,
+      TransferRunStats transferRunStats,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate,
+      Throwable error) {
+    transferRunStats.finish(error);
+    this.bigQueryService.recordTransferRun(
+        datasetName, transferRunStats, fetchProfile, transferDate);
+  }
+
+  public void work(
+      TransferShard shard,
+      String datasetName,
+      String datasetLocation,
+      FetchProfile fetchProfile,
+      LocalDateTime transferDate,
+      Path manifestPath)
+      throws InterruptedException,
+          ExecutionException,
+          IOException,
+          IllegalArgumentException,
+          DescriptorValidationException {
+    this.bigQueryService.setWriteStreamType(WriteStream.Type.PENDING);
+    // Workers run at the same time, so each of them writes its rejected rows to its own file.
+    this.bigQueryService.setDeadLetterQualifier("shard-" + shard.index());
+    TransferRunStats transferRunStats = new TransferRunStats();
+    IssueRollup issueRollup = new IssueRollup();
+    Map<String, String> writeStreamNames =
+        this.bigQueryService.streamCssProducts(
+            datasetName,
+            datasetLocation,
+            this.productsService.publishCssProducts(
+                fetchProfile, shard.startPageToken(), shard.endPageToken()),
+            fetchProfile,
+            transferDate,
+            transferRunStats,
+            issueRollup);
+    writeManifest(manifestPath, writeStreamNames, transferRunStats, issueRollup);
+  }
+
+  Process startWorker(List<String> command) throws IOException {
+    return new ProcessBuilder(command).inheritIO().start();
+  }
+
+  /**
+   * Returns the command starting a worker for the shard. Workers inherit every feedviz System
+   * Property of the coordinator, apart from those describing the shard.
+   */
+  List<String> getWorkerCommand(
+      TransferShard shard, Path manifestPath, LocalDateTime transferDate) {
+    List<String> command = new ArrayList<String>();
+    // A native image starts its workers from its own executable, which takes the same properties.
+    boolean nativeImage = System.getProperty(NATIVE_IMAGE_PROPERTY) != null;
+    if (nativeImage) {
+      command.add(ProcessHandle.current().info().command().orElseThrow());
+    } else {
+      command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+      // Workers load their classes from the coordinator's class data sharing archive, if it has
+      // one.
+      for (String jvmArgument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+        if (jvmArgument.startsWith("-XX:SharedArchiveFile=")) {
+          command.add(jvmArgument);
+        }
+      }
+      command.add("-cp");
+      command.add(getClasspath());
+    }
+    for (String propertyName : System.getProperties().stringPropertyNames()) {
+      if (propertyName.startsWith("feedviz.")
+          && !propertyName.startsWith("feedviz.shard.")
+          && !propertyName.equals("feedviz.mode")
+          && !propertyName.equals("feedviz.transfer.date")) {
+        command.add(String.format("-D%s=%s", propertyName, System.getProperty(propertyName)));
+      }
+    }
+    command.add("-Dfeedviz.mode=worker");
+    command.add("-Dfeedviz.shard.index=" + shard.index());
+    command.add("-Dfeedviz.shard.start.token=" + shard.startPageToken());
+    command.add("-Dfeedviz.shard.end.token=" + shard.endPageToken());
+    command.add("-Dfeedviz.shard.manifest=" + manifestPath);
+    command.add("-Dfeedviz.transfer.date=" + transferDate);
+    if (!nativeImage) {
+      command.add(TransferCssProducts.class.getName());
+    }
+    return command;
+  }
+
+  public static void writeManifest(
+      Path manifestPath,
+      Map<String, String> writeStreamNames,
+      TransferRunStats transferRunStats,
+      IssueRollup issueRollup)
+      throws IOException {
+    JSONObject manifest = new JSONObject();
+    manifest.put(MANIFEST_WRITE_STREAMS_KEY, writeStreamNames);
+    manifest.put(MANIFEST_RUN_COUNTS_KEY, transferRunStats.getCounts());
+    JSONArray issueCounts = new JSONArray();
+    for (Map.Entry<IssueRollup.Key, Long> issueCount :
+        issueRollup.getProductCounts().entrySet()) {
+      IssueRollup.Key key = issueCount.getKey();
+      issueCounts.put(
+          new JSONObject()
+              .put("code", key.code())
+              .put("servability", key.servability())
+              .put("destination", key.destination())
+              .put("country", key.country())
+              .put("product_count", issueCount.getValue()));
+    }
+    manifest.put(MANIFEST_ISSUE_COUNTS_KEY, issueCounts);
+    Files.writeString(manifestPath, manifest.toString());
+  }
+
+  public static Map<String, String> readManifest(Path manifestPath) throws IOException {
+    JSONObject writeStreams =
+        new JSONObject(Files.readString(manifestPath))
+            .getJSONObject(MANIFEST_WRITE_STREAMS_KEY);
+    Map<String, String> writeStreamNames = new HashMap<String, String>();
+    for (String tableName : writeStreams.keySet()) {
+      writeStreamNames.put(tableName, writeStreams.getString(tableName));
+    }
+    return writeStreamNames;
+  }
+
+  public static Map<String, Long> readManifestRunCounts(Path manifestPath) throws IOException {
+    JSONObject runCounts =
+        new JSONObject(Files.readString(manifestPath)).getJSONObject(MANIFEST_RUN_COUNTS_KEY);
+    Map<String, Long> counts = new HashMap<String, Long>();
+    for (String countName : runCounts.keySet()) {
+      counts.put(countName, runCounts.getLong(countName));
+    }
+    return counts;
+  }
+
+  public static Map<IssueRollup.Key, Long> readManifestIssueCounts(Path manifestPath)
+      throws IOException {
+    JSONArray issueCounts =
+        new JSONObject(Files.readString(manifestPath)).getJSONArray(MANIFEST_ISSUE_COUNTS_KEY);
+    Map<IssueRollup.Key, Long> counts = new HashMap<IssueRollup.Key, Long>();
+    for (int i = 0; i < issueCounts.length(); i++) {
+      JSONObject issueCount = issueCounts.getJSONObject(i);
+      counts.put(
+          new IssueRollup.Key(
+              issueCount.getString("code"),
+              issueCount.getString("servability"),
+              issueCount.getString("destination"),
+              // Issues without applicable countries are written without a country.
+              issueCount.optString("country", null)),
+          issueCount.getLong("product_count"));
+    }
+    return counts;
+  }
+
+  private static Path getManifestPath(Path runDir, TransferShard shard) {
+    return runDir.resolve(String.format("shard-%d.json", shard.index()));
+  }
+
+  // When run through mvn exec:java the application classes are loaded by a separate class loader,
+  // so java.class.path does not contain them.
+  private static String getClasspath() {
+    String classpath = System.getProperty("feedviz.worker.classpath");
+    if (classpath != null) {
+      return classpath;
+    }
+    if (Thread.currentThread().getContextClassLoader() instanceof URLClassLoader classLoader) {
+      List<String> paths = new ArrayList<String>();
+      try {
+        for (URL url : classLoader.getURLs()) {
+          paths.add(Path.of(url.toURI()).toString());
+        }
+        return String.join(File.pathSeparator, paths);
+      } catch (URISyntaxException e) {
+        // Fall back to the class path of the JVM.
+      }
+    }
+    return System.getProperty("java.class.path");
+  }
+}
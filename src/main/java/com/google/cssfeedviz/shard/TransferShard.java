@@ -0,0 +1,44 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.shard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A contiguous range of CSS Product pages, from the page with the start page token up to, but
+ * excluding, the page with the end page token. An empty end page token extends the range to the
+ * last page.
+ */
+public record TransferShard(int index, String startPageToken, String endPageToken) {
+
+  /**
+   * Splits the pages with the given page tokens into at most {@code shardCount} ranges of nearly
+   * equal numbers of pages.
+   */
+  public static List<TransferShard> split(List<String> pageTokens, int shardCount) {
+    int pageCount = pageTokens.size();
+    int count = Math.max(1, Math.min(shardCount, pageCount));
+    List<TransferShard> shards = new ArrayList<TransferShard>();
+    for (int i = 0; i < count; i++) {
+      int startPage = i * pageCount / count;
+      int endPage = (i + 1) * pageCount / count;
+      shards.add(
+          new TransferShard(
+              i, pageTokens.get(startPage), (endPage < pageCount) ? pageTokens.get(endPage) : ""));
+    }
+    return shards;
+  }
+}
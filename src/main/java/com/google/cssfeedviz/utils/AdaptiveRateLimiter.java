@@ -0,0 +1,144 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.common.util.concurrent.RateLimiter;
+import io.grpc.Status;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Limits the rate of calls to a single API. The rate is halved whenever the API reports its quota
+ * as exhausted, and raised again by about one call per second for every second of successful
+ * calls, so transfers run close to the quota without being throttled repeatedly.
+ */
+public class AdaptiveRateLimiter {
+  private static final double DECREASE_FACTOR = 0.5;
+  private static final double MIN_RATE_FRACTION = 0.01;
+  // Calls in flight when the quota runs out are throttled together, and count as one decrease.
+  private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final String name;
+  private final double minRate;
+  private final double maxRate;
+  private final RateLimiter rateLimiter;
+  private final LongAdder callCount = new LongAdder();
+  private final LongAdder throttledCount = new LongAdder();
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private double rate;
+
+  @GuardedBy("lock")
+  private long lastDecreaseNanos;
+
+  public AdaptiveRateLimiter(String name, double maxRate) {
+    this(name, maxRate * MIN_RATE_FRACTION, maxRate);
+  }
+
+  public AdaptiveRateLimiter(String name, double minRate, double maxRate) {
+    if (minRate <= 0 || maxRate < minRate) {
+      throw new IllegalArgumentException(
+          "The rates of " + name + " must be positive, with the minimum not above the maximum");
+    }
+    this.name = name;
+    this.minRate = minRate;
+    this.maxRate = maxRate;
+    this.rate = maxRate;
+    this.lastDecreaseNanos = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+    this.rateLimiter = RateLimiter.create(maxRate);
+  }
+
+  /** Blocks until the next call may be made. */
+  public void acquire() {
+    acquire(1);
+  }
+
+  /** Blocks until the given number of calls may be made. */
+  public void acquire(int permits) {
+    rateLimiter.acquire(permits);
+    callCount.add(permits);
+  }
+
+  /** Raises the rate after a successful call. */
+  public void onSuccess() {
+    synchronized (lock) {
+      if (rate < maxRate) {
+        setRate(Math.min(maxRate, rate + 1 / rate));
+      }
+    }
+  }
+
+  /** Lowers the rate after a call was rejected for exceeding the quota. */
+  public void onThrottled() {
+    throttledCount.increment();
+    synchronized (lock) {
+      long now = System.nanoTime();
+      if (now - lastDecreaseNanos >= DECREASE_INTERVAL_NANOS) {
+        lastDecreaseNanos = now;
+        setRate(Math.max(minRate, rate * DECREASE_FACTOR));
+      }
+    }
+  }
+
+  @GuardedBy("lock")
+  private void setRate(double rate) {
+    this.rate = rate;
+    rateLimiter.setRate(rate);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Returns the current rate in calls per second. */
+  public double getRate() {
+    synchronized (lock) {
+      return rate;
+    }
+  }
+
+  public long getCallCount() {
+    return callCount.sum();
+  }
+
+  public long getThrottledCount() {
+    return throttledCount.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s: %d calls, %d throttled, current rate %.1f calls per second",
+        name, getCallCount(), getThrottledCount(), getRate());
+  }
+
+  /** Returns whether the failure, or any of its causes, reports an exhausted quota. */
+  public static boolean isThrottled(Throwable throwable) {
+    for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ApiException apiException
+          && apiException.getStatusCode().getCode() == StatusCode.Code.RESOURCE_EXHAUSTED) {
+        return true;
+      }
+      if (Status.fromThrowable(cause).getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
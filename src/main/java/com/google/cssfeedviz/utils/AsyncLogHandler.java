@@ -0,0 +1,136 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Handler} that passes log records on to another handler from a background thread, so
+ * that logging never blocks the listing, conversion and append threads on console output. Records
+ * wait in a bounded buffer, and are dropped and counted when it is full rather than holding back
+ * the thread that logged them.
+ *
+ * <p>Closing the handler, which the {@link java.util.logging.LogManager} does on shutdown, writes
+ * the records still buffered.
+ */
+public class AsyncLogHandler extends Handler {
+  public static final int DEFAULT_CAPACITY = 8192;
+  private static final long POLL_MILLIS = 100;
+
+  // Loggers are only weakly referenced by the LogManager, so the configured level has to be kept.
+  private static Logger feedvizLogger;
+
+  private final Handler delegate;
+  private final BlockingQueue<LogRecord> buffer;
+  private final LongAdder droppedRecordCount = new LongAdder();
+  private final Thread writer;
+  private volatile boolean closed = false;
+
+  public AsyncLogHandler(Handler delegate, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity must be at least 1");
+    }
+    this.delegate = delegate;
+    this.buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+    this.writer = Thread.ofPlatform().daemon().name("async-log-handler").start(this::write);
+  }
+
+  /**
+   * Replaces the handlers of the root logger with an asynchronous console handler, and logs the
+   * records of this application from the given level. Other libraries keep logging from INFO.
+   */
+  public static synchronized AsyncLogHandler install(Level level, int capacity) {
+    ConsoleHandler consoleHandler = new ConsoleHandler();
+    consoleHandler.setLevel(Level.ALL);
+    consoleHandler.setFormatter(new LogFormatter());
+    AsyncLogHandler asyncLogHandler = new AsyncLogHandler(consoleHandler, capacity);
+    Logger rootLogger = Logger.getLogger("");
+    for (Handler handler : rootLogger.getHandlers()) {
+      rootLogger.removeHandler(handler);
+      handler.close();
+    }
+    rootLogger.addHandler(asyncLogHandler);
+    feedvizLogger = Logger.getLogger("com.google.cssfeedviz");
+    feedvizLogger.setLevel(level);
+    return asyncLogHandler;
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+    if (!buffer.offer(record)) {
+      droppedRecordCount.increment();
+    }
+  }
+
+  private void write() {
+    while (!closed || !buffer.isEmpty()) {
+      LogRecord record;
+      try {
+        record = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (record != null) {
+        delegate.publish(record);
+      }
+    }
+  }
+
+  /** Returns the number of records dropped because the buffer was full. */
+  public long getDroppedRecordCount() {
+    return droppedRecordCount.sum();
+  }
+
+  /** Waits until the buffered records have been passed on, and flushes the delegate. */
+  @Override
+  public void flush() {
+    while (!buffer.isEmpty() && writer.isAlive()) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    delegate.flush();
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (getDroppedRecordCount() > 0) {
+      delegate.publish(
+          new LogRecord(
+              Level.WARNING,
+              getDroppedRecordCount() + " log records were dropped while the log buffer was full"));
+    }
+    delegate.close();
+  }
+}
@@ -19,6 +19,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Class that contains all the authentication logic, both for service accounts and to create an
@@ -33,6 +35,7 @@ import java.io.InputStream;
  * http://127.0.0.1:PORT}, where {@code PORT} is dynamically assigned.
  */
 public class Authenticator {
+  private static final Logger logger = Logger.getLogger(Authenticator.class.getName());
 
   public GoogleCredentials authenticate() throws IOException {
     return authenticate(AccountInfo.load());
@@ -44,12 +47,12 @@ public class Authenticator {
           "Must update AccountInfo.java to set a configuration directory.");
     }
     File serviceAccountFile = new File(accountInfo.getPath(), "service-account.json");
-    System.out.printf("Checking for service account file at: %s%n", serviceAccountFile);
+    logger.log(Level.FINE, "Checking for service account file at {0}", serviceAccountFile);
     if (serviceAccountFile.exists()) {
-      System.out.println("Attempting to load service account credentials");
+      logger.fine("Attempting to load service account credentials");
       try (InputStream inputStream = new FileInputStream(serviceAccountFile)) {
         GoogleCredentials credential = GoogleCredentials.fromStream(inputStream);
-        System.out.println("Successfully loaded service account credentials");
+        logger.info("Successfully loaded service account credentials");
         return credential;
       }
     } else {
@@ -0,0 +1,65 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Signals every stage of a single transfer that it has failed, so that listing, conversion and
+ * appends stop as soon as the first fatal error occurs instead of working through the rest of the
+ * CSS Products. Only the first error is kept, as later errors are usually caused by the stages
+ * being stopped.
+ */
+public class CancellationToken {
+  private final AtomicReference<Throwable> cause = new AtomicReference<Throwable>();
+  private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+  /**
+   * Cancels the transfer with the given error and runs the registered listeners. Returns whether
+   * this call cancelled it, or {@code false} if it had already been cancelled.
+   */
+  public boolean cancel(Throwable throwable) {
+    if (!cause.compareAndSet(null, throwable)) {
+      return false;
+    }
+    for (Runnable listener : listeners) {
+      // Removing the listener first ensures that it runs once, even if it is registered
+      // concurrently.
+      if (listeners.remove(listener)) {
+        listener.run();
+      }
+    }
+    return true;
+  }
+
+  public boolean isCancelled() {
+    return cause.get() != null;
+  }
+
+  /** Returns the error the transfer was cancelled with, or {@code null}. */
+  public Throwable getCause() {
+    return cause.get();
+  }
+
+  /** Runs the listener once the transfer is cancelled, right away if it already is. */
+  public void onCancel(Runnable listener) {
+    listeners.add(listener);
+    if (isCancelled() && listeners.remove(listener)) {
+      listener.run();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Flow.Publisher} that pulls elements from an {@link Iterable} only as they are requested
+ * by its subscriber. Every subscriber gets its own iterator, which is advanced on the given
+ * executor, so blocking iterators such as paged API responses never block the subscriber.
+ *
+ * <p>Iterators that are {@link AutoCloseable} are closed when the subscription is cancelled, so
+ * that they stop fetching elements right away.
+ */
+public class IterablePublisher<T> implements Flow.Publisher<T> {
+  private final Iterable<T> iterable;
+  private final Executor executor;
+
+  public IterablePublisher(Iterable<T> iterable) {
+    this(iterable, Thread::startVirtualThread);
+  }
+
+  public IterablePublisher(Iterable<T> iterable, Executor executor) {
+    this.iterable = iterable;
+    this.executor = executor;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super T> subscriber) {
+    subscriber.onSubscribe(new IterableSubscription(subscriber));
+  }
+
+  private class IterableSubscription implements Flow.Subscription {
+    private final Flow.Subscriber<? super T> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+    private volatile Iterator<T> iterator;
+    private volatile boolean done = false;
+
+    IterableSubscription(Flow.Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        if (!done) {
+          done = true;
+          subscriber.onError(
+              new IllegalArgumentException("Subscribers must request a positive number"));
+        }
+        return;
+      }
+      demand.getAndAccumulate(
+          n, (current, added) -> (current + added < 0) ? Long.MAX_VALUE : current + added);
+      if (pendingDrains.getAndIncrement() == 0) {
+        executor.execute(this::drain);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      done = true;
+      if (iterator instanceof AutoCloseable closeable) {
+        try {
+          closeable.close();
+        } catch (Exception e) {
+          // The iterator is no longer used, so failing to close it does not affect the subscriber.
+        }
+      }
+    }
+
+    // Only one drain runs at a time; requests arriving while draining are picked up by the loop.
+    private void drain() {
+      int missed = 1;
+      do {
+        while (!done && demand.get() > 0) {
+          T next;
+          try {
+            if (iterator == null) {
+              iterator = iterable.iterator();
+            }
+            if (!iterator.hasNext()) {
+              done = true;
+              subscriber.onComplete();
+              return;
+            }
+            next = iterator.next();
+          } catch (RuntimeException e) {
+            done = true;
+            subscriber.onError(e);
+            return;
+          }
+          subscriber.onNext(next);
+          demand.decrementAndGet();
+        }
+        missed = pendingDrains.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+/**
+ * Formats log records as single lines of their time, level, logger and message. Structured fields
+ * are passed as the only parameter of a record, in a map created by {@link #fields}, and are
+ * appended to the message as {@code key=value} pairs:
+ *
+ * <pre>{@code
+ * logger.log(Level.FINE, "Append acknowledged", LogFormatter.fields("offset", offset));
+ * }</pre>
+ */
+public class LogFormatter extends Formatter {
+
+  /** Returns the fields of a log record, from alternating keys and values, in the given order. */
+  public static Map<String, Object> fields(Object... keysAndValues) {
+    if (keysAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Every field key must have a value");
+    }
+    Map<String, Object> fields = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      fields.put(String.valueOf(keysAndValues[i]), keysAndValues[i + 1]);
+    }
+    return fields;
+  }
+
+  @Override
+  public String format(LogRecord record) {
+    StringBuilder line = new StringBuilder();
+    line.append(record.getInstant())
+        .append(' ')
+        .append(record.getLevel().getName())
+        .append(' ')
+        .append(getSimpleName(record.getLoggerName()))
+        .append(": ");
+    Object[] parameters = record.getParameters();
+    if (parameters != null && parameters.length == 1 && parameters[0] instanceof Map<?, ?> fields) {
+      line.append(record.getMessage());
+      // Fields without a value, such as the error of a successful transfer, are left out.
+      fields.forEach(
+          (key, value) -> {
+            if (value != null) {
+              line.append(' ').append(key).append('=').append(formatValue(value));
+            }
+          });
+    } else {
+      line.append(formatMessage(record));
+    }
+    line.append(System.lineSeparator());
+    if (record.getThrown() != null) {
+      StringWriter stackTrace = new StringWriter();
+      record.getThrown().printStackTrace(new PrintWriter(stackTrace));
+      line.append(stackTrace);
+    }
+    return line.toString();
+  }
+
+  private static String getSimpleName(String loggerName) {
+    if (loggerName == null) {
+      return "";
+    }
+    return loggerName.substring(loggerName.lastIndexOf('.') + 1);
+  }
+
+  // Quotes values with spaces, so that every field of a line can be split on spaces.
+  private static String formatValue(Object value) {
+    String text = String.valueOf(value);
+    if (text.isEmpty() || text.contains(" ") || text.contains("\"")) {
+      return '"' + text.replace("\"", "\\\"") + '"';
+    }
+    return text;
+  }
+}
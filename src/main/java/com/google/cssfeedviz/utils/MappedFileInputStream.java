@@ -0,0 +1,96 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@link InputStream} reading a file through memory mapped windows rather than read system
+ * calls. Windows are mapped one after the other, so files larger than a single mapping can be
+ * read.
+ */
+public class MappedFileInputStream extends InputStream {
+  private static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+
+  private final FileChannel channel;
+  private final long fileSize;
+  private final long windowSize;
+  private MappedByteBuffer window;
+  private long windowPosition = 0;
+
+  public MappedFileInputStream(Path path) throws IOException {
+    this(path, DEFAULT_WINDOW_SIZE);
+  }
+
+  public MappedFileInputStream(Path path, long windowSize) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.fileSize = channel.size();
+    this.windowSize = windowSize;
+    mapWindow(0);
+  }
+
+  private void mapWindow(long position) throws IOException {
+    this.windowPosition = position;
+    this.window =
+        channel.map(
+            FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, fileSize - position));
+  }
+
+  // Returns false once the end of the file has been reached.
+  private boolean ensureRemaining() throws IOException {
+    if (window.hasRemaining()) {
+      return true;
+    }
+    long nextPosition = windowPosition + window.capacity();
+    if (nextPosition >= fileSize) {
+      return false;
+    }
+    mapWindow(nextPosition);
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return ensureRemaining() ? (window.get() & 0xff) : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (!ensureRemaining()) {
+      return -1;
+    }
+    int count = Math.min(length, window.remaining());
+    window.get(bytes, offset, count);
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return window.remaining();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.cssfeedviz.utils;
+
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import io.grpc.ManagedChannelBuilder;
+
+/**
+ * An endpoint replacing the default endpoint of the CSS API or a BigQuery API, such as a regional
+ * endpoint or a local fake of the API.
+ *
+ * <p>Endpoints are given as {@code host:port}, optionally prefixed with {@code https://}. Endpoints
+ * prefixed with {@code http://} are plaintext: they are connected to without TLS and without
+ * credentials, which is what local fakes and emulators expect.
+ */
+public class ServiceEndpoint {
+  private static final String HTTP_SCHEME = "http://";
+  private static final String HTTPS_SCHEME = "https://";
+
+  private final String authority;
+  private final boolean plaintext;
+
+  private ServiceEndpoint(String authority, boolean plaintext) {
+    this.authority = authority;
+    this.plaintext = plaintext;
+  }
+
+  /** Returns the endpoint of the value, or {@code null} when the value is {@code null}. */
+  public static ServiceEndpoint parse(String value) {
+    if (value == null) {
+      return null;
+    }
+    boolean plaintext = value.startsWith(HTTP_SCHEME);
+    String authority = value;
+    if (plaintext) {
+      authority = value.substring(HTTP_SCHEME.length());
+    } else if (value.startsWith(HTTPS_SCHEME)) {
+      authority = value.substring(HTTPS_SCHEME.length());
+    }
+    if (authority.endsWith("/")) {
+      authority = authority.substring(0, authority.length() - 1);
+    }
+    if (authority.isEmpty() || authority.contains("/")) {
+      throw new IllegalArgumentException("Invalid endpoint '" + value + "'");
+    }
+    return new ServiceEndpoint(authority, plaintext);
+  }
+
+  /** Returns the host and port of the endpoint, as gRPC clients expect it. */
+  public String getAuthority() {
+    return authority;
+  }
+
+  /** Returns the URL of the endpoint, as REST clients expect it. */
+  public String getUrl() {
+    return (plaintext ? HTTP_SCHEME : HTTPS_SCHEME) + authority;
+  }
+
+  public boolean isPlaintext() {
+    return plaintext;
+  }
+
+  /** Points the channel provider of a gRPC client at the endpoint. */
+  public InstantiatingGrpcChannelProvider.Builder configure(
+      InstantiatingGrpcChannelProvider.Builder channelProvider) {
+    channelProvider.setEndpoint(authority);
+    if (plaintext) {
+      channelProvider.setChannelConfigurator(ManagedChannelBuilder::usePlaintext);
+    }
+    return channelProvider;
+  }
+
+  @Override
+  public String toString() {
+    return getUrl();
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded intern table for strings with few distinct values, such as currency codes or
+ * languages. Every CSS Product decoded from the CSS API carries its own instances of these strings,
+ * and canonicalizing them lets the copies be collected as soon as the product has been converted.
+ *
+ * <p>Once the table holds its maximum number of values, further values are returned as is, so an
+ * unexpectedly high-cardinality column cannot grow the table without bound.
+ */
+public class StringDictionary {
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  private final ConcurrentMap<String, String> values = new ConcurrentHashMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final int maxSize;
+
+  public StringDictionary() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  public StringDictionary(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("The maximum size must not be negative");
+    }
+    this.maxSize = maxSize;
+  }
+
+  /** Returns the canonical instance of the value, or the value itself if the table is full. */
+  public String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    String canonical = values.get(value);
+    if (canonical != null) {
+      return canonical;
+    }
+    if (size.incrementAndGet() > maxSize) {
+      size.decrementAndGet();
+      return value;
+    }
+    canonical = values.putIfAbsent(value, value);
+    if (canonical != null) {
+      // Another thread added the value first.
+      size.decrementAndGet();
+      return canonical;
+    }
+    return value;
+  }
+
+  /** Returns a list of the canonical instances of the values. */
+  public List<String> internAll(List<String> values) {
+    return values.stream().map(this::intern).toList();
+  }
+
+  public int size() {
+    return values.size();
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.MethodDescriptor;
+import java.util.List;
+import org.threeten.bp.Duration;
+
+/**
+ * Profiles controlling the gRPC channels of the CSS API and the BigQuery Storage Write API.
+ *
+ * <p>Compressed profiles send their requests gzip compressed and ask for compressed responses,
+ * which shrinks the appended rows and the pages of CSS Products with long descriptions at the cost
+ * of some CPU time. Flow control windows are left to gRPC, which sizes them automatically.
+ */
+public enum TransportProfile {
+  /** The channel settings of the client libraries. */
+  DEFAULT("default", false, 0, null, 0),
+
+  /** The channel settings of the client libraries, with gzip compression. */
+  COMPRESSED("compressed", true, 0, null, 0),
+
+  /**
+   * Gzip compression over a pool of channels that are kept alive between calls, for long transfers
+   * of large pages.
+   */
+  HIGH_THROUGHPUT("high-throughput", true, 4, Duration.ofSeconds(30), 64 * 1024 * 1024);
+
+  private static final String COMPRESSOR_NAME = "gzip";
+  private static final Duration KEEP_ALIVE_TIMEOUT = Duration.ofSeconds(10);
+
+  private final String name;
+  private final boolean compressed;
+  private final int channelPoolSize;
+  private final Duration keepAliveTime;
+  private final int maxInboundMessageBytes;
+
+  TransportProfile(
+      String name,
+      boolean compressed,
+      int channelPoolSize,
+      Duration keepAliveTime,
+      int maxInboundMessageBytes) {
+    this.name = name;
+    this.compressed = compressed;
+    this.channelPoolSize = channelPoolSize;
+    this.keepAliveTime = keepAliveTime;
+    this.maxInboundMessageBytes = maxInboundMessageBytes;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  public static TransportProfile fromName(String name) {
+    for (TransportProfile transportProfile : values()) {
+      if (transportProfile.name.equalsIgnoreCase(name)) {
+        return transportProfile;
+      }
+    }
+    throw new IllegalArgumentException("Unknown transport profile '" + name + "'");
+  }
+
+  /**
+   * Applies the profile to the default channel provider builder of a client. Settings the profile
+   * does not set keep the defaults of the client.
+   */
+  public InstantiatingGrpcChannelProvider.Builder configure(
+      InstantiatingGrpcChannelProvider.Builder channelProvider) {
+    if (compressed) {
+      channelProvider.setInterceptorProvider(() -> List.of(new CompressingInterceptor()));
+    }
+    if (channelPoolSize > 0) {
+      channelProvider.setChannelPoolSettings(ChannelPoolSettings.staticallySized(channelPoolSize));
+    }
+    if (keepAliveTime != null) {
+      channelProvider
+          .setKeepAliveTime(keepAliveTime)
+          .setKeepAliveTimeout(KEEP_ALIVE_TIMEOUT)
+          .setKeepAliveWithoutCalls(true);
+    }
+    if (maxInboundMessageBytes > 0) {
+      channelProvider.setMaxInboundMessageSize(maxInboundMessageBytes);
+    }
+    return channelProvider;
+  }
+
+  // Compresses the requests of every call. gRPC already asks for gzip compressed responses.
+  private static class CompressingInterceptor implements ClientInterceptor {
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+        MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+      return next.newCall(method, callOptions.withCompression(COMPRESSOR_NAME));
+    }
+  }
+}
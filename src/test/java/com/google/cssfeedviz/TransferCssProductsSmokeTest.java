@@ -0,0 +1,102 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.cssfeedviz;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.cssfeedviz.css.FakeCssProductsServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs complete transfers in a separate process against local fakes of the Google APIs.
+ *
+ * <p>The transfers are run with the JVM running the tests, or with the executable given by the
+ * {@code feedviz.smoke.executable} System Property, such as the native image built by the {@code
+ * native} profile.
+ */
+public class TransferCssProductsSmokeTest {
+  private static final String TEST_CONFIG_DIR = "./config/test";
+  private static final long TIMEOUT_MINUTES = 5;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static List<String> getTransferCommand() {
+    List<String> command = new ArrayList<String>();
+    String executable = System.getProperty("feedviz.smoke.executable");
+    if (executable != null) {
+      command.add(executable);
+    } else {
+      command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(TransferCssProducts.class.getName());
+    }
+    return command;
+  }
+
+  private static long countExportedRows(Path exportDir) throws IOException {
+    long rowCount = 0;
+    try (Stream<Path> paths = Files.walk(exportDir)) {
+      for (Path partPath : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(partPath))) {
+          rowCount +=
+              new String(inputStream.readAllBytes(), StandardCharsets.UTF_8).lines().count();
+        }
+      }
+    }
+    return rowCount;
+  }
+
+  @Test
+  public void export_fromFakeCssApi_exportsEveryProduct() throws Exception {
+    Path exportDir = temporaryFolder.newFolder("export").toPath();
+    Path outputPath = temporaryFolder.getRoot().toPath().resolve("transfer.log");
+
+    try (FakeCssProductsServer cssApi = new FakeCssProductsServer(250, 100)) {
+      List<String> command = getTransferCommand();
+      command.add(1, "-Dfeedviz.mode=export");
+      command.add(1, "-Dfeedviz.config.dir=" + TEST_CONFIG_DIR);
+      command.add(1, "-Dfeedviz.export.dir=" + exportDir);
+      command.add(1, "-Dfeedviz.css.api.endpoint=" + cssApi.getEndpoint());
+      command.add(1, "-Dfeedviz.metadata.cache=false");
+      command.add(1, "-Dfeedviz.progress.interval.seconds=0");
+      Process transfer =
+          new ProcessBuilder(command)
+              .redirectErrorStream(true)
+              .redirectOutput(outputPath.toFile())
+              .start();
+
+      if (!transfer.waitFor(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+        transfer.destroyForcibly().waitFor();
+      }
+
+      assertEquals(Files.readString(outputPath), 0, transfer.exitValue());
+      assertEquals(3, cssApi.getRequestCount());
+      assertEquals(250, countExportedRows(exportDir));
+    }
+  }
+}
@@ -5,14 +5,17 @@ import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.cssfeedviz.css.FetchProfile;
 import com.google.cssfeedviz.css.ProductsService;
 import com.google.cssfeedviz.gcp.BigQueryService;
+import com.google.cssfeedviz.utils.IterablePublisher;
 import com.google.protobuf.Descriptors.DescriptorValidationException;
 import com.google.shopping.css.v1.CssProduct;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,6 +32,8 @@ public class TransferCssProductsTest {
   private final String TEST_MERCHANT_ID = "789";
   private final CssProduct CSS_PRODUCT = CssProduct.newBuilder().setName(TEST_PRODUCT_NAME).build();
   private final List<CssProduct> CSS_PRODUCT_LIST = List.of(CSS_PRODUCT);
+  private final Flow.Publisher<List<CssProduct>> CSS_PRODUCT_PAGES =
+      new IterablePublisher<List<CssProduct>>(List.of(CSS_PRODUCT_LIST));
   private final LocalDateTime TEST_TRANSFER_DATE = LocalDateTime.now();
 
   private MockedConstruction<ProductsService> mockProductsServiceController;
@@ -46,7 +51,7 @@ public class TransferCssProductsTest {
         mockConstruction(
             ProductsService.class,
             (mock, context) -> {
-              when(mock.listCssProducts()).thenReturn(CSS_PRODUCT_LIST);
+              when(mock.publishCssProducts(FetchProfile.FULL)).thenReturn(CSS_PRODUCT_PAGES);
             });
     mockBigQueryServiceController = mockConstruction(BigQueryService.class, (mock, context) -> {});
   }
@@ -67,12 +72,16 @@ public class TransferCssProductsTest {
           DescriptorValidationException {
     TransferCssProducts.main(null);
     ProductsService mockProductsService = mockProductsServiceController.constructed().get(0);
-    verify(mockProductsService).listCssProducts();
+    verify(mockProductsService).publishCssProducts(FetchProfile.FULL);
 
     BigQueryService mockBigQueryService = mockBigQueryServiceController.constructed().get(0);
     verify(mockBigQueryService)
         .streamCssProducts(
-            TEST_DATASET_NAME, TEST_DATASET_LOCATION, CSS_PRODUCT_LIST, TEST_TRANSFER_DATE);
+            TEST_DATASET_NAME,
+            TEST_DATASET_LOCATION,
+            CSS_PRODUCT_PAGES,
+            FetchProfile.FULL,
+            TEST_TRANSFER_DATE);
   }
 
   @Test
@@ -88,11 +97,15 @@ public class TransferCssProductsTest {
 
     TransferCssProducts.main(null);
     ProductsService mockProductsService = mockProductsServiceController.constructed().get(0);
-    verify(mockProductsService).listCssProducts();
+    verify(mockProductsService).publishCssProducts(FetchProfile.FULL);
 
     BigQueryService mockBigQueryService = mockBigQueryServiceController.constructed().get(0);
     verify(mockBigQueryService)
         .streamCssProducts(
-            TEST_DATASET_NAME, TEST_DATASET_LOCATION, CSS_PRODUCT_LIST, TEST_TRANSFER_DATE);
+            TEST_DATASET_NAME,
+            TEST_DATASET_LOCATION,
+            CSS_PRODUCT_PAGES,
+            FetchProfile.FULL,
+            TEST_TRANSFER_DATE);
   }
 }
@@ -0,0 +1,117 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.css;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.Lists;
+import com.google.shopping.css.v1.CssProduct;
+import com.google.shopping.css.v1.CssProductStatus;
+import com.google.shopping.css.v1.CssProductStatus.ItemLevelIssue;
+import com.google.shopping.css.v1.ListCssProductsResponse;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CssProductPagesCaptureTest {
+  private final CssProduct CSS_PRODUCT = CssProduct.newBuilder().setName("Test").build();
+  private final CssProduct CSS_PRODUCT_WITH_ISSUES =
+      CssProduct.newBuilder()
+          .setName("Test With Issues")
+          .setCssProductStatus(
+              CssProductStatus.newBuilder()
+                  .addItemLevelIssues(ItemLevelIssue.newBuilder().setCode("test_code")))
+          .build();
+  private final ListCssProductsResponse FIRST_PAGE =
+      ListCssProductsResponse.newBuilder()
+          .addCssProducts(CSS_PRODUCT)
+          .addCssProducts(CSS_PRODUCT_WITH_ISSUES)
+          .setNextPageToken("t1")
+          .build();
+  private final ListCssProductsResponse LAST_PAGE =
+      ListCssProductsResponse.newBuilder().addCssProducts(CSS_PRODUCT).build();
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path writeCapture() throws Exception {
+    Path capturePath = temporaryFolder.getRoot().toPath().resolve("capture.pb.gz");
+    try (CssProductPagesCapture capture = CssProductPagesCapture.create(capturePath)) {
+      capture.write(FIRST_PAGE);
+      capture.write(LAST_PAGE);
+    }
+    return capturePath;
+  }
+
+  // Requests every page of the publisher and waits for it to complete.
+  private static List<List<CssProduct>> collectPages(Flow.Publisher<List<CssProduct>> publisher)
+      throws Exception {
+    List<List<CssProduct>> pages = new CopyOnWriteArrayList<>();
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    publisher.subscribe(
+        new Flow.Subscriber<List<CssProduct>>() {
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+          }
+
+          @Override
+          public void onNext(List<CssProduct> page) {
+            pages.add(page);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            completion.completeExceptionally(throwable);
+          }
+
+          @Override
+          public void onComplete() {
+            completion.complete(null);
+          }
+        });
+    completion.get(10, TimeUnit.SECONDS);
+    return pages;
+  }
+
+  @Test
+  public void read_returnsCapturedPages() throws Exception {
+    Path capturePath = writeCapture();
+    assertEquals(
+        List.of(FIRST_PAGE, LAST_PAGE),
+        Lists.newArrayList(CssProductPagesCapture.read(capturePath)));
+  }
+
+  @Test
+  public void read_emptyCapture_returnsNoPages() throws Exception {
+    Path capturePath = temporaryFolder.getRoot().toPath().resolve("empty.pb.gz");
+    CssProductPagesCapture.create(capturePath).close();
+    assertEquals(0, Lists.newArrayList(CssProductPagesCapture.read(capturePath)).size());
+  }
+
+  @Test
+  public void replay_issuesOnly_publishesCssProductsWithIssues() throws Exception {
+    Path capturePath = writeCapture();
+
+    List<List<CssProduct>> pages =
+        collectPages(CssProductPagesCapture.replay(capturePath, FetchProfile.ISSUES_ONLY));
+    assertEquals(List.of(List.of(CSS_PRODUCT_WITH_ISSUES), List.of()), pages);
+  }
+}
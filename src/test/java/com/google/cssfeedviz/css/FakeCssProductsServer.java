@@ -0,0 +1,114 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.cssfeedviz.css;
+
+import com.google.shopping.css.v1.CssProduct;
+import com.google.shopping.css.v1.ListCssProductsRequest;
+import com.google.shopping.css.v1.ListCssProductsResponse;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local plaintext gRPC server answering the ListCssProducts calls of the CSS API with generated
+ * CSS Products, for smoke tests of complete transfers.
+ */
+public class FakeCssProductsServer implements AutoCloseable {
+  private static final String SERVICE_NAME = "google.shopping.css.v1.CssProductsService";
+
+  private static final MethodDescriptor<ListCssProductsRequest, ListCssProductsResponse>
+      LIST_CSS_PRODUCTS_METHOD =
+          MethodDescriptor.<ListCssProductsRequest, ListCssProductsResponse>newBuilder()
+              .setType(MethodDescriptor.MethodType.UNARY)
+              .setFullMethodName(
+                  MethodDescriptor.generateFullMethodName(SERVICE_NAME, "ListCssProducts"))
+              .setRequestMarshaller(
+                  ProtoUtils.marshaller(ListCssProductsRequest.getDefaultInstance()))
+              .setResponseMarshaller(
+                  ProtoUtils.marshaller(ListCssProductsResponse.getDefaultInstance()))
+              .build();
+
+  private final int productCount;
+  private final int pageSize;
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final Server server;
+
+  /** Starts a server on a free local port listing the CSS Products in pages of the page size. */
+  public FakeCssProductsServer(int productCount, int pageSize) throws IOException {
+    this.productCount = productCount;
+    this.pageSize = pageSize;
+    this.server =
+        ServerBuilder.forPort(0)
+            .addService(
+                ServerServiceDefinition.builder(SERVICE_NAME)
+                    .addMethod(
+                        LIST_CSS_PRODUCTS_METHOD,
+                        ServerCalls.asyncUnaryCall(
+                            (request, responseObserver) -> {
+                              requestCount.incrementAndGet();
+                              try {
+                                responseObserver.onNext(listCssProducts(request));
+                                responseObserver.onCompleted();
+                              } catch (NumberFormatException e) {
+                                responseObserver.onError(
+                                    Status.INVALID_ARGUMENT
+                                        .withDescription("Invalid page token")
+                                        .asRuntimeException());
+                              }
+                            }))
+                    .build())
+            .build()
+            .start();
+  }
+
+  /** Returns the endpoint of the server, as the endpoint of the CSS API client expects it. */
+  public String getEndpoint() {
+    return "http://localhost:" + server.getPort();
+  }
+
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  // Page tokens are the index of the first CSS Product of the page.
+  private ListCssProductsResponse listCssProducts(ListCssProductsRequest request) {
+    int start = request.getPageToken().isEmpty() ? 0 : Integer.parseInt(request.getPageToken());
+    int end = Math.min(start + pageSize, productCount);
+    ListCssProductsResponse.Builder response = ListCssProductsResponse.newBuilder();
+    for (int i = start; i < end; i++) {
+      response.addCssProducts(
+          CssProduct.newBuilder()
+              .setName(request.getParent() + "/cssProducts/" + i)
+              .setRawProvidedId(String.valueOf(i))
+              .setContentLanguage("de")
+              .setFeedLabel("DE"));
+    }
+    if (end < productCount) {
+      response.setNextPageToken(String.valueOf(end));
+    }
+    return response.build();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+  }
+}
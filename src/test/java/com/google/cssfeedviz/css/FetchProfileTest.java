@@ -0,0 +1,79 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.css;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.shopping.css.v1.CssProduct;
+import com.google.shopping.css.v1.CssProductStatus;
+import com.google.shopping.css.v1.CssProductStatus.ItemLevelIssue;
+import java.util.List;
+import org.junit.Test;
+
+public class FetchProfileTest {
+  private final CssProduct CSS_PRODUCT = CssProduct.newBuilder().setName("Test").build();
+  private final CssProduct CSS_PRODUCT_WITH_ISSUES =
+      CssProduct.newBuilder()
+          .setName("Test")
+          .setCssProductStatus(
+              CssProductStatus.newBuilder()
+                  .addItemLevelIssues(ItemLevelIssue.newBuilder().setCode("test_code")))
+          .build();
+
+  @Test
+  public void fromName() {
+    assertEquals(FetchProfile.FULL, FetchProfile.fromName("full"));
+    assertEquals(FetchProfile.STATUS_ONLY, FetchProfile.fromName("status-only"));
+    assertEquals(FetchProfile.ISSUES_ONLY, FetchProfile.fromName("ISSUES-ONLY"));
+  }
+
+  @Test
+  public void fromName_unknownName() {
+    assertThrows(IllegalArgumentException.class, () -> FetchProfile.fromName("unknown"));
+  }
+
+  @Test
+  public void getFieldMask_full_returnsNull() {
+    assertNull(FetchProfile.FULL.getFieldMask());
+  }
+
+  @Test
+  public void getFieldMask_statusOnly() {
+    String fieldMask = FetchProfile.STATUS_ONLY.getFieldMask();
+    assertTrue(fieldMask.startsWith("next_page_token,"));
+    assertTrue(fieldMask.contains("css_products.css_product_status"));
+    assertFalse(fieldMask.contains("css_products.attributes.description"));
+  }
+
+  @Test
+  public void includes() {
+    assertTrue(FetchProfile.FULL.includes(CSS_PRODUCT));
+    assertTrue(FetchProfile.STATUS_ONLY.includes(CSS_PRODUCT));
+    assertFalse(FetchProfile.ISSUES_ONLY.includes(CSS_PRODUCT));
+    assertTrue(FetchProfile.ISSUES_ONLY.includes(CSS_PRODUCT_WITH_ISSUES));
+  }
+
+  @Test
+  public void select() {
+    List<CssProduct> cssProducts = List.of(CSS_PRODUCT, CSS_PRODUCT_WITH_ISSUES);
+    assertEquals(cssProducts, FetchProfile.FULL.select(cssProducts));
+    assertEquals(cssProducts, FetchProfile.STATUS_ONLY.select(cssProducts));
+    assertEquals(List.of(CSS_PRODUCT_WITH_ISSUES), FetchProfile.ISSUES_ONLY.select(cssProducts));
+  }
+}
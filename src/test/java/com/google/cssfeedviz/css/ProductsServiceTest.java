@@ -16,16 +16,37 @@ package com.google.cssfeedviz.css;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.common.collect.Lists;
 import com.google.cssfeedviz.utils.AccountInfo;
+import com.google.cssfeedviz.utils.AdaptiveRateLimiter;
 import com.google.shopping.css.v1.CssProduct;
+import com.google.shopping.css.v1.CssProductStatus;
+import com.google.shopping.css.v1.CssProductStatus.ItemLevelIssue;
 import com.google.shopping.css.v1.CssProductsServiceClient;
+import com.google.shopping.css.v1.CssProductsServiceClient.ListCssProductsPage;
 import com.google.shopping.css.v1.CssProductsServiceClient.ListCssProductsPagedResponse;
 import com.google.shopping.css.v1.ListCssProductsRequest;
+import com.google.shopping.css.v1.ListCssProductsResponse;
+import io.grpc.Status;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -43,11 +64,48 @@ public class ProductsServiceTest {
 
   @Mock private ListCssProductsPagedResponse listCssProductsPagedResponse;
 
+  @Mock private ListCssProductsPage listCssProductsPage;
+
+  @Mock
+  private UnaryCallable<ListCssProductsRequest, ListCssProductsPagedResponse>
+      listCssProductsPagedCallable;
+
   @Before
   public void setUp() {
     MockitoAnnotations.openMocks(this);
   }
 
+  // Requests every page of the publisher and waits for it to complete.
+  private static List<List<CssProduct>> collectPages(Flow.Publisher<List<CssProduct>> publisher)
+      throws Exception {
+    List<List<CssProduct>> pages = new CopyOnWriteArrayList<>();
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    publisher.subscribe(
+        new Flow.Subscriber<List<CssProduct>>() {
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+          }
+
+          @Override
+          public void onNext(List<CssProduct> page) {
+            pages.add(page);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            completion.completeExceptionally(throwable);
+          }
+
+          @Override
+          public void onComplete() {
+            completion.complete(null);
+          }
+        });
+    completion.get(10, TimeUnit.SECONDS);
+    return pages;
+  }
+
   @Test
   public void listCssProducts_returnsCssProducts() throws IOException {
 
@@ -68,4 +126,146 @@ public class ProductsServiceTest {
     assertEquals(CSS_PRODUCT_LIST.size(), cssProductList.size());
     assertTrue(cssProductList.contains(CSS_PRODUCT));
   }
+
+  @Test
+  public void listCssProducts_issuesOnly_returnsCssProductsWithIssues() throws IOException {
+    CssProduct cssProductWithIssues =
+        CssProduct.newBuilder()
+            .setName(PRODUCT_NAME)
+            .setCssProductStatus(
+                CssProductStatus.newBuilder()
+                    .addItemLevelIssues(ItemLevelIssue.newBuilder().setCode("test_code")))
+            .build();
+
+    AccountInfo accountInfo = AccountInfo.load(TEST_CONFIG_DIR, ACCOUNT_INFO_FILE_NAME);
+
+    String parent = String.format("accounts/%s", TEST_DOMAIN_ID);
+    ListCssProductsRequest listCssProductsRequest =
+        ListCssProductsRequest.newBuilder().setParent(parent).build();
+
+    ProductsService productsService = ProductsService.create(accountInfo);
+    productsService.setCssProductsServiceClient(cssProductsServiceClient);
+
+    when(cssProductsServiceClient.listCssProductsPagedCallable())
+        .thenReturn(listCssProductsPagedCallable);
+    when(listCssProductsPagedCallable.call(
+            eq(listCssProductsRequest), any(ApiCallContext.class)))
+        .thenReturn(listCssProductsPagedResponse);
+    when(listCssProductsPagedResponse.iterateAll())
+        .thenReturn(List.of(CSS_PRODUCT, cssProductWithIssues));
+
+    List<CssProduct> cssProductList =
+        Lists.newArrayList(productsService.listCssProducts(FetchProfile.ISSUES_ONLY));
+    assertEquals(List.of(cssProductWithIssues), cssProductList);
+  }
+
+  @Test
+  public void publishCssProducts_publishesPagesOnDemand() throws Exception {
+    AccountInfo accountInfo = AccountInfo.load(TEST_CONFIG_DIR, ACCOUNT_INFO_FILE_NAME);
+
+    String parent = String.format("accounts/%s", TEST_DOMAIN_ID);
+    ListCssProductsRequest listCssProductsRequest =
+        ListCssProductsRequest.newBuilder().setParent(parent).build();
+
+    ProductsService productsService = ProductsService.create(accountInfo);
+    productsService.setCssProductsServiceClient(cssProductsServiceClient);
+
+    when(cssProductsServiceClient.listCssProducts(listCssProductsRequest))
+        .thenReturn(listCssProductsPagedResponse);
+    when(listCssProductsPage.getResponse())
+        .thenReturn(
+            ListCssProductsResponse.newBuilder().addAllCssProducts(CSS_PRODUCT_LIST).build());
+    when(listCssProductsPagedResponse.iteratePages())
+        .thenReturn(List.of(listCssProductsPage, listCssProductsPage));
+
+    CssProductPagesCapture pagesCapture = mock(CssProductPagesCapture.class);
+    productsService.setPagesCapture(pagesCapture);
+
+    List<List<CssProduct>> pages =
+        collectPages(productsService.publishCssProducts(FetchProfile.FULL));
+    assertEquals(List.of(CSS_PRODUCT_LIST, CSS_PRODUCT_LIST), pages);
+    verify(pagesCapture, times(2)).write(any(ListCssProductsResponse.class));
+  }
+
+  @Test
+  public void listPageTokens_returnsTokenOfEveryPage() throws IOException {
+    AccountInfo accountInfo = AccountInfo.load(TEST_CONFIG_DIR, ACCOUNT_INFO_FILE_NAME);
+
+    String parent = String.format("accounts/%s", TEST_DOMAIN_ID);
+    ListCssProductsRequest listCssProductsRequest =
+        ListCssProductsRequest.newBuilder().setParent(parent).build();
+
+    ProductsService productsService = ProductsService.create(accountInfo);
+    productsService.setCssProductsServiceClient(cssProductsServiceClient);
+
+    ListCssProductsPage lastPage = mock(ListCssProductsPage.class);
+    when(cssProductsServiceClient.listCssProductsPagedCallable())
+        .thenReturn(listCssProductsPagedCallable);
+    when(listCssProductsPagedCallable.call(
+            eq(listCssProductsRequest), any(ApiCallContext.class)))
+        .thenReturn(listCssProductsPagedResponse);
+    when(listCssProductsPage.hasNextPage()).thenReturn(true);
+    when(listCssProductsPage.getNextPageToken()).thenReturn("t1");
+    when(lastPage.hasNextPage()).thenReturn(false);
+    when(listCssProductsPagedResponse.iteratePages())
+        .thenReturn(List.of(listCssProductsPage, lastPage));
+
+    assertEquals(List.of("", "t1"), productsService.listPageTokens());
+  }
+
+  @Test
+  public void listPageTokens_throttled_lowersRateAndRequestsPageAgain() throws IOException {
+    AccountInfo accountInfo = AccountInfo.load(TEST_CONFIG_DIR, ACCOUNT_INFO_FILE_NAME);
+
+    String parent = String.format("accounts/%s", TEST_DOMAIN_ID);
+    ListCssProductsRequest listCssProductsRequest =
+        ListCssProductsRequest.newBuilder().setParent(parent).build();
+
+    ProductsService productsService = ProductsService.create(accountInfo);
+    productsService.setCssProductsServiceClient(cssProductsServiceClient);
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("CSS API", 1000);
+    productsService.setRateLimiter(rateLimiter);
+
+    when(cssProductsServiceClient.listCssProductsPagedCallable())
+        .thenReturn(listCssProductsPagedCallable);
+    when(listCssProductsPagedCallable.call(
+            eq(listCssProductsRequest), any(ApiCallContext.class)))
+        .thenThrow(
+            ApiExceptionFactory.createException(
+                "Quota exceeded", null, GrpcStatusCode.of(Status.Code.RESOURCE_EXHAUSTED), true))
+        .thenReturn(listCssProductsPagedResponse);
+    when(listCssProductsPage.hasNextPage()).thenReturn(false);
+    when(listCssProductsPagedResponse.iteratePages()).thenReturn(List.of(listCssProductsPage));
+
+    assertEquals(List.of(""), productsService.listPageTokens());
+    assertEquals(1, rateLimiter.getThrottledCount());
+    assertEquals(500, rateLimiter.getRate(), 1);
+  }
+
+  @Test
+  public void publishCssProducts_pageRange_stopsBeforeEndPage() throws Exception {
+    AccountInfo accountInfo = AccountInfo.load(TEST_CONFIG_DIR, ACCOUNT_INFO_FILE_NAME);
+
+    String parent = String.format("accounts/%s", TEST_DOMAIN_ID);
+    ListCssProductsRequest listCssProductsRequest =
+        ListCssProductsRequest.newBuilder().setParent(parent).setPageToken("t1").build();
+
+    ProductsService productsService = ProductsService.create(accountInfo);
+    productsService.setCssProductsServiceClient(cssProductsServiceClient);
+
+    when(cssProductsServiceClient.listCssProducts(listCssProductsRequest))
+        .thenReturn(listCssProductsPagedResponse);
+    when(listCssProductsPage.getResponse())
+        .thenReturn(
+            ListCssProductsResponse.newBuilder().addAllCssProducts(CSS_PRODUCT_LIST).build());
+    when(listCssProductsPage.getNextPageToken()).thenReturn("t2");
+    ListCssProductsPage endPage = mock(ListCssProductsPage.class);
+    when(listCssProductsPagedResponse.iteratePages())
+        .thenReturn(List.of(listCssProductsPage, endPage));
+
+    List<List<CssProduct>> pages =
+        collectPages(productsService.publishCssProducts(FetchProfile.FULL, "t1", "t2"));
+    assertEquals(List.of(CSS_PRODUCT_LIST), pages);
+    verify(endPage, never()).getResponse();
+  }
 }
@@ -0,0 +1,147 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cssfeedviz.utils.IterablePublisher;
+import com.google.shopping.css.v1.CssProduct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotExporterTest {
+  private final String TABLE_NAME = "css_products";
+  private final LocalDateTime TEST_TRANSFER_DATE = LocalDateTime.of(2024, 6, 1, 12, 0);
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private CssProduct getCssProduct(String name, String feedLabel) {
+    return CssProduct.newBuilder().setName(name).setFeedLabel(feedLabel).build();
+  }
+
+  private Map<String, Object> getRow(CssProduct cssProduct) {
+    return Map.of(
+        "name", cssProduct.getName(),
+        "feed_label", cssProduct.getFeedLabel(),
+        "attributes", Map.of("title", "Title " + cssProduct.getName()));
+  }
+
+  private List<JSONObject> readRows(Path partitionDir) throws IOException {
+    List<JSONObject> rows = new ArrayList<JSONObject>();
+    try (Stream<Path> partPaths = Files.list(partitionDir).sorted()) {
+      for (Path partPath : partPaths.toList()) {
+        try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(partPath))) {
+          for (String line :
+              new String(inputStream.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+            rows.add(new JSONObject(line));
+          }
+        }
+      }
+    }
+    return rows;
+  }
+
+  @Test
+  public void export_partitionsRowsByTransferDateAndFeedLabel() throws Exception {
+    Path exportDir = temporaryFolder.getRoot().toPath();
+    SnapshotExporter snapshotExporter =
+        new SnapshotExporter(
+            exportDir, TABLE_NAME, this::getRow, SnapshotExporter.DEFAULT_MAX_OPEN_FILES);
+
+    long rowCount =
+        snapshotExporter.export(
+            new IterablePublisher<List<CssProduct>>(
+                List.of(
+                    List.of(getCssProduct("a", "DE"), getCssProduct("b", "FR")),
+                    List.of(getCssProduct("c", "DE")))),
+            TEST_TRANSFER_DATE);
+
+    assertEquals(3, rowCount);
+    Path transferDateDir = exportDir.resolve(TABLE_NAME).resolve("transfer_date=2024-06-01T120000");
+    List<JSONObject> deRows = readRows(transferDateDir.resolve("feed_label=DE"));
+    assertEquals(2, deRows.size());
+    assertEquals("a", deRows.get(0).getString("name"));
+    assertEquals("Title a", deRows.get(0).getJSONObject("attributes").getString("title"));
+    assertEquals("c", deRows.get(1).getString("name"));
+    assertEquals(1, readRows(transferDateDir.resolve("feed_label=FR")).size());
+  }
+
+  @Test
+  public void export_moreFeedLabelsThanOpenFiles_continuesInNewParts() throws Exception {
+    Path exportDir = temporaryFolder.getRoot().toPath();
+    SnapshotExporter snapshotExporter =
+        new SnapshotExporter(exportDir, TABLE_NAME, this::getRow, 1);
+
+    snapshotExporter.export(
+        new IterablePublisher<List<CssProduct>>(
+            List.of(
+                List.of(getCssProduct("a", "DE"), getCssProduct("b", "FR")),
+                List.of(getCssProduct("c", "DE")))),
+        TEST_TRANSFER_DATE);
+
+    Path deDir =
+        exportDir
+            .resolve(TABLE_NAME)
+            .resolve("transfer_date=2024-06-01T120000")
+            .resolve("feed_label=DE");
+    assertTrue(Files.exists(deDir.resolve("part-00000.ndjson.gz")));
+    assertTrue(Files.exists(deDir.resolve("part-00001.ndjson.gz")));
+    assertEquals(2, readRows(deDir).size());
+  }
+
+  @Test
+  public void export_conversionFails_throws() {
+    Path exportDir = temporaryFolder.getRoot().toPath();
+    SnapshotExporter snapshotExporter =
+        new SnapshotExporter(
+            exportDir,
+            TABLE_NAME,
+            cssProduct -> {
+              throw new IllegalStateException("conversion failed");
+            },
+            SnapshotExporter.DEFAULT_MAX_OPEN_FILES);
+
+    assertThrows(
+        RuntimeException.class,
+        () ->
+            snapshotExporter.export(
+                new IterablePublisher<List<CssProduct>>(
+                    List.of(List.of(getCssProduct("a", "DE")))),
+                TEST_TRANSFER_DATE));
+  }
+
+  @Test
+  public void getPartitionName_encodesValues() {
+    assertEquals("feed_label=A%2FB", SnapshotExporter.getPartitionName("feed_label", "A/B"));
+    assertEquals(
+        "feed_label=__HIVE_DEFAULT_PARTITION__",
+        SnapshotExporter.getPartitionName("feed_label", ""));
+  }
+}
@@ -16,46 +16,65 @@ package com.google.cssfeedviz.gcp;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Clustering;
 import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.DatasetId;
 import com.google.cloud.bigquery.DatasetInfo;
 import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.Field.Mode;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.InsertAllRequest;
 import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.Schema;
 import com.google.cloud.bigquery.StandardSQLTypeName;
 import com.google.cloud.bigquery.StandardTableDefinition;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableId;
 import com.google.cloud.bigquery.TableInfo;
+import com.google.cloud.bigquery.TableResult;
 import com.google.cloud.bigquery.TimePartitioning;
 import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsRequest;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsResponse;
 import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
 import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
 import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.StorageError;
 import com.google.cloud.bigquery.storage.v1.TableSchema;
 import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.cssfeedviz.css.FetchProfile;
 import com.google.cssfeedviz.utils.AccountInfo;
+import com.google.cssfeedviz.utils.IterablePublisher;
 import com.google.protobuf.Descriptors.DescriptorValidationException;
 import com.google.protobuf.Timestamp;
-import com.google.protobuf.util.Timestamps;
 import com.google.shopping.css.v1.Attributes;
 import com.google.shopping.css.v1.CssProduct;
 import com.google.shopping.css.v1.CssProductStatus;
 import com.google.shopping.css.v1.CssProductStatus.ItemLevelIssue;
+import io.grpc.Status;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
@@ -68,6 +87,7 @@ import org.json.JSONArray;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.MockitoAnnotations;
@@ -245,10 +265,39 @@ public class BigQueryServiceTest {
           Field.of("feed_label", StandardSQLTypeName.STRING),
           CSS_PRODUCTS_ATTRIBUTES_FIELD,
           CSS_PRODUCTS_CSS_PRODUCT_STATUS_FIELD);
-  private final Map<String, String> TEST_PRICE_MAP =
+  private final Field CSS_PRODUCTS_STATUS_ATTRIBUTES_FIELD =
+      Field.of(
+          "attributes",
+          StandardSQLTypeName.STRUCT,
+          Field.of("title", StandardSQLTypeName.STRING),
+          Field.of("brand", StandardSQLTypeName.STRING),
+          Field.of("gtin", StandardSQLTypeName.STRING),
+          Field.of("mpn", StandardSQLTypeName.STRING),
+          Field.of("item_group_id", StandardSQLTypeName.STRING),
+          Field.of("google_product_category", StandardSQLTypeName.STRING),
+          Field.of("cpp_link", StandardSQLTypeName.STRING));
+  private final Schema CSS_PRODUCTS_STATUS_SCHEMA =
+      Schema.of(
+          Field.of("transfer_date", StandardSQLTypeName.TIMESTAMP),
+          Field.of("name", StandardSQLTypeName.STRING),
+          Field.of("raw_provided_id", StandardSQLTypeName.STRING),
+          Field.of("content_language", StandardSQLTypeName.STRING),
+          Field.of("feed_label", StandardSQLTypeName.STRING),
+          CSS_PRODUCTS_STATUS_ATTRIBUTES_FIELD,
+          CSS_PRODUCTS_CSS_PRODUCT_STATUS_FIELD);
+  private final Clustering CSS_PRODUCTS_CLUSTERING =
+      Clustering.newBuilder()
+          .setFields(List.of("feed_label", "content_language", "name"))
+          .build();
+  private final TimePartitioning CSS_PRODUCTS_TIME_PARTITIONING =
+      TimePartitioning.newBuilder(TimePartitioning.Type.HOUR)
+          .setField("transfer_date")
+          .setExpirationMs(2592000000L)
+          .build();
+  private final Map<String, Object> TEST_PRICE_MAP =
       Map.of(
           "amount_micros",
-          String.valueOf(CSS_PRODUCT.getAttributes().getLowPrice().getAmountMicros()),
+          CSS_PRODUCT.getAttributes().getLowPrice().getAmountMicros(),
           "currency_code",
           CSS_PRODUCT.getAttributes().getLowPrice().getCurrencyCode());
   private final Map<String, Object> TEST_PRODUCT_DIMENSION_MAP =
@@ -270,6 +319,7 @@ public class BigQueryServiceTest {
   @Mock private Dataset mockDataset;
   @Mock private Table mockTable;
   @Mock private InsertAllResponse mockInsertAllResponse;
+  @Mock private TableResult mockTableResult;
 
   @Before
   public void setUp()
@@ -304,16 +354,19 @@ public class BigQueryServiceTest {
     mockedStaticJsonStreamWriter
         .when(
             () ->
-                JsonStreamWriter.newBuilder(
-                    anyString(), any(TableSchema.class), any(BigQueryWriteClient.class)))
+                JsonStreamWriter.newBuilder(anyString(), any(BigQueryWriteClient.class)))
         .thenReturn(mockJsonStreamWriterBuilder);
 
     when(mockJsonStreamWriterBuilder.build()).thenReturn(mockJsonStreamWriter);
     when(mockBigQuery.create(DATASET_INFO)).thenReturn(mockDataset);
+    when(mockBigQuery.insertAll(any(InsertAllRequest.class))).thenReturn(mockInsertAllResponse);
   }
 
   @After
   public void tearDown() {
+    System.clearProperty("feedviz.partition.type");
+    System.clearProperty("feedviz.partition.expiration.days");
+    System.clearProperty("feedviz.clustering.fields");
     mockedStaticBigQueryWriteClient.close();
     mockedStaticJsonStreamWriter.close();
   }
@@ -330,6 +383,26 @@ public class BigQueryServiceTest {
     assertFalse(bigQueryService.datasetExists(TEST_DATASET_NAME));
   }
 
+  @Test
+  public void datasetExists_cached_skipsGetDataset() {
+    MetadataCache mockMetadataCache = mock(MetadataCache.class);
+    when(mockMetadataCache.contains("dataset:" + TEST_DATASET_NAME)).thenReturn(true);
+    bigQueryService.setMetadataCache(mockMetadataCache);
+
+    assertTrue(bigQueryService.datasetExists(TEST_DATASET_NAME));
+    verify(mockBigQuery, never()).getDataset(any(DatasetId.class));
+  }
+
+  @Test
+  public void datasetExists_notCached_cachesExistingDataset() {
+    MetadataCache mockMetadataCache = mock(MetadataCache.class);
+    when(mockBigQuery.getDataset(DATASET_ID)).thenReturn(mockDataset);
+    bigQueryService.setMetadataCache(mockMetadataCache);
+
+    assertTrue(bigQueryService.datasetExists(TEST_DATASET_NAME));
+    verify(mockMetadataCache).put("dataset:" + TEST_DATASET_NAME);
+  }
+
   @Test
   public void createDataset() throws IOException {
     when(mockBigQuery.create(DATASET_INFO)).thenReturn(mockDataset);
@@ -353,6 +426,26 @@ public class BigQueryServiceTest {
     assertEquals(CSS_PRODUCTS_SCHEMA, bigQueryService.getCssProductsSchema());
   }
 
+  @Test
+  public void getCssProductsStatusSchema() {
+    assertEquals(CSS_PRODUCTS_STATUS_SCHEMA, bigQueryService.getCssProductsStatusSchema());
+  }
+
+  @Test
+  public void getSchema() {
+    assertEquals(CSS_PRODUCTS_SCHEMA, bigQueryService.getSchema(FetchProfile.FULL));
+    assertEquals(CSS_PRODUCTS_STATUS_SCHEMA, bigQueryService.getSchema(FetchProfile.STATUS_ONLY));
+    assertEquals(CSS_PRODUCTS_STATUS_SCHEMA, bigQueryService.getSchema(FetchProfile.ISSUES_ONLY));
+  }
+
+  @Test
+  public void getTableName() {
+    assertEquals(CSS_PRODUCTS_TABLE_NAME, bigQueryService.getTableName(FetchProfile.FULL));
+    assertEquals("css_products_status", bigQueryService.getTableName(FetchProfile.STATUS_ONLY));
+    assertEquals(
+        "css_products_with_issues", bigQueryService.getTableName(FetchProfile.ISSUES_ONLY));
+  }
+
   @Test
   public void tableExists_tableExists() {
     when(mockBigQuery.getTable(TABLE_ID)).thenReturn(mockTable);
@@ -378,6 +471,7 @@ public class BigQueryServiceTest {
         StandardTableDefinition.newBuilder()
             .setSchema(CSS_PRODUCTS_SCHEMA)
             .setTimePartitioning(timePartitioning)
+            .setClustering(CSS_PRODUCTS_CLUSTERING)
             .build();
     TableInfo tableInfo = TableInfo.newBuilder(tableId, tableDefinition).build();
 
@@ -385,6 +479,219 @@ public class BigQueryServiceTest {
     assertEquals(mockTable, bigQueryService.createCssProductsTable(TEST_DATASET_NAME));
   }
 
+  @Test
+  public void createCssProductsTable_statusOnly() {
+    TableId tableId = TableId.of(TEST_DATASET_NAME, "css_products_status");
+    long thirtyDaysInMs = 2592000000L;
+    TimePartitioning timePartitioning =
+        TimePartitioning.newBuilder(TimePartitioning.Type.HOUR)
+            .setField("transfer_date")
+            .setExpirationMs(thirtyDaysInMs)
+            .build();
+    StandardTableDefinition tableDefinition =
+        StandardTableDefinition.newBuilder()
+            .setSchema(CSS_PRODUCTS_STATUS_SCHEMA)
+            .setTimePartitioning(timePartitioning)
+            .setClustering(CSS_PRODUCTS_CLUSTERING)
+            .build();
+    TableInfo tableInfo = TableInfo.newBuilder(tableId, tableDefinition).build();
+
+    when(mockBigQuery.create(tableInfo)).thenReturn(mockTable);
+    assertEquals(
+        mockTable,
+        bigQueryService.createCssProductsTable(TEST_DATASET_NAME, FetchProfile.STATUS_ONLY));
+  }
+
+  @Test
+  public void createCssProductsTable_withPartitioningSystemPropertiesSet() throws IOException {
+    System.setProperty("feedviz.partition.type", "day");
+    System.setProperty("feedviz.partition.expiration.days", "7");
+    System.setProperty("feedviz.clustering.fields", "feed_label, name");
+    BigQueryService configuredBigQueryService = new BigQueryService(accountInfo);
+    configuredBigQueryService.setBigQuery(mockBigQuery);
+
+    TimePartitioning timePartitioning =
+        TimePartitioning.newBuilder(TimePartitioning.Type.DAY)
+            .setField("transfer_date")
+            .setExpirationMs(604800000L)
+            .build();
+    StandardTableDefinition tableDefinition =
+        StandardTableDefinition.newBuilder()
+            .setSchema(CSS_PRODUCTS_SCHEMA)
+            .setTimePartitioning(timePartitioning)
+            .setClustering(Clustering.newBuilder().setFields(List.of("feed_label", "name")).build())
+            .build();
+    TableInfo tableInfo =
+        TableInfo.newBuilder(
+                TableId.of(TEST_DATASET_NAME, CSS_PRODUCTS_TABLE_NAME), tableDefinition)
+            .build();
+
+    when(mockBigQuery.create(tableInfo)).thenReturn(mockTable);
+    assertEquals(mockTable, configuredBigQueryService.createCssProductsTable(TEST_DATASET_NAME));
+  }
+
+  @Test
+  public void updateCssProductsTableLayout_matchingLayout_notUpdated() {
+    when(mockTable.getDefinition())
+        .thenReturn(
+            StandardTableDefinition.newBuilder()
+                .setSchema(CSS_PRODUCTS_SCHEMA)
+                .setTimePartitioning(CSS_PRODUCTS_TIME_PARTITIONING)
+                .setClustering(CSS_PRODUCTS_CLUSTERING)
+                .build());
+
+    assertEquals(mockTable, bigQueryService.updateCssProductsTableLayout(mockTable));
+    verify(mockBigQuery, never()).update(any(TableInfo.class));
+  }
+
+  @Test
+  public void updateCssProductsTableLayout_missingClustering_updated() {
+    when(mockTable.getTableId()).thenReturn(TABLE_ID);
+    when(mockTable.getDefinition())
+        .thenReturn(
+            StandardTableDefinition.newBuilder()
+                .setSchema(CSS_PRODUCTS_SCHEMA)
+                .setTimePartitioning(CSS_PRODUCTS_TIME_PARTITIONING)
+                .build());
+    TableInfo tableInfo =
+        TableInfo.newBuilder(
+                TABLE_ID,
+                StandardTableDefinition.newBuilder()
+                    .setSchema(CSS_PRODUCTS_SCHEMA)
+                    .setTimePartitioning(CSS_PRODUCTS_TIME_PARTITIONING)
+                    .setClustering(CSS_PRODUCTS_CLUSTERING)
+                    .build())
+            .build();
+    when(mockBigQuery.update(tableInfo)).thenReturn(mockTable);
+
+    assertEquals(mockTable, bigQueryService.updateCssProductsTableLayout(mockTable));
+    verify(mockBigQuery).update(tableInfo);
+  }
+
+  @Test
+  public void updateCssProductsTableLayout_differentPartitionType_onlyClusteringUpdated() {
+    TimePartitioning dayPartitioning =
+        TimePartitioning.newBuilder(TimePartitioning.Type.DAY).setField("transfer_date").build();
+    when(mockTable.getTableId()).thenReturn(TABLE_ID);
+    when(mockTable.getDefinition())
+        .thenReturn(
+            StandardTableDefinition.newBuilder()
+                .setSchema(CSS_PRODUCTS_SCHEMA)
+                .setTimePartitioning(dayPartitioning)
+                .build());
+    TableInfo tableInfo =
+        TableInfo.newBuilder(
+                TABLE_ID,
+                StandardTableDefinition.newBuilder()
+                    .setSchema(CSS_PRODUCTS_SCHEMA)
+                    .setTimePartitioning(dayPartitioning)
+                    .setClustering(CSS_PRODUCTS_CLUSTERING)
+                    .build())
+            .build();
+
+    bigQueryService.updateCssProductsTableLayout(mockTable);
+    verify(mockBigQuery).update(tableInfo);
+  }
+
+  @Test
+  public void updateCssProductsTableLayout_expirationNotConfigured_notUpdated() throws IOException {
+    System.setProperty("feedviz.partition.expiration.days", "0");
+    BigQueryService configuredBigQueryService = new BigQueryService(accountInfo);
+    configuredBigQueryService.setBigQuery(mockBigQuery);
+    when(mockTable.getTableId()).thenReturn(TABLE_ID);
+    when(mockTable.getDefinition())
+        .thenReturn(
+            StandardTableDefinition.newBuilder()
+                .setSchema(CSS_PRODUCTS_SCHEMA)
+                .setTimePartitioning(CSS_PRODUCTS_TIME_PARTITIONING)
+                .setClustering(CSS_PRODUCTS_CLUSTERING)
+                .build());
+
+    assertEquals(mockTable, configuredBigQueryService.updateCssProductsTableLayout(mockTable));
+    verify(mockBigQuery, never()).update(any(TableInfo.class));
+  }
+
+  @Test
+  public void prepareCssProductsTables_matchingLayout_cachesLayout() {
+    MetadataCache mockMetadataCache = mock(MetadataCache.class);
+    bigQueryService.setMetadataCache(mockMetadataCache);
+    when(mockBigQuery.getDataset(DatasetId.of(TEST_DATASET_NAME))).thenReturn(mockDataset);
+    when(mockBigQuery.getTable(TableId.of(TEST_DATASET_NAME, CSS_PRODUCTS_TABLE_NAME)))
+        .thenReturn(mockTable);
+    when(mockTable.getTableId()).thenReturn(TABLE_ID);
+    when(mockTable.getDefinition())
+        .thenReturn(
+            StandardTableDefinition.newBuilder()
+                .setSchema(CSS_PRODUCTS_SCHEMA)
+                .setTimePartitioning(CSS_PRODUCTS_TIME_PARTITIONING)
+                .setClustering(CSS_PRODUCTS_CLUSTERING)
+                .build());
+
+    bigQueryService.prepareCssProductsTables(TEST_DATASET_NAME, TEST_LOCATION, FetchProfile.FULL);
+
+    verify(mockMetadataCache).put(contains(":layout:"));
+  }
+
+  @Test
+  public void prepareCssProductsTables_differentPartitionType_layoutNotCached() {
+    MetadataCache mockMetadataCache = mock(MetadataCache.class);
+    bigQueryService.setMetadataCache(mockMetadataCache);
+    when(mockBigQuery.getDataset(DatasetId.of(TEST_DATASET_NAME))).thenReturn(mockDataset);
+    when(mockBigQuery.getTable(TableId.of(TEST_DATASET_NAME, CSS_PRODUCTS_TABLE_NAME)))
+        .thenReturn(mockTable);
+    when(mockTable.getTableId()).thenReturn(TABLE_ID);
+    when(mockTable.getDefinition())
+        .thenReturn(
+            StandardTableDefinition.newBuilder()
+                .setSchema(CSS_PRODUCTS_SCHEMA)
+                .setTimePartitioning(
+                    TimePartitioning.newBuilder(TimePartitioning.Type.DAY)
+                        .setField("transfer_date")
+                        .build())
+                .setClustering(CSS_PRODUCTS_CLUSTERING)
+                .build());
+
+    bigQueryService.prepareCssProductsTables(TEST_DATASET_NAME, TEST_LOCATION, FetchProfile.FULL);
+
+    verify(mockMetadataCache, never()).put(contains(":layout:"));
+  }
+
+  @Test
+  public void updateTableSchema_matchingSchema_notUpdated() {
+    when(mockTable.getTableId()).thenReturn(TABLE_ID);
+    when(mockTable.getDefinition())
+        .thenReturn(StandardTableDefinition.newBuilder().setSchema(CSS_PRODUCTS_SCHEMA).build());
+
+    assertEquals(mockTable, bigQueryService.updateTableSchema(mockTable, CSS_PRODUCTS_SCHEMA));
+    verify(mockBigQuery, never()).update(any(TableInfo.class));
+  }
+
+  @Test
+  public void updateTableSchema_missingFields_added() {
+    when(mockTable.getTableId()).thenReturn(TABLE_ID);
+    when(mockTable.getDefinition())
+        .thenReturn(
+            StandardTableDefinition.newBuilder()
+                .setSchema(
+                    Schema.of(
+                        Field.of("transfer_date", StandardSQLTypeName.TIMESTAMP),
+                        Field.of("name", StandardSQLTypeName.STRING)))
+                .setTimePartitioning(CSS_PRODUCTS_TIME_PARTITIONING)
+                .build());
+    TableInfo tableInfo =
+        TableInfo.newBuilder(
+                TABLE_ID,
+                StandardTableDefinition.newBuilder()
+                    .setSchema(CSS_PRODUCTS_SCHEMA)
+                    .setTimePartitioning(CSS_PRODUCTS_TIME_PARTITIONING)
+                    .build())
+            .build();
+    when(mockBigQuery.update(tableInfo)).thenReturn(mockTable);
+
+    assertEquals(mockTable, bigQueryService.updateTableSchema(mockTable, CSS_PRODUCTS_SCHEMA));
+    verify(mockBigQuery).update(tableInfo);
+  }
+
   @Test
   public void getPriceAsMap() {
     assertEquals(
@@ -418,17 +725,28 @@ public class BigQueryServiceTest {
   }
 
   @Test
-  public void getTimestampAsString_returnsTimestampString() {
+  public void getTimestampAsMicros_returnsMicrosSinceEpoch() {
     long secondsSinceEpoch = TEST_TRANSFER_DATE.atZone(ZoneId.systemDefault()).toEpochSecond();
-    Timestamp timestamp = Timestamp.newBuilder().setSeconds(secondsSinceEpoch).build();
-    String timestampString = Timestamps.toString(timestamp);
+    Timestamp timestamp =
+        Timestamp.newBuilder().setSeconds(secondsSinceEpoch).setNanos(123456789).build();
 
-    assertEquals(timestampString, bigQueryService.getTimestampAsString(timestamp));
+    assertEquals(
+        Long.valueOf(secondsSinceEpoch * 1000000L + 123456L),
+        bigQueryService.getTimestampAsMicros(timestamp));
   }
 
   @Test
-  public void getTimestampAsString_defaultTimestampInstance_returnsNull() {
-    assertEquals(null, bigQueryService.getTimestampAsString(Timestamp.getDefaultInstance()));
+  public void getTimestampAsMicros_defaultTimestampInstance_returnsNull() {
+    assertEquals(null, bigQueryService.getTimestampAsMicros(Timestamp.getDefaultInstance()));
+  }
+
+  @Test
+  public void getTransferDateAsMicros_returnsMicrosSinceEpochInUtc() {
+    LocalDateTime transferDate = LocalDateTime.of(2024, 5, 1, 12, 30, 15, 250000000);
+
+    assertEquals(
+        Instant.parse("2024-05-01T12:30:15.250Z").toEpochMilli() * 1000L,
+        bigQueryService.getTransferDateAsMicros(transferDate));
   }
 
   @Test
@@ -453,7 +771,7 @@ public class BigQueryServiceTest {
     testAttributes.put("certifications", cssProductAttributes.getCertificationsList());
     testAttributes.put(
         "expiration_date",
-        bigQueryService.getTimestampAsString(cssProductAttributes.getExpirationDate()));
+        bigQueryService.getTimestampAsMicros(cssProductAttributes.getExpirationDate()));
     testAttributes.put("included_destinations", cssProductAttributes.getIncludedDestinationsList());
     testAttributes.put("excluded_destinations", cssProductAttributes.getExcludedDestinationsList());
     testAttributes.put("cpp_link", cssProductAttributes.getCppLink());
@@ -495,16 +813,17 @@ public class BigQueryServiceTest {
     testProductStatus.put("destination_statuses", cssProductStatus.getDestinationStatusesList());
     testProductStatus.put("item_level_issues", cssProductStatus.getItemLevelIssuesList());
     testProductStatus.put(
-        "creation_date", bigQueryService.getTimestampAsString(cssProductStatus.getCreationDate()));
+        "creation_date", bigQueryService.getTimestampAsMicros(cssProductStatus.getCreationDate()));
     testProductStatus.put(
         "last_update_date",
-        bigQueryService.getTimestampAsString(cssProductStatus.getLastUpdateDate()));
+        bigQueryService.getTimestampAsMicros(cssProductStatus.getLastUpdateDate()));
     testProductStatus.put(
         "google_expiration_date",
-        bigQueryService.getTimestampAsString(cssProductStatus.getGoogleExpirationDate()));
+        bigQueryService.getTimestampAsMicros(cssProductStatus.getGoogleExpirationDate()));
 
     Map<String, Object> testRowContent = new HashMap<String, Object>();
-    testRowContent.put("transfer_date", TEST_TRANSFER_DATE);
+    testRowContent.put(
+        "transfer_date", bigQueryService.getTransferDateAsMicros(TEST_TRANSFER_DATE));
     testRowContent.put("name", CSS_PRODUCT.getName());
     testRowContent.put("raw_provided_id", CSS_PRODUCT.getRawProvidedId());
     testRowContent.put("content_language", CSS_PRODUCT.getContentLanguage());
@@ -517,6 +836,41 @@ public class BigQueryServiceTest {
         bigQueryService.getCssProductAsMap(CSS_PRODUCT, TEST_TRANSFER_DATE).toString());
   }
 
+  @Test
+  public void testGetCssProductStatusRowAsMap() {
+    Attributes cssProductAttributes = CSS_PRODUCT.getAttributes();
+
+    Map<String, Object> testAttributes = new HashMap<String, Object>();
+    testAttributes.put("title", cssProductAttributes.getTitle());
+    testAttributes.put("brand", cssProductAttributes.getBrand());
+    testAttributes.put("gtin", cssProductAttributes.getGtin());
+    testAttributes.put("mpn", cssProductAttributes.getMpn());
+    testAttributes.put("item_group_id", cssProductAttributes.getItemGroupId());
+    testAttributes.put("google_product_category", cssProductAttributes.getGoogleProductCategory());
+    testAttributes.put("cpp_link", cssProductAttributes.getCppLink());
+
+    Map<String, Object> testRowContent = new HashMap<String, Object>();
+    testRowContent.put(
+        "transfer_date", bigQueryService.getTransferDateAsMicros(TEST_TRANSFER_DATE));
+    testRowContent.put("name", CSS_PRODUCT.getName());
+    testRowContent.put("raw_provided_id", CSS_PRODUCT.getRawProvidedId());
+    testRowContent.put("content_language", CSS_PRODUCT.getContentLanguage());
+    testRowContent.put("feed_label", CSS_PRODUCT.getFeedLabel());
+    testRowContent.put("attributes", testAttributes);
+    testRowContent.put(
+        "css_product_status",
+        bigQueryService.getCssProductStatusAsMap(CSS_PRODUCT.getCssProductStatus()));
+
+    assertEquals(
+        testRowContent.toString(),
+        bigQueryService.getCssProductStatusRowAsMap(CSS_PRODUCT, TEST_TRANSFER_DATE).toString());
+    assertEquals(
+        testRowContent.toString(),
+        bigQueryService
+            .getRowAsMap(CSS_PRODUCT, FetchProfile.STATUS_ONLY, TEST_TRANSFER_DATE)
+            .toString());
+  }
+
   @Test
   public void testStreamCssProducts_EmptyProductsList()
       throws ExecutionException,
@@ -563,6 +917,246 @@ public class BigQueryServiceTest {
         .append(any(JSONArray.class), anyLong()); // Ensure append is called once
   }
 
+  @Test
+  public void streamCssProducts_recordsTransferRun() throws Exception {
+    List<CssProduct> cssProducts = Arrays.asList(CSS_PRODUCT, CSS_PRODUCT, CSS_PRODUCT);
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    bigQueryService.streamCssProducts(
+        TEST_DATASET_NAME, TEST_LOCATION, cssProducts, TEST_TRANSFER_DATE);
+
+    ArgumentCaptor<InsertAllRequest> insertAllRequest =
+        ArgumentCaptor.forClass(InsertAllRequest.class);
+    verify(mockBigQuery).insertAll(insertAllRequest.capture());
+    assertEquals("css_transfer_runs", insertAllRequest.getValue().getTable().getTable());
+    Map<String, Object> transferRun = insertAllRequest.getValue().getRows().get(0).getContent();
+    assertEquals(TEST_TRANSFER_DATE.toString(), transferRun.get("transfer_date"));
+    assertEquals(accountInfo.getDomainId().longValue(), transferRun.get("domain_id"));
+    assertEquals("COMMITTED", transferRun.get("write_stream_type"));
+    assertEquals("SUCCEEDED", transferRun.get("status"));
+    assertEquals(1L, transferRun.get("pages_fetched"));
+    assertEquals(3L, transferRun.get("products_fetched"));
+    assertEquals(3L, transferRun.get("rows_converted"));
+    assertEquals(3L, transferRun.get("rows_appended"));
+    assertEquals(0L, transferRun.get("rows_rejected"));
+  }
+
+  @Test
+  public void streamCssProducts_productsWithIssues_recordsIssueRollups() throws Exception {
+    CssProduct cssProductWithIssue =
+        CSS_PRODUCT.toBuilder()
+            .setCssProductStatus(
+                CssProductStatus.newBuilder()
+                    .addItemLevelIssues(
+                        ItemLevelIssue.newBuilder()
+                            .setCode("image_too_small")
+                            .setServability("disapproved")
+                            .setDestination("CSS")
+                            .addApplicableCountries("DE")))
+            .build();
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    bigQueryService.streamCssProducts(
+        TEST_DATASET_NAME,
+        TEST_LOCATION,
+        Arrays.asList(cssProductWithIssue, cssProductWithIssue, CSS_PRODUCT),
+        TEST_TRANSFER_DATE);
+
+    ArgumentCaptor<InsertAllRequest> insertAllRequest =
+        ArgumentCaptor.forClass(InsertAllRequest.class);
+    verify(mockBigQuery, times(2)).insertAll(insertAllRequest.capture());
+    InsertAllRequest issueRollupsRequest = insertAllRequest.getAllValues().get(1);
+    assertEquals("css_issue_rollups", issueRollupsRequest.getTable().getTable());
+    assertEquals(1, issueRollupsRequest.getRows().size());
+    Map<String, Object> issueRollup = issueRollupsRequest.getRows().get(0).getContent();
+    assertEquals("image_too_small", issueRollup.get("code"));
+    assertEquals("disapproved", issueRollup.get("servability"));
+    assertEquals("CSS", issueRollup.get("destination"));
+    assertEquals("DE", issueRollup.get("country"));
+    assertEquals(2L, issueRollup.get("product_count"));
+  }
+
+  @Test
+  public void streamCssProducts_appendFails_recordsFailedTransferRun() throws Exception {
+    List<CssProduct> cssProducts = Arrays.asList(CSS_PRODUCT, CSS_PRODUCT, CSS_PRODUCT);
+    SettableApiFuture<AppendRowsResponse> failureFuture = SettableApiFuture.create();
+    failureFuture.setException(new IOException("Append failed"));
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(failureFuture);
+
+    assertThrows(
+        RuntimeException.class,
+        () ->
+            bigQueryService.streamCssProducts(
+                TEST_DATASET_NAME, TEST_LOCATION, cssProducts, TEST_TRANSFER_DATE));
+
+    ArgumentCaptor<InsertAllRequest> insertAllRequest =
+        ArgumentCaptor.forClass(InsertAllRequest.class);
+    verify(mockBigQuery).insertAll(insertAllRequest.capture());
+    Map<String, Object> transferRun = insertAllRequest.getValue().getRows().get(0).getContent();
+    assertEquals("FAILED", transferRun.get("status"));
+    assertTrue(((String) transferRun.get("error")).contains("Append failed"));
+  }
+
+  @Test
+  public void getDeadLetterPath_qualifiesFileName() {
+    assertEquals(Path.of("dead_letters.ndjson"), bigQueryService.getDeadLetterPath("eu", false));
+    assertEquals(Path.of("dead_letters.eu.ndjson"), bigQueryService.getDeadLetterPath("eu", true));
+
+    bigQueryService.setDeadLetterQualifier("shard-2");
+
+    assertEquals(
+        Path.of("dead_letters.shard-2.ndjson"), bigQueryService.getDeadLetterPath("eu", false));
+    assertEquals(
+        Path.of("dead_letters.shard-2.eu.ndjson"), bigQueryService.getDeadLetterPath("eu", true));
+  }
+
+  @Test
+  public void streamCssProducts_severalDatasets_fetchesOnceAndAppendsToEach() throws Exception {
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    Map<String, Map<String, String>> writeStreamNames =
+        bigQueryService.streamCssProducts(
+            List.of(new DatasetSink("feedviz_eu", "EU"), new DatasetSink("feedviz_us", "US")),
+            new IterablePublisher<List<CssProduct>>(List.of(List.of(CSS_PRODUCT, CSS_PRODUCT))),
+            FetchProfile.FULL,
+            TEST_TRANSFER_DATE);
+
+    assertEquals(List.of("feedviz_eu", "feedviz_us"), List.copyOf(writeStreamNames.keySet()));
+    ArgumentCaptor<CreateWriteStreamRequest> createWriteStreamRequest =
+        ArgumentCaptor.forClass(CreateWriteStreamRequest.class);
+    verify(mockBigQueryWriteClient, times(2))
+        .createWriteStream(createWriteStreamRequest.capture());
+    assertTrue(createWriteStreamRequest.getAllValues().get(0).getParent().contains("feedviz_eu"));
+    assertTrue(createWriteStreamRequest.getAllValues().get(1).getParent().contains("feedviz_us"));
+    verify(mockJsonStreamWriter, times(2)).append(any(JSONArray.class), anyLong());
+    ArgumentCaptor<InsertAllRequest> insertAllRequest =
+        ArgumentCaptor.forClass(InsertAllRequest.class);
+    verify(mockBigQuery, times(2)).insertAll(insertAllRequest.capture());
+    for (InsertAllRequest transferRunRequest : insertAllRequest.getAllValues()) {
+      Map<String, Object> transferRun = transferRunRequest.getRows().get(0).getContent();
+      // The single page was fetched and converted once for both datasets.
+      assertEquals(1L, transferRun.get("pages_fetched"));
+      assertEquals(2L, transferRun.get("rows_appended"));
+    }
+    assertEquals("feedviz_eu", insertAllRequest.getAllValues().get(0).getTable().getDataset());
+    assertEquals("feedviz_us", insertAllRequest.getAllValues().get(1).getTable().getDataset());
+  }
+
+  @Test
+  public void streamCssProducts_writerSetupFails_closesOpenedWriters() throws Exception {
+    when(mockBigQueryWriteClient.createWriteStream(any(CreateWriteStreamRequest.class)))
+        .thenReturn(mockWriteStream)
+        .thenThrow(new RuntimeException("createWriteStream failed"));
+
+    assertThrows(
+        RuntimeException.class,
+        () ->
+            bigQueryService.streamCssProducts(
+                List.of(new DatasetSink("feedviz_eu", "EU"), new DatasetSink("feedviz_us", "US")),
+                new IterablePublisher<List<CssProduct>>(List.of(List.of(CSS_PRODUCT))),
+                FetchProfile.FULL,
+                TEST_TRANSFER_DATE));
+
+    // The write client of each dataset is closed, as is the stream opened for the first one.
+    verify(mockBigQueryWriteClient, times(2)).close();
+    verify(mockJsonStreamWriter).close();
+    verify(mockJsonStreamWriter, never()).append(any(JSONArray.class), anyLong());
+    verify(mockBigQueryWriteClient, never()).finalizeWriteStream(anyString());
+  }
+
+  @Test
+  public void streamCssProducts_cachedTableNotFound_invalidatesCacheAndRetries() throws Exception {
+    MetadataCache mockMetadataCache = mock(MetadataCache.class);
+    when(mockMetadataCache.contains(anyString())).thenReturn(true);
+    bigQueryService.setMetadataCache(mockMetadataCache);
+    when(mockBigQueryWriteClient.createWriteStream(any(CreateWriteStreamRequest.class)))
+        .thenThrow(
+            ApiExceptionFactory.createException(
+                "Table not found", null, GrpcStatusCode.of(Status.Code.NOT_FOUND), false))
+        .thenReturn(mockWriteStream);
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    Map<String, String> writeStreamNames =
+        bigQueryService.streamCssProducts(
+            TEST_DATASET_NAME,
+            TEST_LOCATION,
+            new IterablePublisher<List<CssProduct>>(List.of(List.of(CSS_PRODUCT))),
+            FetchProfile.FULL,
+            TEST_TRANSFER_DATE);
+
+    assertEquals(Map.of("css_products", WRITE_STREAM_NAME), writeStreamNames);
+    verify(mockMetadataCache).remove("dataset:" + TEST_DATASET_NAME);
+    verify(mockMetadataCache).removeWithPrefix("table:" + TEST_DATASET_NAME + ".");
+    verify(mockBigQueryWriteClient, times(2))
+        .createWriteStream(any(CreateWriteStreamRequest.class));
+    verify(mockJsonStreamWriter).append(any(JSONArray.class), anyLong());
+  }
+
+  @Test
+  public void streamCssProducts_tableNotFoundWithoutCache_throwsException() {
+    when(mockBigQueryWriteClient.createWriteStream(any(CreateWriteStreamRequest.class)))
+        .thenThrow(
+            ApiExceptionFactory.createException(
+                "Table not found", null, GrpcStatusCode.of(Status.Code.NOT_FOUND), false));
+
+    assertThrows(
+        RuntimeException.class,
+        () ->
+            bigQueryService.streamCssProducts(
+                TEST_DATASET_NAME,
+                TEST_LOCATION,
+                new IterablePublisher<List<CssProduct>>(List.of(List.of(CSS_PRODUCT))),
+                FetchProfile.FULL,
+                TEST_TRANSFER_DATE));
+
+    verify(mockBigQueryWriteClient).createWriteStream(any(CreateWriteStreamRequest.class));
+  }
+
+  @Test
+  public void streamCssProducts_duplicateDatasets_throwsException() {
+    DatasetSink datasetSink = new DatasetSink(TEST_DATASET_NAME, TEST_LOCATION);
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            bigQueryService.streamCssProducts(
+                List.of(datasetSink, datasetSink),
+                new IterablePublisher<List<CssProduct>>(List.of()),
+                FetchProfile.FULL,
+                TEST_TRANSFER_DATE));
+  }
+
+  @Test
+  public void streamCssProducts_afterFailedTransfer_succeeds() throws Exception {
+    List<CssProduct> cssProducts = Arrays.asList(CSS_PRODUCT, CSS_PRODUCT, CSS_PRODUCT);
+    SettableApiFuture<AppendRowsResponse> failureFuture = SettableApiFuture.create();
+    failureFuture.setException(new IOException("Append failed"));
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong()))
+        .thenReturn(failureFuture)
+        .thenReturn(successFuture);
+    assertThrows(
+        RuntimeException.class,
+        () ->
+            bigQueryService.streamCssProducts(
+                TEST_DATASET_NAME, TEST_LOCATION, cssProducts, TEST_TRANSFER_DATE));
+
+    // Succeeds, as the failure of the previous transfer is not carried over.
+    bigQueryService.streamCssProducts(
+        TEST_DATASET_NAME, TEST_LOCATION, cssProducts, TEST_TRANSFER_DATE);
+
+    verify(mockJsonStreamWriter, times(2)).append(any(JSONArray.class), anyLong());
+  }
+
   @Test
   public void testStreamCssProducts_SingleBatch_WithSystemPropertiesSet()
       throws ExecutionException, InterruptedException, IOException, DescriptorValidationException {
@@ -638,4 +1232,171 @@ public class BigQueryServiceTest {
     System.setProperty("feedviz.insert.batch.size", TEST_INSERT_BATCH_SIZE);
     testStreamCssProducts_FailedAppend();
   }
+
+  @Test
+  public void testStreamCssProducts_StatusOnly_CreatesStatusTable()
+      throws ExecutionException, InterruptedException, IOException, DescriptorValidationException {
+    List<CssProduct> cssProducts = Arrays.asList(CSS_PRODUCT, CSS_PRODUCT, CSS_PRODUCT);
+
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    bigQueryService.streamCssProducts(
+        TEST_DATASET_NAME,
+        TEST_LOCATION,
+        cssProducts,
+        FetchProfile.STATUS_ONLY,
+        TEST_TRANSFER_DATE);
+
+    verify(mockBigQuery).getTable(TableId.of(TEST_DATASET_NAME, "css_products_status"));
+    verify(mockJsonStreamWriter, times(1)).append(any(JSONArray.class), anyLong());
+  }
+
+  @Test
+  public void getCssProductIssuesSchema() {
+    Schema schema = bigQueryService.getCssProductIssuesSchema();
+    assertEquals(
+        Field.of("code", StandardSQLTypeName.STRING), schema.getFields().get("code"));
+    assertEquals(
+        Field.newBuilder("applicable_countries", StandardSQLTypeName.STRING)
+            .setMode(Mode.REPEATED)
+            .build(),
+        schema.getFields().get("applicable_countries"));
+    assertEquals(13, schema.getFields().size());
+  }
+
+  @Test
+  public void getCssProductStatusSchema_hasNoAttributesOrIssues() {
+    Schema schema = bigQueryService.getCssProductStatusSchema();
+    assertEquals(
+        Field.of("attributes_hash", StandardSQLTypeName.INT64),
+        schema.getFields().get("attributes_hash"));
+    assertFalse(schema.getFields().stream().anyMatch(f -> f.getName().equals("attributes")));
+    assertFalse(
+        schema.getFields().stream().anyMatch(f -> f.getName().equals("item_level_issues")));
+  }
+
+  @Test
+  public void getCssProductIssueFactAsMap() {
+    ItemLevelIssue itemLevelIssue = ItemLevelIssue.newBuilder().setCode("test_code").build();
+    Map<String, Object> issueRow =
+        bigQueryService.getCssProductIssueFactAsMap(
+            CSS_PRODUCT, itemLevelIssue, TEST_TRANSFER_DATE);
+    assertEquals("test_code", issueRow.get("code"));
+    assertEquals(PRODUCT_NAME, issueRow.get("name"));
+    assertEquals(
+        bigQueryService.getTransferDateAsMicros(TEST_TRANSFER_DATE), issueRow.get("transfer_date"));
+  }
+
+  @Test
+  public void getAttributesHash() {
+    Attributes attributes = Attributes.newBuilder().setTitle("Title").build();
+    assertEquals(
+        bigQueryService.getAttributesHash(attributes),
+        bigQueryService.getAttributesHash(attributes.toBuilder().build()));
+    assertFalse(
+        bigQueryService.getAttributesHash(attributes)
+            == bigQueryService.getAttributesHash(Attributes.getDefaultInstance()));
+  }
+
+  @Test
+  public void testStreamCssProducts_NormalizedTables()
+      throws ExecutionException, InterruptedException, IOException, DescriptorValidationException {
+    List<CssProduct> cssProducts =
+        Arrays.asList(
+            CSS_PRODUCT,
+            CSS_PRODUCT.toBuilder()
+                .setCssProductStatus(
+                    CssProductStatus.newBuilder()
+                        .addItemLevelIssues(ItemLevelIssue.newBuilder().setCode("test_code")))
+                .build());
+
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    bigQueryService.setNormalizedTables(true);
+    bigQueryService.streamCssProducts(
+        TEST_DATASET_NAME, TEST_LOCATION, cssProducts, TEST_TRANSFER_DATE);
+
+    verify(mockBigQuery).getTable(TableId.of(TEST_DATASET_NAME, "css_product_status"));
+    verify(mockBigQuery).getTable(TableId.of(TEST_DATASET_NAME, "css_product_issues"));
+    verify(mockBigQuery).getTable(TableId.of(TEST_DATASET_NAME, "css_product_attributes"));
+    // One append each for the status, issues and attributes tables. Both products share a name
+    // and attributes, so only one attributes row is written.
+    verify(mockJsonStreamWriter, times(3)).append(any(JSONArray.class), anyLong());
+  }
+
+  @Test
+  public void testStreamCssProducts_NormalizedTables_UnchangedAttributesNotWritten()
+      throws ExecutionException, InterruptedException, IOException, DescriptorValidationException {
+    List<CssProduct> cssProducts = Arrays.asList(CSS_PRODUCT);
+
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+    when(mockBigQuery.getTable(TableId.of(TEST_DATASET_NAME, "css_product_attributes")))
+        .thenReturn(mockTable);
+    when(mockBigQuery.query(any(QueryJobConfiguration.class))).thenReturn(mockTableResult);
+    long attributesHash = bigQueryService.getAttributesHash(CSS_PRODUCT.getAttributes());
+    FieldValueList row =
+        FieldValueList.of(
+            List.of(
+                FieldValue.of(FieldValue.Attribute.PRIMITIVE, PRODUCT_NAME),
+                FieldValue.of(FieldValue.Attribute.PRIMITIVE, String.valueOf(attributesHash))),
+            FieldList.of(
+                Field.of("name", StandardSQLTypeName.STRING),
+                Field.of("attributes_hash", StandardSQLTypeName.INT64)));
+    when(mockTableResult.iterateAll()).thenReturn(List.of(row));
+
+    bigQueryService.setNormalizedTables(true);
+    bigQueryService.streamCssProducts(
+        TEST_DATASET_NAME, TEST_LOCATION, cssProducts, TEST_TRANSFER_DATE);
+
+    // Only the status table is appended to, as there are no issues and the attributes are known.
+    verify(mockJsonStreamWriter, times(1)).append(any(JSONArray.class), anyLong());
+  }
+
+  @Test
+  public void commitWriteStreams_commitsStreamsOfEachTable() throws IOException {
+    when(mockBigQueryWriteClient.batchCommitWriteStreams(
+            any(BatchCommitWriteStreamsRequest.class)))
+        .thenReturn(
+            BatchCommitWriteStreamsResponse.newBuilder()
+                .setCommitTime(Timestamp.getDefaultInstance())
+                .build());
+
+    bigQueryService.commitWriteStreams(
+        TEST_DATASET_NAME, Map.of(TEST_TABLE_NAME, List.of("stream_a", "stream_b")));
+
+    ArgumentCaptor<BatchCommitWriteStreamsRequest> commitRequest =
+        ArgumentCaptor.forClass(BatchCommitWriteStreamsRequest.class);
+    verify(mockBigQueryWriteClient).batchCommitWriteStreams(commitRequest.capture());
+    assertEquals(List.of("stream_a", "stream_b"), commitRequest.getValue().getWriteStreamsList());
+    assertTrue(commitRequest.getValue().getParent().endsWith("/tables/" + TEST_TABLE_NAME));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void commitWriteStreams_streamErrors_throwsException() throws IOException {
+    when(mockBigQueryWriteClient.batchCommitWriteStreams(
+            any(BatchCommitWriteStreamsRequest.class)))
+        .thenReturn(
+            BatchCommitWriteStreamsResponse.newBuilder()
+                .addStreamErrors(StorageError.newBuilder().setEntity("stream_a"))
+                .build());
+
+    bigQueryService.commitWriteStreams(
+        TEST_DATASET_NAME, Map.of(TEST_TABLE_NAME, List.of("stream_a")));
+  }
+
+  @Test
+  public void prepareCssProductsTables_normalizedTables_createsMissingTables() {
+    when(mockBigQuery.getDataset(DatasetId.of(TEST_DATASET_NAME))).thenReturn(mockDataset);
+    bigQueryService.setNormalizedTables(true);
+
+    bigQueryService.prepareCssProductsTables(TEST_DATASET_NAME, TEST_LOCATION, FetchProfile.FULL);
+
+    verify(mockBigQuery, times(3)).create(any(TableInfo.class));
+  }
 }
@@ -0,0 +1,184 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cssfeedviz.utils.CancellationToken;
+import com.google.cssfeedviz.utils.IterablePublisher;
+import com.google.shopping.css.v1.CssProduct;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.junit.Test;
+
+public class CssProductRowsProcessorTest {
+  private final CssProduct CSS_PRODUCT = CssProduct.newBuilder().setName("Test").build();
+
+  private RowBatch convert(List<CssProduct> batch) {
+    return new RowBatch(batch.size(), Map.of("css_products", new JSONArray()));
+  }
+
+  private static class CollectingSubscriber implements Flow.Subscriber<RowBatch> {
+    private final List<RowBatch> rowBatches = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final int cancelAfter;
+    private Flow.Subscription subscription;
+
+    CollectingSubscriber(int cancelAfter) {
+      this.cancelAfter = cancelAfter;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(RowBatch rowBatch) {
+      rowBatches.add(rowBatch);
+      if (rowBatches.size() == cancelAfter) {
+        subscription.cancel();
+        completion.complete(null);
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      completion.complete(null);
+    }
+  }
+
+  @Test
+  public void onNext_splitsPagesIntoBatches() throws Exception {
+    List<CssProduct> page = Collections.nCopies(250, CSS_PRODUCT);
+    CssProductRowsProcessor processor =
+        new CssProductRowsProcessor(this::convert, 100, Runnable::run, 4);
+    CollectingSubscriber subscriber = new CollectingSubscriber(-1);
+    processor.subscribe(subscriber);
+    new IterablePublisher<List<CssProduct>>(List.of(page, page), Runnable::run)
+        .subscribe(processor);
+
+    subscriber.completion.get(10, TimeUnit.SECONDS);
+    assertEquals(6, subscriber.rowBatches.size());
+    assertEquals(100, subscriber.rowBatches.get(0).productCount());
+    assertEquals(50, subscriber.rowBatches.get(2).productCount());
+  }
+
+  @Test
+  public void onNext_subscriberCancelled_stopsRequestingPages() throws Exception {
+    AtomicInteger pagesIterated = new AtomicInteger();
+    Iterable<List<CssProduct>> pages =
+        () ->
+            Stream.generate(
+                    () -> {
+                      pagesIterated.incrementAndGet();
+                      return List.of(CSS_PRODUCT);
+                    })
+                .iterator();
+    CssProductRowsProcessor processor =
+        new CssProductRowsProcessor(this::convert, 100, Runnable::run, 4);
+    CollectingSubscriber subscriber = new CollectingSubscriber(3);
+    processor.subscribe(subscriber);
+    new IterablePublisher<List<CssProduct>>(pages, Runnable::run).subscribe(processor);
+
+    subscriber.completion.get(10, TimeUnit.SECONDS);
+    assertTrue(pagesIterated.get() <= 4);
+  }
+
+  @Test
+  public void onNext_conversionFails_signalsError() {
+    CssProductRowsProcessor processor =
+        new CssProductRowsProcessor(
+            batch -> {
+              throw new IllegalStateException("Failed to convert");
+            },
+            100,
+            Runnable::run,
+            4);
+    CollectingSubscriber subscriber = new CollectingSubscriber(-1);
+    processor.subscribe(subscriber);
+    new IterablePublisher<List<CssProduct>>(List.of(List.of(CSS_PRODUCT)), Runnable::run)
+        .subscribe(processor);
+
+    CompletionException exception =
+        assertThrows(
+            CompletionException.class, () -> subscriber.completion.join());
+    assertTrue(exception.getCause() instanceof IllegalStateException);
+  }
+
+  @Test
+  public void onNext_conversionFails_cancelsToken() {
+    IllegalStateException failure = new IllegalStateException("Failed to convert");
+    CancellationToken cancellationToken = new CancellationToken();
+    CssProductRowsProcessor processor =
+        new CssProductRowsProcessor(
+            batch -> {
+              throw failure;
+            },
+            100,
+            Runnable::run,
+            4,
+            cancellationToken);
+    processor.subscribe(new CollectingSubscriber(-1));
+    new IterablePublisher<List<CssProduct>>(List.of(List.of(CSS_PRODUCT)), Runnable::run)
+        .subscribe(processor);
+
+    assertSame(failure, cancellationToken.getCause());
+  }
+
+  @Test
+  public void onNext_tokenCancelled_stopsRequestingPagesAndSignalsError() throws Exception {
+    AtomicInteger pagesIterated = new AtomicInteger();
+    CancellationToken cancellationToken = new CancellationToken();
+    Iterable<List<CssProduct>> pages =
+        () ->
+            Stream.generate(
+                    () -> {
+                      if (pagesIterated.incrementAndGet() == 3) {
+                        cancellationToken.cancel(new IllegalStateException("Failed to append"));
+                      }
+                      return List.of(CSS_PRODUCT);
+                    })
+                .iterator();
+    CssProductRowsProcessor processor =
+        new CssProductRowsProcessor(this::convert, 100, Runnable::run, 4, cancellationToken);
+    CollectingSubscriber subscriber = new CollectingSubscriber(-1);
+    processor.subscribe(subscriber);
+    new IterablePublisher<List<CssProduct>>(pages, Runnable::run).subscribe(processor);
+
+    CompletionException exception =
+        assertThrows(CompletionException.class, () -> subscriber.completion.join());
+    assertEquals("Failed to append", exception.getCause().getMessage());
+    assertEquals(3, pagesIterated.get());
+  }
+}
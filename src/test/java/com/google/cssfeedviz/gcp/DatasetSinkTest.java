@@ -0,0 +1,40 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.util.List;
+import org.junit.Test;
+
+public class DatasetSinkTest {
+  @Test
+  public void parseList_returnsDatasetsInOrder() {
+    assertEquals(
+        List.of(new DatasetSink("css_feedviz_eu", "EU"), new DatasetSink("css_feedviz_us", "US")),
+        DatasetSink.parseList("css_feedviz_eu@EU, css_feedviz_us@US"));
+  }
+
+  @Test
+  public void parseList_missingLocation_throwsException() {
+    assertThrows(IllegalArgumentException.class, () -> DatasetSink.parseList("css_feedviz_eu"));
+  }
+
+  @Test
+  public void parseList_empty_throwsException() {
+    assertThrows(IllegalArgumentException.class, () -> DatasetSink.parseList(" , "));
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeadLetterFileTest {
+  private final String TABLE_NAME = "css_products";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path deadLetterPath;
+
+  @Before
+  public void setUp() {
+    deadLetterPath = temporaryFolder.getRoot().toPath().resolve("dead_letters.ndjson");
+  }
+
+  @Test
+  public void write_flushesEveryRow() throws Exception {
+    DeadLetterFile deadLetterFile = new DeadLetterFile(deadLetterPath);
+
+    deadLetterFile.write(TABLE_NAME, "invalid date", Map.of("name", "product-1"));
+
+    // The row is on disk before the file is closed.
+    List<String> lines = Files.readAllLines(deadLetterPath);
+    assertEquals(1, lines.size());
+    JSONObject deadLetter = new JSONObject(lines.get(0));
+    assertEquals(TABLE_NAME, deadLetter.getString("table"));
+    assertEquals("invalid date", deadLetter.getString("reason"));
+    assertEquals("product-1", deadLetter.getJSONObject("row").getString("name"));
+    deadLetterFile.close();
+  }
+
+  @Test
+  public void write_overMaxRowCount_throwsException() throws Exception {
+    try (DeadLetterFile deadLetterFile = new DeadLetterFile(deadLetterPath, 1)) {
+      deadLetterFile.write(TABLE_NAME, "invalid date", Map.of("name", "product-1"));
+
+      assertThrows(
+          IllegalStateException.class,
+          () -> deadLetterFile.write(TABLE_NAME, "invalid date", Map.of("name", "product-2")));
+      assertEquals(1, deadLetterFile.getRowCount());
+    }
+  }
+
+  @Test
+  public void close_withoutRows_createsNoFile() throws Exception {
+    new DeadLetterFile(deadLetterPath).close();
+
+    assertFalse(Files.exists(deadLetterPath));
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.shopping.css.v1.CssProduct;
+import com.google.shopping.css.v1.CssProductStatus;
+import com.google.shopping.css.v1.CssProductStatus.ItemLevelIssue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import org.junit.Test;
+
+public class IssueRollupTest {
+  private CssProduct getCssProduct(ItemLevelIssue... itemLevelIssues) {
+    return CssProduct.newBuilder()
+        .setCssProductStatus(
+            CssProductStatus.newBuilder().addAllItemLevelIssues(List.of(itemLevelIssues)))
+        .build();
+  }
+
+  private ItemLevelIssue getItemLevelIssue(String code, String attribute, String... countries) {
+    return ItemLevelIssue.newBuilder()
+        .setCode(code)
+        .setServability("disapproved")
+        .setDestination("CSS")
+        .setAttribute(attribute)
+        .addAllApplicableCountries(List.of(countries))
+        .build();
+  }
+
+  @Test
+  public void add_countsProductsPerIssueAndCountry() {
+    IssueRollup issueRollup = new IssueRollup();
+
+    issueRollup.add(
+        List.of(
+            getCssProduct(getItemLevelIssue("image_too_small", "image_link", "DE", "FR")),
+            getCssProduct(getItemLevelIssue("image_too_small", "image_link", "DE")),
+            getCssProduct()));
+
+    assertEquals(
+        Map.of(
+            new IssueRollup.Key("image_too_small", "disapproved", "CSS", "DE"), 2L,
+            new IssueRollup.Key("image_too_small", "disapproved", "CSS", "FR"), 1L),
+        issueRollup.getProductCounts());
+  }
+
+  @Test
+  public void add_sameIssueOnSeveralAttributes_countsProductOnce() {
+    IssueRollup issueRollup = new IssueRollup();
+
+    issueRollup.add(
+        List.of(
+            getCssProduct(
+                getItemLevelIssue("missing_value", "gtin"),
+                getItemLevelIssue("missing_value", "mpn"))));
+
+    assertEquals(
+        Map.of(new IssueRollup.Key("missing_value", "disapproved", "CSS", null), 1L),
+        issueRollup.getProductCounts());
+  }
+
+  @Test
+  public void addProductCounts_addsUpRollups() {
+    IssueRollup.Key key = new IssueRollup.Key("image_too_small", "disapproved", "CSS", "DE");
+    IssueRollup workerIssueRollup = new IssueRollup();
+    workerIssueRollup.add(
+        List.of(getCssProduct(getItemLevelIssue("image_too_small", "image_link", "DE"))));
+    IssueRollup issueRollup = new IssueRollup();
+
+    issueRollup.addProductCounts(workerIssueRollup.getProductCounts());
+    issueRollup.addProductCounts(Map.of(key, 2L));
+
+    assertEquals(Map.of(key, 3L), issueRollup.getProductCounts());
+  }
+
+  @Test
+  public void trackConversion_concurrentBatches_countsEveryProduct() {
+    IssueRollup issueRollup = new IssueRollup();
+    List<CssProduct> batch =
+        List.of(
+            getCssProduct(getItemLevelIssue("image_too_small", "image_link", "DE")),
+            getCssProduct(getItemLevelIssue("image_too_small", "image_link", "DE")));
+    Function<List<CssProduct>, RowBatch> converter =
+        issueRollup.trackConversion(cssProducts -> new RowBatch(0, Map.of()));
+
+    List<CompletableFuture<RowBatch>> conversions = new ArrayList<CompletableFuture<RowBatch>>();
+    for (int i = 0; i < 50; i++) {
+      conversions.add(CompletableFuture.supplyAsync(() -> converter.apply(batch)));
+    }
+    conversions.forEach(CompletableFuture::join);
+
+    assertEquals(1, issueRollup.getProductCounts().size());
+    assertEquals(
+        Long.valueOf(100),
+        issueRollup
+            .getProductCounts()
+            .get(new IssueRollup.Key("image_too_small", "disapproved", "CSS", "DE")));
+  }
+}
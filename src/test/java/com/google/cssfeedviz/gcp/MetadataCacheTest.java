@@ -0,0 +1,119 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetadataCacheTest {
+  private final String KEY = "table:css_feedviz.css_products";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void load_missingFile_isEmpty() {
+    Path path = temporaryFolder.getRoot().toPath().resolve(MetadataCache.FILE_NAME);
+
+    MetadataCache metadataCache = MetadataCache.load(path);
+
+    assertFalse(metadataCache.contains(KEY));
+    assertFalse(Files.exists(path));
+  }
+
+  @Test
+  public void put_isContainedAfterReload() {
+    Path path = temporaryFolder.getRoot().toPath().resolve(MetadataCache.FILE_NAME);
+
+    MetadataCache.load(path).put(KEY);
+    MetadataCache metadataCache = MetadataCache.load(path);
+
+    assertTrue(metadataCache.contains(KEY));
+    assertFalse(metadataCache.contains("dataset:css_feedviz"));
+  }
+
+  @Test
+  public void remove_isNotContainedAfterReload() {
+    Path path = temporaryFolder.getRoot().toPath().resolve(MetadataCache.FILE_NAME);
+    MetadataCache.load(path).put(KEY);
+
+    MetadataCache.load(path).remove(KEY);
+
+    assertFalse(MetadataCache.load(path).contains(KEY));
+  }
+
+  @Test
+  public void removeWithPrefix_removesMatchingKeys() {
+    Path path = temporaryFolder.getRoot().toPath().resolve(MetadataCache.FILE_NAME);
+    MetadataCache metadataCache = MetadataCache.load(path);
+    metadataCache.put(KEY);
+    metadataCache.put(KEY + ":schema:1a2b");
+    metadataCache.put("table:css_feedviz_eu.css_products");
+
+    metadataCache.removeWithPrefix("table:css_feedviz.");
+
+    MetadataCache reloadedCache = MetadataCache.load(path);
+    assertFalse(reloadedCache.contains(KEY));
+    assertFalse(reloadedCache.contains(KEY + ":schema:1a2b"));
+    assertTrue(reloadedCache.contains("table:css_feedviz_eu.css_products"));
+  }
+
+  @Test
+  public void load_expiredEntry_isNotContained() throws Exception {
+    Path path = temporaryFolder.getRoot().toPath().resolve(MetadataCache.FILE_NAME);
+    Files.writeString(path, "{\"entries\":{\"" + KEY + "\":0}}");
+
+    assertFalse(MetadataCache.load(path).contains(KEY));
+  }
+
+  @Test
+  public void load_unreadableFile_isEmpty() throws Exception {
+    Path path = temporaryFolder.getRoot().toPath().resolve(MetadataCache.FILE_NAME);
+    Files.writeString(path, "not json");
+
+    MetadataCache metadataCache = MetadataCache.load(path);
+    metadataCache.put(KEY);
+
+    assertTrue(MetadataCache.load(path).contains(KEY));
+  }
+
+  @Test
+  public void contains_olderThanMaxAge_isNotContained() throws Exception {
+    Path path = temporaryFolder.getRoot().toPath().resolve(MetadataCache.FILE_NAME);
+    long checkTime = Instant.now().minus(Duration.ofHours(2)).toEpochMilli();
+    Files.writeString(path, "{\"entries\":{\"" + KEY + "\":" + checkTime + "}}");
+
+    assertTrue(MetadataCache.load(path, Duration.ofHours(3)).contains(KEY));
+    assertFalse(MetadataCache.load(path, Duration.ofHours(1)).contains(KEY));
+  }
+
+  @Test
+  public void inMemory_put_isContainedWithoutFile() {
+    MetadataCache metadataCache = MetadataCache.inMemory(MetadataCache.DEFAULT_MAX_AGE);
+
+    metadataCache.put(KEY);
+
+    assertTrue(metadataCache.contains(KEY));
+    assertNull(metadataCache.getPath());
+  }
+}
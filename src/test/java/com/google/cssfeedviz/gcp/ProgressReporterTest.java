@@ -0,0 +1,164 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cssfeedviz.css.FetchProfile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProgressReporterTest {
+  private static final Duration INTERVAL = Duration.ofHours(1);
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final AtomicLong fetchedProducts = new AtomicLong();
+  private final AtomicLong appendedProducts = new AtomicLong();
+  private final AtomicLong appendedRows = new AtomicLong();
+  private Path statusFile;
+  private Path stateFile;
+
+  @Before
+  public void setUp() {
+    statusFile = temporaryFolder.getRoot().toPath().resolve("status.json");
+    stateFile = temporaryFolder.getRoot().toPath().resolve(ProgressReporter.STATE_FILE_NAME);
+  }
+
+  private ProgressReporter.Progress start(ProgressReporter progressReporter) {
+    return progressReporter.start(
+        FetchProfile.FULL,
+        fetchedProducts::get,
+        appendedProducts::get,
+        appendedRows::get,
+        () -> 1024);
+  }
+
+  @Test
+  public void getStatus_reportsCountsAndRates() {
+    ProgressReporter.Progress progress =
+        start(new ProgressReporter(INTERVAL, statusFile, stateFile, 0));
+    long startNanos = System.nanoTime();
+    fetchedProducts.set(300);
+    appendedProducts.set(200);
+    appendedRows.set(200);
+
+    JSONObject status = progress.getStatus("RUNNING", startNanos + 10_000_000_000L);
+
+    assertEquals(300, status.getLong("products_fetched"));
+    assertEquals(200, status.getLong("products_appended"));
+    assertEquals(20, status.getLong("current_rows_per_second"));
+    assertEquals(1024, status.getLong("in_flight_bytes"));
+    assertFalse(status.has("eta_seconds"));
+    progress.finish(null);
+  }
+
+  @Test
+  public void getStatus_measuresCurrentRateSincePreviousStatus() {
+    ProgressReporter.Progress progress =
+        start(new ProgressReporter(INTERVAL, statusFile, null, 0));
+    long startNanos = System.nanoTime();
+    appendedRows.set(1000);
+    progress.getStatus("RUNNING", startNanos + 10_000_000_000L);
+    appendedRows.set(1100);
+
+    JSONObject status = progress.getStatus("RUNNING", startNanos + 20_000_000_000L);
+
+    assertEquals(10, status.getLong("current_rows_per_second"));
+    assertEquals(55, status.getLong("average_rows_per_second"));
+    progress.finish(null);
+  }
+
+  @Test
+  public void getStatus_expectedProducts_estimatesRemainingTime() {
+    ProgressReporter.Progress progress =
+        start(new ProgressReporter(INTERVAL, statusFile, stateFile, 1000));
+    long startNanos = System.nanoTime();
+    appendedProducts.set(250);
+
+    JSONObject status = progress.getStatus("RUNNING", startNanos + 10_000_000_000L);
+
+    assertEquals(1000, status.getLong("expected_products"));
+    assertEquals(30, status.getLong("eta_seconds"));
+    progress.finish(null);
+  }
+
+  @Test
+  public void finish_succeeded_recordsProductCountForNextTransfer() throws Exception {
+    ProgressReporter progressReporter = new ProgressReporter(INTERVAL, statusFile, stateFile, 0);
+    ProgressReporter.Progress progress = start(progressReporter);
+    fetchedProducts.set(5000);
+
+    progress.finish(null);
+
+    assertEquals("SUCCEEDED", new JSONObject(Files.readString(statusFile)).getString("state"));
+    assertEquals(5000, start(progressReporter).getExpectedProductCount());
+  }
+
+  @Test
+  public void finish_failed_keepsPreviousProductCount() throws Exception {
+    ProgressReporter.saveProductCount(stateFile, FetchProfile.FULL, 5000);
+    ProgressReporter.Progress progress =
+        start(new ProgressReporter(INTERVAL, statusFile, stateFile, 0));
+    fetchedProducts.set(10);
+
+    progress.finish(new IllegalStateException("Failed to append"));
+
+    assertEquals("FAILED", new JSONObject(Files.readString(statusFile)).getString("state"));
+    assertEquals(5000, ProgressReporter.loadProductCount(stateFile, FetchProfile.FULL));
+  }
+
+  @Test
+  public void loadProductCount_otherFetchProfile_returnsZero() {
+    ProgressReporter.saveProductCount(stateFile, FetchProfile.FULL, 5000);
+
+    assertEquals(0, ProgressReporter.loadProductCount(stateFile, FetchProfile.ISSUES_ONLY));
+  }
+
+  @Test
+  public void estimateInFlightBytes_usesAverageRowSize() {
+    assertEquals(2000, ProgressReporter.estimateInFlightBytes(100, 80, 10000));
+    assertEquals(0, ProgressReporter.estimateInFlightBytes(0, 0, 0));
+  }
+
+  @Test
+  public void formatStatus_includesProgressAndEta() {
+    JSONObject status =
+        new JSONObject()
+            .put("state", "RUNNING")
+            .put("products_fetched", 600)
+            .put("products_appended", 500)
+            .put("expected_products", 1000)
+            .put("current_rows_per_second", 50)
+            .put("average_rows_per_second", 40)
+            .put("in_flight_bytes", 2048)
+            .put("eta_seconds", 3725);
+
+    String line = ProgressReporter.formatStatus(status);
+
+    assertTrue(line.contains("500 appended of about 1000 (50.0%)"));
+    assertTrue(line.contains("50 rows/s now, 40 rows/s average, 2048 bytes in flight"));
+    assertTrue(line.endsWith("ETA 1:02:05"));
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class RowBatchCodecTest {
+  private final String TABLE_NAME = "css_products";
+
+  private static RowBatch roundTrip(RowBatch rowBatch) throws IOException {
+    return RowBatchCodec.decode(RowBatchCodec.encode(rowBatch));
+  }
+
+  @Test
+  public void decode_keepsValueTypes() throws Exception {
+    Map<String, Object> price = new LinkedHashMap<String, Object>();
+    price.put("amount_micros", 1990000L);
+    price.put("currency_code", "EUR");
+    Map<String, Object> row = new LinkedHashMap<String, Object>();
+    row.put("name", "accounts/1/cssProducts/1");
+    row.put("number_of_offers", 3L);
+    row.put("multipack", 2);
+    row.put("weight", 1.5);
+    row.put("rating", new BigDecimal("4.50"));
+    row.put("is_bundle", true);
+    row.put("price", price);
+    row.put("included_destinations", List.of("Shopping", "DisplayAds"));
+
+    RowBatch decoded = roundTrip(new RowBatch(1, Map.of(TABLE_NAME, new JSONArray(List.of(row)))));
+
+    assertEquals(1, decoded.productCount());
+    JSONObject decodedRow = decoded.rows().get(TABLE_NAME).getJSONObject(0);
+    assertEquals(Long.valueOf(3), decodedRow.get("number_of_offers"));
+    assertEquals(Integer.valueOf(2), decodedRow.get("multipack"));
+    assertEquals(Double.valueOf(1.5), decodedRow.get("weight"));
+    assertEquals(new BigDecimal("4.50"), decodedRow.get("rating"));
+    assertEquals(Boolean.TRUE, decodedRow.get("is_bundle"));
+    assertEquals(Long.valueOf(1990000), decodedRow.getJSONObject("price").get("amount_micros"));
+    assertEquals(
+        List.of("Shopping", "DisplayAds"),
+        decodedRow.getJSONArray("included_destinations").toList());
+    assertEquals(new JSONObject(row).toMap(), decodedRow.toMap());
+  }
+
+  @Test
+  public void decode_keepsNullsInArrays() throws Exception {
+    JSONArray rows =
+        new JSONArray().put(new JSONObject().put("values", new JSONArray().put(JSONObject.NULL)));
+
+    RowBatch decoded = roundTrip(new RowBatch(1, Map.of(TABLE_NAME, rows)));
+
+    assertSame(
+        JSONObject.NULL,
+        decoded.rows().get(TABLE_NAME).getJSONObject(0).getJSONArray("values").get(0));
+  }
+
+  @Test
+  public void decode_rowsShareRepeatedStrings() throws Exception {
+    JSONArray rows =
+        new JSONArray(
+            List.of(
+                Map.of("content_language", new String("de")),
+                Map.of("content_language", new String("de"))));
+
+    RowBatch decoded = roundTrip(new RowBatch(2, Map.of(TABLE_NAME, rows)));
+
+    JSONArray decodedRows = decoded.rows().get(TABLE_NAME);
+    assertSame(
+        decodedRows.getJSONObject(0).getString("content_language"),
+        decodedRows.getJSONObject(1).getString("content_language"));
+  }
+
+  @Test
+  public void encode_unsupportedValue_throwsException() {
+    JSONArray rows = new JSONArray().put(new JSONObject().put("value", new Object()));
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> RowBatchCodec.encode(new RowBatch(1, Map.of(TABLE_NAME, rows))));
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Strings;
+import com.google.cssfeedviz.gcp.RowSizeGuard.OversizedRowPolicy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RowSizeGuardTest {
+  private final String TABLE_NAME = "css_products";
+  private final long MAX_REQUEST_BYTES = 1000;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private JSONObject getRow(String name, int descriptionLength) {
+    return new JSONObject(
+        Map.of(
+            "name",
+            name,
+            "attributes",
+            Map.of("description", Strings.repeat("d", descriptionLength))));
+  }
+
+  private JSONArray getRows(int count, int descriptionLength) {
+    JSONArray rows = new JSONArray();
+    for (int i = 0; i < count; i++) {
+      rows.put(getRow("product" + i, descriptionLength));
+    }
+    return rows;
+  }
+
+  @Test
+  public void split_underLimit_returnsRowsUnchanged() {
+    RowSizeGuard rowSizeGuard = new RowSizeGuard(MAX_REQUEST_BYTES, OversizedRowPolicy.FAIL, null);
+    JSONArray rows = getRows(5, 10);
+    List<JSONArray> parts = rowSizeGuard.split(TABLE_NAME, rows);
+    assertEquals(1, parts.size());
+    assertTrue(rows == parts.get(0));
+  }
+
+  @Test
+  public void split_overLimit_splitsIntoPartsUnderLimitInOrder() {
+    RowSizeGuard rowSizeGuard = new RowSizeGuard(MAX_REQUEST_BYTES, OversizedRowPolicy.FAIL, null);
+    JSONArray rows = getRows(10, 300);
+
+    List<JSONArray> parts = rowSizeGuard.split(TABLE_NAME, rows);
+
+    assertTrue(parts.size() > 1);
+    int row = 0;
+    for (JSONArray part : parts) {
+      assertTrue(rowSizeGuard.estimateSize(part) <= MAX_REQUEST_BYTES);
+      for (int i = 0; i < part.length(); i++) {
+        assertEquals("product" + row++, part.getJSONObject(i).getString("name"));
+      }
+    }
+    assertEquals(10, row);
+  }
+
+  @Test
+  public void split_oversizedRow_failPolicy_throwsException() {
+    RowSizeGuard rowSizeGuard = new RowSizeGuard(MAX_REQUEST_BYTES, OversizedRowPolicy.FAIL, null);
+    assertThrows(
+        IllegalStateException.class, () -> rowSizeGuard.split(TABLE_NAME, getRows(1, 5000)));
+  }
+
+  @Test
+  public void split_oversizedRow_truncatePolicy_truncatesLongestValue() {
+    RowSizeGuard rowSizeGuard =
+        new RowSizeGuard(MAX_REQUEST_BYTES, OversizedRowPolicy.TRUNCATE, null);
+    JSONArray rows = getRows(1, 5000);
+    rows.put(getRow("small", 10));
+
+    List<JSONArray> parts = rowSizeGuard.split(TABLE_NAME, rows);
+
+    assertEquals(2, parts.size());
+    JSONObject truncatedRow = parts.get(0).getJSONObject(0);
+    assertEquals("product0", truncatedRow.getString("name"));
+    assertTrue(
+        truncatedRow.getJSONObject("attributes").getString("description").endsWith("..."));
+    assertTrue(rowSizeGuard.estimateSize(parts.get(0)) <= MAX_REQUEST_BYTES);
+  }
+
+  @Test
+  public void split_oversizedRow_deadLetterPolicy_divertsRow() throws Exception {
+    Path deadLetterPath = temporaryFolder.getRoot().toPath().resolve("dead_letters.ndjson");
+    try (DeadLetterFile deadLetterFile = new DeadLetterFile(deadLetterPath)) {
+      RowSizeGuard rowSizeGuard =
+          new RowSizeGuard(MAX_REQUEST_BYTES, OversizedRowPolicy.DEAD_LETTER, deadLetterFile);
+      JSONArray rows = getRows(1, 5000);
+      rows.put(getRow("small", 10));
+
+      List<JSONArray> parts = rowSizeGuard.split(TABLE_NAME, rows);
+
+      assertEquals(1, parts.size());
+      assertEquals("small", parts.get(0).getJSONObject(0).getString("name"));
+      assertEquals(1, deadLetterFile.getRowCount());
+    }
+    JSONObject deadLetter = new JSONObject(Files.readAllLines(deadLetterPath).get(0));
+    assertEquals(TABLE_NAME, deadLetter.getString("table"));
+    assertEquals("product0", deadLetter.getJSONObject("row").getString("name"));
+  }
+
+  @Test
+  public void constructor_deadLetterPolicyWithoutFile_throwsException() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new RowSizeGuard(MAX_REQUEST_BYTES, OversizedRowPolicy.DEAD_LETTER, null));
+  }
+
+  @Test
+  public void estimateSize_countsUtf8Bytes() {
+    RowSizeGuard rowSizeGuard = new RowSizeGuard(MAX_REQUEST_BYTES, OversizedRowPolicy.FAIL, null);
+    assertFalse(rowSizeGuard.estimateSize("é") == rowSizeGuard.estimateSize("e"));
+  }
+
+  @Test
+  public void oversizedRowPolicy_fromName() {
+    assertEquals(OversizedRowPolicy.DEAD_LETTER, OversizedRowPolicy.fromName("dead-letter"));
+    assertEquals(OversizedRowPolicy.TRUNCATE, OversizedRowPolicy.fromName("truncate"));
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.Field.Mode;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import java.util.List;
+import org.junit.Test;
+
+public class SchemaDiffTest {
+  private final Field NAME_FIELD = Field.of("name", StandardSQLTypeName.STRING);
+  private final Field TITLE_FIELD = Field.of("title", StandardSQLTypeName.STRING);
+  private final Field BRAND_FIELD = Field.of("brand", StandardSQLTypeName.STRING);
+
+  @Test
+  public void of_sameSchema_hasNoChanges() {
+    Schema schema =
+        Schema.of(NAME_FIELD, Field.of("attributes", StandardSQLTypeName.STRUCT, TITLE_FIELD));
+
+    SchemaDiff schemaDiff = SchemaDiff.of(schema, schema);
+
+    assertFalse(schemaDiff.hasChanges());
+    assertEquals(schema, schemaDiff.getMergedSchema());
+    assertTrue(schemaDiff.getIncompatibleFields().isEmpty());
+  }
+
+  @Test
+  public void of_missingFields_addsThemAfterExistingFields() {
+    Schema currentSchema =
+        Schema.of(Field.of("attributes", StandardSQLTypeName.STRUCT, TITLE_FIELD), NAME_FIELD);
+    Schema desiredSchema =
+        Schema.of(
+            NAME_FIELD,
+            Field.newBuilder("disapproved_countries", StandardSQLTypeName.STRING)
+                .setMode(Mode.REPEATED)
+                .build(),
+            Field.of("attributes", StandardSQLTypeName.STRUCT, BRAND_FIELD, TITLE_FIELD));
+
+    SchemaDiff schemaDiff = SchemaDiff.of(currentSchema, desiredSchema);
+
+    assertTrue(schemaDiff.hasChanges());
+    assertEquals(List.of("attributes.brand", "disapproved_countries"), schemaDiff.getAddedFields());
+    assertEquals(
+        Schema.of(
+            Field.of("attributes", StandardSQLTypeName.STRUCT, TITLE_FIELD, BRAND_FIELD),
+            NAME_FIELD,
+            desiredSchema.getFields().get("disapproved_countries")),
+        schemaDiff.getMergedSchema());
+  }
+
+  @Test
+  public void of_requiredFieldMadeNullable_relaxesField() {
+    Schema currentSchema =
+        Schema.of(
+            Field.newBuilder("name", StandardSQLTypeName.STRING).setMode(Mode.REQUIRED).build());
+    Schema desiredSchema = Schema.of(NAME_FIELD);
+
+    SchemaDiff schemaDiff = SchemaDiff.of(currentSchema, desiredSchema);
+
+    assertTrue(schemaDiff.hasChanges());
+    assertEquals(List.of("name"), schemaDiff.getRelaxedFields());
+    assertEquals(
+        Schema.of(
+            Field.newBuilder("name", StandardSQLTypeName.STRING).setMode(Mode.NULLABLE).build()),
+        schemaDiff.getMergedSchema());
+  }
+
+  @Test
+  public void of_changedTypeOrAddedRequiredField_isIncompatible() {
+    Schema currentSchema = Schema.of(Field.of("name", StandardSQLTypeName.INT64));
+    Schema desiredSchema =
+        Schema.of(
+            NAME_FIELD,
+            Field.newBuilder("feed_label", StandardSQLTypeName.STRING)
+                .setMode(Mode.REQUIRED)
+                .build());
+
+    SchemaDiff schemaDiff = SchemaDiff.of(currentSchema, desiredSchema);
+
+    assertFalse(schemaDiff.hasChanges());
+    assertEquals(currentSchema, schemaDiff.getMergedSchema());
+    assertEquals(2, schemaDiff.getIncompatibleFields().size());
+  }
+
+  @Test
+  public void of_fieldsMissingFromDesiredSchema_areKept() {
+    Schema currentSchema = Schema.of(NAME_FIELD, TITLE_FIELD);
+
+    SchemaDiff schemaDiff = SchemaDiff.of(currentSchema, Schema.of(NAME_FIELD));
+
+    assertFalse(schemaDiff.hasChanges());
+    assertEquals(currentSchema, schemaDiff.getMergedSchema());
+  }
+}
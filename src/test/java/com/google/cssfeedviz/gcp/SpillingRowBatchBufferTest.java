@@ -0,0 +1,136 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cssfeedviz.utils.IterablePublisher;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillingRowBatchBufferTest {
+  private final String TABLE_NAME = "css_products";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static class CollectingSubscriber implements Flow.Subscriber<RowBatch> {
+    private final List<RowBatch> rowBatches = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(RowBatch rowBatch) {
+      rowBatches.add(rowBatch);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      completion.complete(null);
+    }
+  }
+
+  private List<RowBatch> getRowBatches(int count) {
+    List<RowBatch> rowBatches = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      rowBatches.add(
+          new RowBatch(i, Map.of(TABLE_NAME, new JSONArray().put(Map.of("name", "product" + i)))));
+    }
+    return rowBatches;
+  }
+
+  @Test
+  public void onNext_beyondMemoryLimit_spillsAndReplaysInOrder() throws Exception {
+    // Segments of 64 bytes hold a single batch each, so replay crosses segment boundaries.
+    SpillingRowBatchBuffer spillBuffer =
+        new SpillingRowBatchBuffer(temporaryFolder.getRoot().toPath(), 2, 64, Runnable::run);
+    CollectingSubscriber subscriber = new CollectingSubscriber();
+    spillBuffer.subscribe(subscriber);
+    new IterablePublisher<RowBatch>(getRowBatches(10), Runnable::run).subscribe(spillBuffer);
+
+    assertEquals(8, spillBuffer.getSpilledBatchCount());
+    assertTrue(subscriber.rowBatches.isEmpty());
+
+    subscriber.subscription.request(3);
+    assertEquals(3, subscriber.rowBatches.size());
+    subscriber.subscription.request(Long.MAX_VALUE);
+    subscriber.completion.get(10, TimeUnit.SECONDS);
+
+    assertEquals(10, subscriber.rowBatches.size());
+    for (int i = 0; i < 10; i++) {
+      RowBatch rowBatch = subscriber.rowBatches.get(i);
+      assertEquals(i, rowBatch.productCount());
+      assertEquals(
+          "product" + i, rowBatch.rows().get(TABLE_NAME).getJSONObject(0).getString("name"));
+    }
+  }
+
+  @Test
+  public void onComplete_deletesSpillSegments() throws Exception {
+    Path spillDir = temporaryFolder.getRoot().toPath();
+    SpillingRowBatchBuffer spillBuffer = new SpillingRowBatchBuffer(spillDir, 1, Runnable::run);
+    CollectingSubscriber subscriber = new CollectingSubscriber();
+    spillBuffer.subscribe(subscriber);
+    new IterablePublisher<RowBatch>(getRowBatches(5), Runnable::run).subscribe(spillBuffer);
+    subscriber.subscription.request(Long.MAX_VALUE);
+    subscriber.completion.get(10, TimeUnit.SECONDS);
+
+    try (Stream<Path> files = Files.list(spillDir)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  public void cancel_stopsReplayAndDeletesSpillSegments() throws Exception {
+    Path spillDir = temporaryFolder.getRoot().toPath();
+    SpillingRowBatchBuffer spillBuffer = new SpillingRowBatchBuffer(spillDir, 1, Runnable::run);
+    CollectingSubscriber subscriber = new CollectingSubscriber();
+    spillBuffer.subscribe(subscriber);
+    new IterablePublisher<RowBatch>(getRowBatches(5), Runnable::run).subscribe(spillBuffer);
+
+    subscriber.subscription.request(1);
+    subscriber.subscription.cancel();
+    subscriber.subscription.request(5);
+
+    assertEquals(1, subscriber.rowBatches.size());
+    assertFalse(subscriber.completion.isDone());
+    try (Stream<Path> files = Files.list(spillDir)) {
+      assertEquals(0, files.count());
+    }
+  }
+}
@@ -0,0 +1,434 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.Exceptions.AppendSerializationError;
+import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableSchema;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.cssfeedviz.utils.AdaptiveRateLimiter;
+import io.grpc.Status;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedStatic;
+import org.mockito.stubbing.Answer;
+
+public class TableStreamWriterTest {
+  private final TableId TABLE_ID = TableId.of("test-project", "TEST_DATASET", "TEST_TABLE");
+  private final String TEST_STREAM_NAME = "TEST_STREAM";
+  private final JSONArray ROWS = new JSONArray(List.of(Map.of("name", "a"), Map.of("name", "b")));
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private MockedStatic<JsonStreamWriter> mockedStaticJsonStreamWriter;
+  private BigQueryWriteClient mockBigQueryWriteClient;
+  private JsonStreamWriter mockJsonStreamWriter;
+
+  @Before
+  public void setUp() throws Exception {
+    mockBigQueryWriteClient = mock(BigQueryWriteClient.class);
+    when(mockBigQueryWriteClient.createWriteStream(any(CreateWriteStreamRequest.class)))
+        .thenAnswer(
+            invocation ->
+                WriteStream.newBuilder()
+                    .setName(TEST_STREAM_NAME)
+                    .setType(
+                        invocation
+                            .getArgument(0, CreateWriteStreamRequest.class)
+                            .getWriteStream()
+                            .getType())
+                    .setTableSchema(TableSchema.getDefaultInstance())
+                    .build());
+
+    JsonStreamWriter.Builder mockJsonStreamWriterBuilder = mock(JsonStreamWriter.Builder.class);
+    mockJsonStreamWriter = mock(JsonStreamWriter.class);
+    mockedStaticJsonStreamWriter = mockStatic(JsonStreamWriter.class);
+    mockedStaticJsonStreamWriter
+        .when(
+            () ->
+                JsonStreamWriter.newBuilder(anyString(), any(BigQueryWriteClient.class)))
+        .thenReturn(mockJsonStreamWriterBuilder);
+    when(mockJsonStreamWriterBuilder.build()).thenReturn(mockJsonStreamWriter);
+  }
+
+  @After
+  public void tearDown() {
+    mockedStaticJsonStreamWriter.close();
+  }
+
+  @Test
+  public void append_tracksOffsets() throws Exception {
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(mockBigQueryWriteClient, TABLE_ID, Runnable::run);
+    tableWriter.append(ROWS);
+    tableWriter.append(ROWS);
+    tableWriter.complete().join();
+
+    verify(mockJsonStreamWriter).append(ROWS, 0);
+    verify(mockJsonStreamWriter).append(ROWS, 2);
+    verify(mockJsonStreamWriter).close();
+    assertEquals(4, tableWriter.getRowCount());
+    assertEquals(4, tableWriter.getAcknowledgedRowCount());
+  }
+
+  @Test
+  public void append_completedAppends_notRetained() throws Exception {
+    SettableApiFuture<AppendRowsResponse> pendingFuture = SettableApiFuture.create();
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(0L))).thenReturn(successFuture);
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(2L))).thenReturn(pendingFuture);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(mockBigQueryWriteClient, TABLE_ID, Runnable::run);
+    tableWriter.append(ROWS);
+    tableWriter.append(ROWS);
+
+    assertEquals(1, tableWriter.getPendingAppendCount());
+    pendingFuture.set(AppendRowsResponse.newBuilder().build());
+    tableWriter.complete().join();
+    assertEquals(0, tableWriter.getPendingAppendCount());
+  }
+
+  @Test
+  public void complete_appendFailedBeforeCompletion_completesExceptionally() throws Exception {
+    SettableApiFuture<AppendRowsResponse> failureFuture = SettableApiFuture.create();
+    failureFuture.setException(new IOException("Failed to append"));
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(0L))).thenReturn(failureFuture);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(mockBigQueryWriteClient, TABLE_ID, Runnable::run);
+    tableWriter.append(ROWS);
+
+    assertEquals(0, tableWriter.getPendingAppendCount());
+    CompletionException exception =
+        assertThrows(CompletionException.class, () -> tableWriter.complete().join());
+    assertEquals("Failed to append", exception.getCause().getMessage());
+    verify(mockJsonStreamWriter, never()).close();
+  }
+
+  @Test
+  public void append_emptyRows_notAppended() throws Exception {
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(mockBigQueryWriteClient, TABLE_ID, Runnable::run);
+    tableWriter.append(new JSONArray());
+    tableWriter.complete().join();
+
+    verify(mockJsonStreamWriter, never()).append(any(JSONArray.class), anyLong());
+    assertEquals(0, tableWriter.getRowCount());
+  }
+
+  @Test
+  public void complete_failedAppend_completesExceptionally() throws Exception {
+    SettableApiFuture<AppendRowsResponse> failureFuture = SettableApiFuture.create();
+    failureFuture.setException(new IOException("Failed to append"));
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(0L))).thenReturn(failureFuture);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(mockBigQueryWriteClient, TABLE_ID, Runnable::run);
+    tableWriter.append(ROWS);
+
+    assertThrows(CompletionException.class, () -> tableWriter.complete().join());
+    assertEquals(0, tableWriter.getAcknowledgedRowCount());
+  }
+
+  @Test
+  public void cancel_failsPendingAppendsAndStopsSending() throws Exception {
+    SettableApiFuture<AppendRowsResponse> pendingFuture = SettableApiFuture.create();
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(pendingFuture);
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(mockBigQueryWriteClient, TABLE_ID, Runnable::run);
+    CompletableFuture<AppendRowsResponse> pendingAppend = tableWriter.append(ROWS);
+
+    tableWriter.cancel(new IllegalStateException("Failed to convert"));
+    CompletableFuture<AppendRowsResponse> laterAppend = tableWriter.append(ROWS);
+
+    assertThrows(CompletionException.class, () -> pendingAppend.join());
+    assertThrows(CompletionException.class, () -> laterAppend.join());
+    verify(mockJsonStreamWriter, times(1)).append(any(JSONArray.class), anyLong());
+  }
+
+  @Test
+  public void complete_pendingStream_finalizesStream() throws Exception {
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(
+            mockBigQueryWriteClient, TABLE_ID, WriteStream.Type.PENDING, Runnable::run);
+    tableWriter.append(ROWS);
+    tableWriter.complete().join();
+
+    assertEquals(TEST_STREAM_NAME, tableWriter.getStreamName());
+    verify(mockJsonStreamWriter).close();
+    verify(mockBigQueryWriteClient).finalizeWriteStream(TEST_STREAM_NAME);
+  }
+
+  @Test
+  public void complete_committedStream_notFinalized() throws Exception {
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(mockBigQueryWriteClient, TABLE_ID, Runnable::run);
+    tableWriter.complete().join();
+
+    verify(mockBigQueryWriteClient, never()).finalizeWriteStream(anyString());
+  }
+
+  @Test
+  public void append_oversizedBatch_splitsAcrossAppends() throws Exception {
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+
+    // Each row is estimated at more than half of the limit, so every row is appended separately.
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(
+            mockBigQueryWriteClient,
+            TABLE_ID,
+            WriteStream.Type.COMMITTED,
+            new RowSizeGuard(20, RowSizeGuard.OversizedRowPolicy.FAIL, null),
+            null,
+            null,
+            Runnable::run);
+    tableWriter.append(ROWS).join();
+
+    verify(mockJsonStreamWriter).append(any(JSONArray.class), eq(0L));
+    verify(mockJsonStreamWriter).append(any(JSONArray.class), eq(1L));
+    assertEquals(2, tableWriter.getRowCount());
+  }
+
+  @Test
+  public void append_oversizedBatch_acquiresPermitForEveryPart() throws Exception {
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("Appends", 1000);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(
+            mockBigQueryWriteClient,
+            TABLE_ID,
+            WriteStream.Type.COMMITTED,
+            new RowSizeGuard(20, RowSizeGuard.OversizedRowPolicy.FAIL, null),
+            null,
+            rateLimiter,
+            Runnable::run);
+    tableWriter.append(ROWS).join();
+
+    assertEquals(2, rateLimiter.getCallCount());
+  }
+
+  @Test
+  public void append_waitingForRateLimiter_doesNotHoldLock() throws Exception {
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), anyLong())).thenReturn(successFuture);
+    CountDownLatch acquiring = new CountDownLatch(1);
+    CountDownLatch permitted = new CountDownLatch(1);
+    AdaptiveRateLimiter rateLimiter = mock(AdaptiveRateLimiter.class);
+    Answer<Void> waitForPermit =
+        invocation -> {
+          acquiring.countDown();
+          permitted.await();
+          return null;
+        };
+    doAnswer(waitForPermit).when(rateLimiter).acquire();
+    doAnswer(waitForPermit).when(rateLimiter).acquire(anyInt());
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(
+            mockBigQueryWriteClient,
+            TABLE_ID,
+            WriteStream.Type.COMMITTED,
+            new RowSizeGuard(
+                RowSizeGuard.DEFAULT_MAX_REQUEST_BYTES, RowSizeGuard.OversizedRowPolicy.FAIL, null),
+            null,
+            rateLimiter,
+            Runnable::run);
+    CompletableFuture<AppendRowsResponse> append =
+        CompletableFuture.supplyAsync(() -> tableWriter.append(ROWS)).thenCompose(future -> future);
+    assertTrue(acquiring.await(10, TimeUnit.SECONDS));
+
+    // The offset is read under the lock, which the waiting append must not hold.
+    assertEquals(
+        0L,
+        (long)
+            CompletableFuture.supplyAsync(tableWriter::getRowCount).get(10, TimeUnit.SECONDS));
+    permitted.countDown();
+    append.get(10, TimeUnit.SECONDS);
+    assertEquals(2, tableWriter.getRowCount());
+  }
+
+  private AppendSerializationError getAppendSerializationError(Map<Integer, String> rowErrors) {
+    return new AppendSerializationError(
+        Status.Code.INVALID_ARGUMENT.value(), "Row errors", TEST_STREAM_NAME, rowErrors);
+  }
+
+  @Test
+  public void append_rowsFailToSerialize_deadLettersRowsAndSendsValidRows() throws Exception {
+    Path deadLetterPath = temporaryFolder.getRoot().toPath().resolve("dead_letters.ndjson");
+    DeadLetterFile deadLetterFile = new DeadLetterFile(deadLetterPath);
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(0L)))
+        .thenThrow(getAppendSerializationError(Map.of(0, "Invalid timestamp")))
+        .thenReturn(successFuture);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(
+            mockBigQueryWriteClient,
+            TABLE_ID,
+            WriteStream.Type.COMMITTED,
+            new RowSizeGuard(
+                RowSizeGuard.DEFAULT_MAX_REQUEST_BYTES,
+                RowSizeGuard.OversizedRowPolicy.FAIL,
+                deadLetterFile),
+            deadLetterFile,
+            null,
+            Runnable::run);
+    tableWriter.append(ROWS).join();
+    deadLetterFile.close();
+
+    ArgumentCaptor<JSONArray> sentRows = ArgumentCaptor.forClass(JSONArray.class);
+    verify(mockJsonStreamWriter, times(2)).append(sentRows.capture(), eq(0L));
+    assertEquals(1, sentRows.getAllValues().get(1).length());
+    assertEquals(1, tableWriter.getRowCount());
+    assertEquals(1, deadLetterFile.getRowCount());
+    assertTrue(Files.readString(deadLetterPath).contains("Invalid timestamp"));
+  }
+
+  @Test
+  public void append_rowErrorsInResponse_resendsValidRowsAndLaterAppends() throws Exception {
+    DeadLetterFile deadLetterFile =
+        new DeadLetterFile(temporaryFolder.getRoot().toPath().resolve("dead_letters.ndjson"));
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    SettableApiFuture<AppendRowsResponse> firstFuture = SettableApiFuture.create();
+    SettableApiFuture<AppendRowsResponse> secondFuture = SettableApiFuture.create();
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(0L)))
+        .thenReturn(firstFuture)
+        .thenReturn(successFuture);
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(2L))).thenReturn(secondFuture);
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(1L))).thenReturn(successFuture);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(
+            mockBigQueryWriteClient,
+            TABLE_ID,
+            WriteStream.Type.COMMITTED,
+            new RowSizeGuard(
+                RowSizeGuard.DEFAULT_MAX_REQUEST_BYTES,
+                RowSizeGuard.OversizedRowPolicy.FAIL,
+                deadLetterFile),
+            deadLetterFile,
+            null,
+            Runnable::run);
+    CompletableFuture<AppendRowsResponse> firstAppend = tableWriter.append(ROWS);
+    CompletableFuture<AppendRowsResponse> secondAppend = tableWriter.append(ROWS);
+
+    // The first append is rejected for one of its rows, and the second fails on its offset.
+    firstFuture.setException(getAppendSerializationError(Map.of(1, "Invalid multipack")));
+    secondFuture.setException(new IOException("Offset out of range"));
+    firstAppend.join();
+    secondAppend.join();
+    tableWriter.complete().join();
+
+    verify(mockJsonStreamWriter, times(2)).append(any(JSONArray.class), eq(0L));
+    verify(mockJsonStreamWriter).append(ROWS, 1L);
+    assertEquals(3, tableWriter.getRowCount());
+    assertEquals(1, deadLetterFile.getRowCount());
+  }
+
+  @Test
+  public void append_rowErrorsWithoutDeadLetterFile_completesExceptionally() throws Exception {
+    SettableApiFuture<AppendRowsResponse> failureFuture = SettableApiFuture.create();
+    failureFuture.setException(getAppendSerializationError(Map.of(1, "Invalid multipack")));
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(0L))).thenReturn(failureFuture);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(mockBigQueryWriteClient, TABLE_ID, Runnable::run);
+
+    assertThrows(CompletionException.class, () -> tableWriter.append(ROWS).join());
+  }
+
+  @Test
+  public void append_throttled_lowersRateAndResendsRows() throws Exception {
+    SettableApiFuture<AppendRowsResponse> successFuture = SettableApiFuture.create();
+    successFuture.set(AppendRowsResponse.newBuilder().build());
+    SettableApiFuture<AppendRowsResponse> throttledFuture = SettableApiFuture.create();
+    throttledFuture.setException(Status.RESOURCE_EXHAUSTED.asRuntimeException());
+    when(mockJsonStreamWriter.append(any(JSONArray.class), eq(0L)))
+        .thenReturn(throttledFuture)
+        .thenReturn(successFuture);
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("Appends", 1000);
+
+    TableStreamWriter tableWriter =
+        new TableStreamWriter(
+            mockBigQueryWriteClient,
+            TABLE_ID,
+            WriteStream.Type.COMMITTED,
+            new RowSizeGuard(
+                RowSizeGuard.DEFAULT_MAX_REQUEST_BYTES, RowSizeGuard.OversizedRowPolicy.FAIL, null),
+            null,
+            rateLimiter,
+            Runnable::run);
+    tableWriter.append(ROWS).join();
+
+    verify(mockJsonStreamWriter, times(2)).append(ROWS, 0L);
+    assertEquals(2, tableWriter.getRowCount());
+    assertEquals(2, rateLimiter.getCallCount());
+    assertEquals(1, rateLimiter.getThrottledCount());
+    assertTrue(rateLimiter.getRate() < 1000);
+  }
+}
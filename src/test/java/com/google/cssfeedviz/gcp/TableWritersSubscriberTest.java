@@ -0,0 +1,144 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cssfeedviz.utils.CancellationToken;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import org.json.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class TableWritersSubscriberTest {
+  private final String TABLE_NAME = "css_products";
+  private final RowBatch ROW_BATCH =
+      new RowBatch(1, Map.of(TABLE_NAME, new JSONArray().put(Map.of("name", "Test"))));
+
+  @Mock private TableStreamWriter tableStreamWriter;
+  @Mock private Flow.Subscription subscription;
+
+  private TableWritersSubscriber subscriber;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+    subscriber = new TableWritersSubscriber(Map.of(TABLE_NAME, tableStreamWriter), 2);
+    subscriber.onSubscribe(subscription);
+  }
+
+  @Test
+  public void onSubscribe_requestsMaxInFlightBatches() {
+    verify(subscription).request(2);
+  }
+
+  @Test
+  public void onNext_requestsNextBatchOnlyAfterAppendCompletes() {
+    CompletableFuture<AppendRowsResponse> append = new CompletableFuture<>();
+    when(tableStreamWriter.append(any(JSONArray.class))).thenReturn(append);
+
+    subscriber.onNext(ROW_BATCH);
+    verify(subscription, never()).request(1);
+
+    append.complete(AppendRowsResponse.getDefaultInstance());
+    verify(subscription, times(1)).request(1);
+  }
+
+  @Test
+  public void onNext_appendCompletes_countsAppendedProducts() {
+    CompletableFuture<AppendRowsResponse> append = new CompletableFuture<>();
+    when(tableStreamWriter.append(any(JSONArray.class))).thenReturn(append);
+
+    subscriber.onNext(ROW_BATCH);
+    assertEquals(0, subscriber.getAppendedProductCount());
+
+    append.complete(AppendRowsResponse.getDefaultInstance());
+    assertEquals(1, subscriber.getAppendedProductCount());
+  }
+
+  @Test
+  public void onNext_appendFails_cancelsSubscription() {
+    when(tableStreamWriter.append(any(JSONArray.class)))
+        .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("Failed to append")));
+
+    subscriber.onNext(ROW_BATCH);
+
+    verify(subscription).cancel();
+    CompletionException exception =
+        assertThrows(CompletionException.class, () -> subscriber.getCompletion().join());
+    assertTrue(exception.getCause() instanceof IllegalStateException);
+  }
+
+  @Test
+  public void onComplete_completesAfterWritersComplete() {
+    CompletableFuture<Void> writerCompletion = new CompletableFuture<>();
+    when(tableStreamWriter.complete()).thenReturn(writerCompletion);
+
+    subscriber.onComplete();
+    assertFalse(subscriber.getCompletion().isDone());
+
+    writerCompletion.complete(null);
+    assertTrue(subscriber.getCompletion().isDone());
+  }
+
+  @Test
+  public void onNext_appendFails_cancelsTokenAndWriters() {
+    IllegalStateException failure = new IllegalStateException("Failed to append");
+    CancellationToken cancellationToken = new CancellationToken();
+    TableWritersSubscriber cancellingSubscriber =
+        new TableWritersSubscriber(Map.of(TABLE_NAME, tableStreamWriter), 2, cancellationToken);
+    cancellingSubscriber.onSubscribe(subscription);
+    when(tableStreamWriter.append(any(JSONArray.class)))
+        .thenReturn(CompletableFuture.failedFuture(failure));
+
+    cancellingSubscriber.onNext(ROW_BATCH);
+
+    assertSame(failure, cancellationToken.getCause());
+    verify(tableStreamWriter).cancel(failure);
+  }
+
+  @Test
+  public void tokenCancelled_completesExceptionallyAndCancelsSubscription() {
+    IllegalStateException failure = new IllegalStateException("Failed to convert");
+    CancellationToken cancellationToken = new CancellationToken();
+    TableWritersSubscriber cancellingSubscriber =
+        new TableWritersSubscriber(Map.of(TABLE_NAME, tableStreamWriter), 2, cancellationToken);
+    cancellingSubscriber.onSubscribe(subscription);
+
+    cancellationToken.cancel(failure);
+
+    verify(subscription).cancel();
+    verify(tableStreamWriter).cancel(failure);
+    CompletionException exception =
+        assertThrows(
+            CompletionException.class, () -> cancellingSubscriber.getCompletion().join());
+    assertSame(failure, exception.getCause());
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.gcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cssfeedviz.utils.IterablePublisher;
+import com.google.shopping.css.v1.CssProduct;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.junit.Test;
+
+public class TransferRunStatsTest {
+  private final CssProduct CSS_PRODUCT = CssProduct.newBuilder().setName("Test Product").build();
+
+  @Test
+  public void trackPages_countsPagesAndProducts() throws Exception {
+    TransferRunStats transferRunStats = new TransferRunStats();
+    Flow.Publisher<List<CssProduct>> pages =
+        new IterablePublisher<List<CssProduct>>(
+            List.of(List.of(CSS_PRODUCT, CSS_PRODUCT), List.of(CSS_PRODUCT)), Runnable::run);
+
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    transferRunStats
+        .trackPages(pages)
+        .subscribe(
+            new Flow.Subscriber<List<CssProduct>>() {
+              @Override
+              public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+              }
+
+              @Override
+              public void onNext(List<CssProduct> page) {}
+
+              @Override
+              public void onError(Throwable throwable) {
+                completion.completeExceptionally(throwable);
+              }
+
+              @Override
+              public void onComplete() {
+                completion.complete(null);
+              }
+            });
+
+    completion.get(10, TimeUnit.SECONDS);
+    assertEquals(2, transferRunStats.getPageCount());
+    assertEquals(3, transferRunStats.getFetchedProductCount());
+    assertTrue(transferRunStats.getFetchSeconds() <= transferRunStats.getTotalSeconds());
+  }
+
+  @Test
+  public void trackConversion_countsProductsAndRows() {
+    TransferRunStats transferRunStats = new TransferRunStats();
+
+    transferRunStats
+        .trackConversion(
+            batch ->
+                new RowBatch(
+                    batch.size(),
+                    Map.of(
+                        "status", new JSONArray(List.of(Map.of(), Map.of())),
+                        "issues", new JSONArray(List.of(Map.of())))))
+        .apply(List.of(CSS_PRODUCT, CSS_PRODUCT));
+
+    assertEquals(2, transferRunStats.getConvertedProductCount());
+    assertEquals(3, transferRunStats.getConvertedRowCount());
+  }
+
+  @Test
+  public void finish_recordsOutcome() {
+    TransferRunStats transferRunStats = new TransferRunStats();
+
+    transferRunStats.finish(10, 2, 1024, 1, null);
+
+    assertEquals(10, transferRunStats.getAppendedRowCount());
+    assertEquals(2, transferRunStats.getRejectedRowCount());
+    assertEquals(1024, transferRunStats.getEstimatedBytesSent());
+    assertEquals(1, transferRunStats.getSpilledBatchCount());
+    assertNull(transferRunStats.getError());
+  }
+
+  @Test
+  public void addCounts_addsUpRuns() {
+    TransferRunStats workerRunStats = new TransferRunStats();
+    workerRunStats
+        .trackConversion(batch -> new RowBatch(batch.size(), Map.of()))
+        .apply(List.of(CSS_PRODUCT, CSS_PRODUCT));
+    workerRunStats.finish(10, 2, 1024, 1, null);
+    TransferRunStats transferRunStats = new TransferRunStats();
+
+    transferRunStats.addCounts(workerRunStats.getCounts());
+    transferRunStats.addCounts(workerRunStats.getCounts());
+    RuntimeException error = new RuntimeException("Commit failed");
+    transferRunStats.finish(error);
+
+    assertEquals(4, transferRunStats.getConvertedProductCount());
+    assertEquals(20, transferRunStats.getAppendedRowCount());
+    assertEquals(4, transferRunStats.getRejectedRowCount());
+    assertEquals(2048, transferRunStats.getEstimatedBytesSent());
+    assertEquals(2, transferRunStats.getSpilledBatchCount());
+    assertEquals(error, transferRunStats.getError());
+  }
+
+  @Test
+  public void getPeakHeapBytes_returnsPositiveValue() {
+    assertTrue(TransferRunStats.getPeakHeapBytes() > 0);
+  }
+}
@@ -0,0 +1,336 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.cssfeedviz.css.FetchProfile;
+import com.google.cssfeedviz.css.ProductsService;
+import com.google.cssfeedviz.gcp.BigQueryService;
+import com.google.cssfeedviz.gcp.IssueRollup;
+import com.google.cssfeedviz.gcp.TransferRunStats;
+import com.google.cssfeedviz.utils.IterablePublisher;
+import com.google.shopping.css.v1.CssProduct;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class ShardedTransferTest {
+  private final String TEST_DATASET_NAME = "css_feedviz";
+  private final String TEST_DATASET_LOCATION = "EU";
+  private final String TEST_TABLE_NAME = "css_products";
+  private final LocalDateTime TEST_TRANSFER_DATE = LocalDateTime.of(2024, 6, 1, 12, 0);
+  private final String MANIFEST_PROPERTY = "-Dfeedviz.shard.manifest=";
+  private final IssueRollup.Key TEST_ISSUE_KEY =
+      new IssueRollup.Key("image_too_small", "disapproved", "CSS", "DE");
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Mock private ProductsService productsService;
+  @Mock private BigQueryService bigQueryService;
+
+  private ShardedTransfer shardedTransfer;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.openMocks(this);
+    when(productsService.listPageTokens()).thenReturn(List.of("", "t1", "t2", "t3"));
+    shardedTransfer = spy(new ShardedTransfer(productsService, bigQueryService));
+  }
+
+  private Path getManifestPath(List<String> command) {
+    for (String argument : command) {
+      if (argument.startsWith(MANIFEST_PROPERTY)) {
+        return Path.of(argument.substring(MANIFEST_PROPERTY.length()));
+      }
+    }
+    throw new AssertionError("No manifest in worker command");
+  }
+
+  private Process exitedWorker(int exitValue) throws InterruptedException {
+    Process worker = mock(Process.class);
+    when(worker.waitFor(anyLong(), any(TimeUnit.class))).thenReturn(true);
+    when(worker.exitValue()).thenReturn(exitValue);
+    return worker;
+  }
+
+  // Writes a manifest for the worker command, as a worker that streamed its shard does.
+  private void writeWorkerManifest(List<String> command) throws Exception {
+    Path manifestPath = getManifestPath(command);
+    TransferRunStats workerRunStats = new TransferRunStats();
+    workerRunStats.finish(10, 1, 1024, 0, null);
+    IssueRollup workerIssueRollup = new IssueRollup();
+    workerIssueRollup.addProductCounts(Map.of(TEST_ISSUE_KEY, 3L));
+    ShardedTransfer.writeManifest(
+        manifestPath,
+        Map.of(TEST_TABLE_NAME, manifestPath.getFileName().toString()),
+        workerRunStats,
+        workerIssueRollup);
+  }
+
+  @Test
+  public void coordinate_commitsStreamsOfEveryShard() throws Exception {
+    doAnswer(
+            invocation -> {
+              writeWorkerManifest(invocation.getArgument(0));
+              return exitedWorker(0);
+            })
+        .when(shardedTransfer)
+        .startWorker(anyList());
+
+    shardedTransfer.coordinate(
+        TEST_DATASET_NAME,
+        TEST_DATASET_LOCATION,
+        FetchProfile.FULL,
+        TEST_TRANSFER_DATE,
+        2,
+        temporaryFolder.getRoot().toPath());
+
+    verify(bigQueryService)
+        .prepareCssProductsTables(TEST_DATASET_NAME, TEST_DATASET_LOCATION, FetchProfile.FULL);
+    verify(bigQueryService)
+        .commitWriteStreams(
+            TEST_DATASET_NAME, Map.of(TEST_TABLE_NAME, List.of("shard-0.json", "shard-1.json")));
+    // A single run is recorded for the transfer, with the counts of both workers.
+    ArgumentCaptor<TransferRunStats> transferRunStats =
+        ArgumentCaptor.forClass(TransferRunStats.class);
+    verify(bigQueryService)
+        .recordTransferRun(
+            eq(TEST_DATASET_NAME),
+            transferRunStats.capture(),
+            eq(FetchProfile.FULL),
+            eq(TEST_TRANSFER_DATE));
+    assertEquals(20, transferRunStats.getValue().getAppendedRowCount());
+    assertEquals(2, transferRunStats.getValue().getRejectedRowCount());
+    assertNull(transferRunStats.getValue().getError());
+    // The issue counts of both workers are recorded once, after the commit.
+    ArgumentCaptor<IssueRollup> issueRollup = ArgumentCaptor.forClass(IssueRollup.class);
+    verify(bigQueryService)
+        .recordIssueRollups(
+            eq(TEST_DATASET_NAME),
+            issueRollup.capture(),
+            eq(FetchProfile.FULL),
+            eq(TEST_TRANSFER_DATE));
+    assertEquals(Map.of(TEST_ISSUE_KEY, 6L), issueRollup.getValue().getProductCounts());
+  }
+
+  @Test
+  public void coordinate_failedShard_commitsNothing() throws Exception {
+    doAnswer(invocation -> exitedWorker(0)).when(shardedTransfer).startWorker(anyList());
+
+    assertThrows(
+        RuntimeException.class,
+        () ->
+            shardedTransfer.coordinate(
+                TEST_DATASET_NAME,
+                TEST_DATASET_LOCATION,
+                FetchProfile.FULL,
+                TEST_TRANSFER_DATE,
+                2,
+                temporaryFolder.getRoot().toPath()));
+    verify(bigQueryService, never()).commitWriteStreams(anyString(), anyMap());
+    ArgumentCaptor<TransferRunStats> transferRunStats =
+        ArgumentCaptor.forClass(TransferRunStats.class);
+    verify(bigQueryService)
+        .recordTransferRun(
+            eq(TEST_DATASET_NAME),
+            transferRunStats.capture(),
+            eq(FetchProfile.FULL),
+            eq(TEST_TRANSFER_DATE));
+    assertNotNull(transferRunStats.getValue().getError());
+    verify(bigQueryService, never())
+        .recordIssueRollups(anyString(), any(IssueRollup.class), any(), any());
+  }
+
+  @Test
+  public void coordinate_workerExitsWithError_commitsNothing() throws Exception {
+    doAnswer(
+            invocation -> {
+              // The manifest is complete, but the worker failed after writing it.
+              writeWorkerManifest(invocation.getArgument(0));
+              return exitedWorker(1);
+            })
+        .when(shardedTransfer)
+        .startWorker(anyList());
+
+    assertThrows(
+        RuntimeException.class,
+        () ->
+            shardedTransfer.coordinate(
+                TEST_DATASET_NAME,
+                TEST_DATASET_LOCATION,
+                FetchProfile.FULL,
+                TEST_TRANSFER_DATE,
+                2,
+                temporaryFolder.getRoot().toPath()));
+    verify(bigQueryService, never()).commitWriteStreams(anyString(), anyMap());
+    verify(bigQueryService)
+        .recordTransferRun(
+            eq(TEST_DATASET_NAME),
+            any(TransferRunStats.class),
+            eq(FetchProfile.FULL),
+            eq(TEST_TRANSFER_DATE));
+  }
+
+  @Test
+  public void coordinate_workerTimesOut_destroysWorker() throws Exception {
+    Process hungWorker = mock(Process.class);
+    when(hungWorker.waitFor(anyLong(), any(TimeUnit.class))).thenReturn(false);
+    when(hungWorker.destroyForcibly()).thenReturn(hungWorker);
+    doAnswer(
+            invocation -> {
+              writeWorkerManifest(invocation.getArgument(0));
+              return hungWorker;
+            })
+        .when(shardedTransfer)
+        .startWorker(anyList());
+    shardedTransfer.setWorkerTimeout(Duration.ofMillis(10));
+
+    assertThrows(
+        RuntimeException.class,
+        () ->
+            shardedTransfer.coordinate(
+                TEST_DATASET_NAME,
+                TEST_DATASET_LOCATION,
+                FetchProfile.FULL,
+                TEST_TRANSFER_DATE,
+                1,
+                temporaryFolder.getRoot().toPath()));
+    verify(hungWorker).destroyForcibly();
+    verify(bigQueryService, never()).commitWriteStreams(anyString(), anyMap());
+  }
+
+  @Test
+  public void work_streamsShardToPendingStreams() throws Exception {
+    Flow.Publisher<List<CssProduct>> cssProductPages =
+        new IterablePublisher<List<CssProduct>>(List.of());
+    when(productsService.publishCssProducts(FetchProfile.FULL, "t1", "t3"))
+        .thenReturn(cssProductPages);
+    when(bigQueryService.streamCssProducts(
+            eq(TEST_DATASET_NAME),
+            eq(TEST_DATASET_LOCATION),
+            eq(cssProductPages),
+            eq(FetchProfile.FULL),
+            any(LocalDateTime.class),
+            any(TransferRunStats.class),
+            any(IssueRollup.class)))
+        .thenReturn(Map.of(TEST_TABLE_NAME, "TEST_STREAM"));
+    Path manifestPath = temporaryFolder.getRoot().toPath().resolve("shard-1.json");
+
+    shardedTransfer.work(
+        new TransferShard(1, "t1", "t3"),
+        TEST_DATASET_NAME,
+        TEST_DATASET_LOCATION,
+        FetchProfile.FULL,
+        TEST_TRANSFER_DATE,
+        manifestPath);
+
+    verify(bigQueryService).setWriteStreamType(WriteStream.Type.PENDING);
+    verify(bigQueryService).setDeadLetterQualifier("shard-1");
+    assertEquals(
+        Map.of(TEST_TABLE_NAME, "TEST_STREAM"), ShardedTransfer.readManifest(manifestPath));
+    assertTrue(ShardedTransfer.readManifestRunCounts(manifestPath).containsKey("rows_appended"));
+    assertTrue(ShardedTransfer.readManifestIssueCounts(manifestPath).isEmpty());
+    // Workers leave the transfer run and the issue rollups to the coordinator.
+    verify(bigQueryService, never())
+        .recordTransferRun(anyString(), any(TransferRunStats.class), any(), any());
+    verify(bigQueryService, never())
+        .recordIssueRollups(anyString(), any(IssueRollup.class), any(), any());
+  }
+
+  @Test
+  public void getWorkerCommand_describesShard() {
+    System.setProperty("feedviz.dataset.name", TEST_DATASET_NAME);
+    try {
+      List<String> command =
+          shardedTransfer.getWorkerCommand(
+              new TransferShard(1, "t1", "t3"), Path.of("shard-1.json"), TEST_TRANSFER_DATE);
+
+      assertTrue(command.contains("-Dfeedviz.dataset.name=" + TEST_DATASET_NAME));
+      assertTrue(command.contains("-Dfeedviz.mode=worker"));
+      assertTrue(command.contains("-Dfeedviz.shard.start.token=t1"));
+      assertTrue(command.contains("-Dfeedviz.shard.end.token=t3"));
+      assertTrue(command.contains("-Dfeedviz.transfer.date=2024-06-01T12:00"));
+      assertEquals("com.google.cssfeedviz.TransferCssProducts", command.get(command.size() - 1));
+    } finally {
+      System.clearProperty("feedviz.dataset.name");
+    }
+  }
+
+  @Test
+  public void getWorkerCommand_nativeImage_startsOwnExecutable() {
+    System.setProperty("org.graalvm.nativeimage.imagecode", "runtime");
+    try {
+      List<String> command =
+          shardedTransfer.getWorkerCommand(
+              new TransferShard(1, "t1", "t3"), Path.of("shard-1.json"), TEST_TRANSFER_DATE);
+
+      assertEquals(ProcessHandle.current().info().command().get(), command.get(0));
+      assertFalse(command.contains("-cp"));
+      assertEquals("-Dfeedviz.transfer.date=2024-06-01T12:00", command.get(command.size() - 1));
+    } finally {
+      System.clearProperty("org.graalvm.nativeimage.imagecode");
+    }
+  }
+
+  @Test
+  public void readManifest_readsWrittenManifest() throws Exception {
+    Path manifestPath = temporaryFolder.newFile().toPath();
+    TransferRunStats transferRunStats = new TransferRunStats();
+    transferRunStats.finish(10, 2, 1024, 1, null);
+    IssueRollup issueRollup = new IssueRollup();
+    IssueRollup.Key noCountryKey = new IssueRollup.Key("missing_value", "demoted", "CSS", null);
+    issueRollup.addProductCounts(Map.of(TEST_ISSUE_KEY, 3L, noCountryKey, 1L));
+    ShardedTransfer.writeManifest(
+        manifestPath, Map.of("a", "stream_a", "b", "stream_b"), transferRunStats, issueRollup);
+    assertTrue(Files.exists(manifestPath));
+    assertEquals(
+        Map.of("a", "stream_a", "b", "stream_b"), ShardedTransfer.readManifest(manifestPath));
+    assertEquals(transferRunStats.getCounts(), ShardedTransfer.readManifestRunCounts(manifestPath));
+    assertEquals(
+        Map.of(TEST_ISSUE_KEY, 3L, noCountryKey, 1L),
+        ShardedTransfer.readManifestIssueCounts(manifestPath));
+  }
+}
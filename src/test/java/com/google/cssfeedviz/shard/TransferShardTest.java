@@ -0,0 +1,42 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.shard;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import org.junit.Test;
+
+public class TransferShardTest {
+
+  @Test
+  public void split_evenlyDividesPages() {
+    List<TransferShard> shards = TransferShard.split(List.of("", "t1", "t2", "t3", "t4"), 2);
+    assertEquals(
+        List.of(new TransferShard(0, "", "t2"), new TransferShard(1, "t2", "")), shards);
+  }
+
+  @Test
+  public void split_moreShardsThanPages_oneShardPerPage() {
+    List<TransferShard> shards = TransferShard.split(List.of("", "t1"), 4);
+    assertEquals(
+        List.of(new TransferShard(0, "", "t1"), new TransferShard(1, "t1", "")), shards);
+  }
+
+  @Test
+  public void split_singlePage_singleShard() {
+    assertEquals(List.of(new TransferShard(0, "", "")), TransferShard.split(List.of(""), 3));
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import io.grpc.Status;
+import org.junit.Test;
+
+public class AdaptiveRateLimiterTest {
+
+  @Test
+  public void acquire_countsCalls() {
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("Test API", 1000);
+
+    rateLimiter.acquire();
+    rateLimiter.acquire();
+
+    assertEquals(2, rateLimiter.getCallCount());
+    assertEquals(1000, rateLimiter.getRate(), 0);
+  }
+
+  @Test
+  public void acquire_severalPermits_countsEveryCall() {
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("Test API", 1000);
+
+    rateLimiter.acquire(3);
+
+    assertEquals(3, rateLimiter.getCallCount());
+  }
+
+  @Test
+  public void onThrottled_halvesRateOncePerBurst() {
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("Test API", 1000);
+
+    rateLimiter.onThrottled();
+    rateLimiter.onThrottled();
+
+    assertEquals(500, rateLimiter.getRate(), 0);
+    assertEquals(2, rateLimiter.getThrottledCount());
+  }
+
+  @Test
+  public void onThrottled_keepsMinimumRate() {
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("Test API", 800, 1000);
+
+    rateLimiter.onThrottled();
+
+    assertEquals(800, rateLimiter.getRate(), 0);
+  }
+
+  @Test
+  public void onSuccess_raisesRateUpToMaximum() {
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter("Test API", 1, 2);
+    rateLimiter.onThrottled();
+
+    rateLimiter.onSuccess();
+    assertEquals(2, rateLimiter.getRate(), 0);
+    rateLimiter.onSuccess();
+    assertEquals(2, rateLimiter.getRate(), 0);
+  }
+
+  @Test
+  public void isThrottled_resourceExhausted_returnsTrue() {
+    assertTrue(AdaptiveRateLimiter.isThrottled(Status.RESOURCE_EXHAUSTED.asRuntimeException()));
+    assertTrue(
+        AdaptiveRateLimiter.isThrottled(
+            ApiExceptionFactory.createException(
+                "Quota exceeded",
+                null,
+                GrpcStatusCode.of(Status.Code.RESOURCE_EXHAUSTED),
+                true)));
+    assertTrue(
+        AdaptiveRateLimiter.isThrottled(
+            new RuntimeException(Status.RESOURCE_EXHAUSTED.asRuntimeException())));
+  }
+
+  @Test
+  public void isThrottled_otherFailure_returnsFalse() {
+    assertFalse(AdaptiveRateLimiter.isThrottled(Status.UNAVAILABLE.asRuntimeException()));
+    assertFalse(AdaptiveRateLimiter.isThrottled(new IllegalStateException("Failed")));
+  }
+
+  @Test
+  public void constructor_minimumAboveMaximum_throwsException() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new AdaptiveRateLimiter("Test API", 2, 1));
+  }
+}
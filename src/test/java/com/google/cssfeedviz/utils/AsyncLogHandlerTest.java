@@ -0,0 +1,119 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.junit.Test;
+
+public class AsyncLogHandlerTest {
+  private static class RecordingHandler extends Handler {
+    private final List<LogRecord> records = new CopyOnWriteArrayList<LogRecord>();
+    private final CountDownLatch publishing = new CountDownLatch(1);
+    private final CountDownLatch released;
+    private boolean closed = false;
+
+    RecordingHandler(CountDownLatch released) {
+      this.released = released;
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+      publishing.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      records.add(record);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  @Test
+  public void publish_passesRecordsOnInOrder() {
+    RecordingHandler delegate = new RecordingHandler(new CountDownLatch(0));
+    AsyncLogHandler asyncLogHandler = new AsyncLogHandler(delegate, 16);
+
+    asyncLogHandler.publish(new LogRecord(Level.INFO, "First"));
+    asyncLogHandler.publish(new LogRecord(Level.INFO, "Second"));
+    asyncLogHandler.flush();
+    asyncLogHandler.close();
+
+    assertEquals(
+        List.of("First", "Second"),
+        delegate.records.stream().map(LogRecord::getMessage).toList());
+    assertTrue(delegate.closed);
+  }
+
+  @Test
+  public void publish_bufferFull_dropsRecords() throws InterruptedException {
+    CountDownLatch released = new CountDownLatch(1);
+    RecordingHandler delegate = new RecordingHandler(released);
+    AsyncLogHandler asyncLogHandler = new AsyncLogHandler(delegate, 1);
+
+    asyncLogHandler.publish(new LogRecord(Level.INFO, "Written"));
+    assertTrue(delegate.publishing.await(5, TimeUnit.SECONDS));
+    asyncLogHandler.publish(new LogRecord(Level.INFO, "Buffered"));
+    asyncLogHandler.publish(new LogRecord(Level.INFO, "Dropped"));
+    released.countDown();
+    asyncLogHandler.close();
+
+    assertEquals(1, asyncLogHandler.getDroppedRecordCount());
+    assertEquals(
+        List.of("Written", "Buffered", "1 log records were dropped while the log buffer was full"),
+        delegate.records.stream().map(LogRecord::getMessage).toList());
+  }
+
+  @Test
+  public void publish_belowLevel_isIgnored() {
+    RecordingHandler delegate = new RecordingHandler(new CountDownLatch(0));
+    AsyncLogHandler asyncLogHandler = new AsyncLogHandler(delegate, 16);
+    asyncLogHandler.setLevel(Level.INFO);
+
+    asyncLogHandler.publish(new LogRecord(Level.FINE, "Ignored"));
+    asyncLogHandler.publish(new LogRecord(Level.WARNING, "Logged"));
+    asyncLogHandler.close();
+
+    assertEquals(
+        List.of("Logged"), delegate.records.stream().map(LogRecord::getMessage).toList());
+  }
+
+  @Test
+  public void publish_afterClose_isIgnored() {
+    RecordingHandler delegate = new RecordingHandler(new CountDownLatch(0));
+    AsyncLogHandler asyncLogHandler = new AsyncLogHandler(delegate, 16);
+    asyncLogHandler.close();
+
+    asyncLogHandler.publish(new LogRecord(Level.INFO, "Ignored"));
+
+    assertTrue(delegate.records.isEmpty());
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class CancellationTokenTest {
+  @Test
+  public void cancel_keepsFirstCause() {
+    CancellationToken cancellationToken = new CancellationToken();
+    IllegalStateException first = new IllegalStateException("First");
+
+    assertTrue(cancellationToken.cancel(first));
+    assertFalse(cancellationToken.cancel(new IllegalStateException("Second")));
+
+    assertTrue(cancellationToken.isCancelled());
+    assertSame(first, cancellationToken.getCause());
+  }
+
+  @Test
+  public void getCause_notCancelled_returnsNull() {
+    CancellationToken cancellationToken = new CancellationToken();
+
+    assertFalse(cancellationToken.isCancelled());
+    assertNull(cancellationToken.getCause());
+  }
+
+  @Test
+  public void onCancel_runsListenerOnce() {
+    CancellationToken cancellationToken = new CancellationToken();
+    AtomicInteger runs = new AtomicInteger();
+    cancellationToken.onCancel(runs::incrementAndGet);
+
+    cancellationToken.cancel(new IllegalStateException("First"));
+    cancellationToken.cancel(new IllegalStateException("Second"));
+
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void onCancel_alreadyCancelled_runsListenerRightAway() {
+    CancellationToken cancellationToken = new CancellationToken();
+    cancellationToken.cancel(new IllegalStateException("Failed"));
+    AtomicInteger runs = new AtomicInteger();
+
+    cancellationToken.onCancel(runs::incrementAndGet);
+
+    assertEquals(1, runs.get());
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class IterablePublisherTest {
+
+  private static class RecordingSubscriber implements Flow.Subscriber<Integer> {
+    private final List<Integer> items = new ArrayList<>();
+    private Flow.Subscription subscription;
+    private Throwable error;
+    private boolean completed = false;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(Integer item) {
+      items.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+
+  @Test
+  public void subscribe_emitsOnlyRequestedItems() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new IterablePublisher<Integer>(List.of(1, 2, 3), Runnable::run).subscribe(subscriber);
+
+    assertTrue(subscriber.items.isEmpty());
+    subscriber.subscription.request(2);
+    assertEquals(List.of(1, 2), subscriber.items);
+    assertFalse(subscriber.completed);
+
+    subscriber.subscription.request(2);
+    assertEquals(List.of(1, 2, 3), subscriber.items);
+    assertTrue(subscriber.completed);
+  }
+
+  @Test
+  public void subscribe_cancelled_stopsIterating() {
+    AtomicInteger iterated = new AtomicInteger();
+    Iterable<Integer> iterable =
+        () ->
+            new Iterator<Integer>() {
+              @Override
+              public boolean hasNext() {
+                return true;
+              }
+
+              @Override
+              public Integer next() {
+                return iterated.incrementAndGet();
+              }
+            };
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new IterablePublisher<Integer>(iterable, Runnable::run).subscribe(subscriber);
+
+    subscriber.subscription.request(2);
+    subscriber.subscription.cancel();
+    subscriber.subscription.request(2);
+
+    assertEquals(2, iterated.get());
+    assertFalse(subscriber.completed);
+  }
+
+  @Test
+  public void subscribe_failingIterator_signalsError() {
+    Iterable<Integer> iterable =
+        () ->
+            new Iterator<Integer>() {
+              @Override
+              public boolean hasNext() {
+                throw new IllegalStateException("Failed to list");
+              }
+
+              @Override
+              public Integer next() {
+                return 0;
+              }
+            };
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new IterablePublisher<Integer>(iterable, Runnable::run).subscribe(subscriber);
+
+    subscriber.subscription.request(1);
+    assertTrue(subscriber.error instanceof IllegalStateException);
+  }
+
+  @Test
+  public void request_nonPositive_signalsError() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new IterablePublisher<Integer>(List.of(1), Runnable::run).subscribe(subscriber);
+
+    subscriber.subscription.request(0);
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.junit.Test;
+
+public class LogFormatterTest {
+  private static final Instant INSTANT = Instant.parse("2024-05-01T10:15:30Z");
+
+  private static LogRecord createRecord(Level level, String message, Object... parameters) {
+    LogRecord record = new LogRecord(level, message);
+    record.setLoggerName("com.google.cssfeedviz.gcp.TableStreamWriter");
+    record.setInstant(INSTANT);
+    record.setParameters(parameters);
+    return record;
+  }
+
+  @Test
+  public void fields_keepsOrder() {
+    Map<String, Object> fields = LogFormatter.fields("run_id", "abc", "offset", 42L);
+
+    assertEquals(List.of("run_id", "offset"), List.copyOf(fields.keySet()));
+    assertEquals(42L, fields.get("offset"));
+  }
+
+  @Test
+  public void fields_missingValue_throwsException() {
+    assertThrows(IllegalArgumentException.class, () -> LogFormatter.fields("run_id"));
+  }
+
+  @Test
+  public void format_appendsFields() {
+    LogRecord record =
+        createRecord(
+            Level.FINE,
+            "Append sent",
+            LogFormatter.fields(
+                "run_id", "abc", "offset", 42L, "table", "css products", "error", null));
+
+    assertEquals(
+        "2024-05-01T10:15:30Z FINE TableStreamWriter: Append sent run_id=abc offset=42"
+            + " table=\"css products\""
+            + System.lineSeparator(),
+        new LogFormatter().format(record));
+  }
+
+  @Test
+  public void format_withoutFields_formatsParameters() {
+    LogRecord record = createRecord(Level.INFO, "Exported {0} CSS Products", 3);
+
+    assertEquals(
+        "2024-05-01T10:15:30Z INFO TableStreamWriter: Exported 3 CSS Products"
+            + System.lineSeparator(),
+        new LogFormatter().format(record));
+  }
+
+  @Test
+  public void format_withThrown_appendsStackTrace() {
+    LogRecord record = createRecord(Level.SEVERE, "Transfer failed");
+    record.setThrown(new IllegalStateException("Append failed"));
+
+    String line = new LogFormatter().format(record);
+
+    assertTrue(
+        line.startsWith(
+            "2024-05-01T10:15:30Z SEVERE TableStreamWriter: Transfer failed"
+                + System.lineSeparator()
+                + "java.lang.IllegalStateException: Append failed"));
+  }
+}
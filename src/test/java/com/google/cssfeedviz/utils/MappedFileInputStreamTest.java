@@ -0,0 +1,70 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFileInputStreamTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private byte[] getBytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) i;
+    }
+    return bytes;
+  }
+
+  @Test
+  public void readAllBytes_acrossWindows() throws Exception {
+    byte[] bytes = getBytes(1000);
+    Path path = temporaryFolder.newFile().toPath();
+    Files.write(path, bytes);
+
+    try (InputStream inputStream = new MappedFileInputStream(path, 64)) {
+      assertArrayEquals(bytes, inputStream.readAllBytes());
+      assertEquals(-1, inputStream.read());
+    }
+  }
+
+  @Test
+  public void read_singleBytes() throws Exception {
+    Path path = temporaryFolder.newFile().toPath();
+    Files.write(path, new byte[] {1, (byte) 200});
+
+    try (InputStream inputStream = new MappedFileInputStream(path, 1)) {
+      assertEquals(1, inputStream.read());
+      assertEquals(200, inputStream.read());
+      assertEquals(-1, inputStream.read());
+    }
+  }
+
+  @Test
+  public void read_emptyFile() throws Exception {
+    Path path = temporaryFolder.newFile().toPath();
+
+    try (InputStream inputStream = new MappedFileInputStream(path)) {
+      assertEquals(-1, inputStream.read());
+    }
+  }
+}
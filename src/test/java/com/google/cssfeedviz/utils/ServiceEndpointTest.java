@@ -0,0 +1,78 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import io.grpc.ManagedChannelBuilder;
+import org.junit.Test;
+
+public class ServiceEndpointTest {
+  @Test
+  public void parse_hostAndPort_usesTls() {
+    ServiceEndpoint endpoint = ServiceEndpoint.parse("eu-css.googleapis.com:443");
+
+    assertEquals("eu-css.googleapis.com:443", endpoint.getAuthority());
+    assertEquals("https://eu-css.googleapis.com:443", endpoint.getUrl());
+    assertFalse(endpoint.isPlaintext());
+  }
+
+  @Test
+  public void parse_httpUrl_isPlaintext() {
+    ServiceEndpoint endpoint = ServiceEndpoint.parse("http://localhost:9050/");
+
+    assertEquals("localhost:9050", endpoint.getAuthority());
+    assertEquals("http://localhost:9050", endpoint.getUrl());
+    assertTrue(endpoint.isPlaintext());
+  }
+
+  @Test
+  public void parse_invalidValues() {
+    assertNull(ServiceEndpoint.parse(null));
+    assertThrows(IllegalArgumentException.class, () -> ServiceEndpoint.parse("http://"));
+    assertThrows(
+        IllegalArgumentException.class, () -> ServiceEndpoint.parse("https://localhost/bigquery"));
+  }
+
+  @Test
+  public void configure_setsEndpoint() {
+    InstantiatingGrpcChannelProvider.Builder channelProvider =
+        ServiceEndpoint.parse("https://localhost:8443")
+            .configure(InstantiatingGrpcChannelProvider.newBuilder());
+
+    assertEquals("localhost:8443", channelProvider.getEndpoint());
+    assertNull(channelProvider.getChannelConfigurator());
+  }
+
+  @Test
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public void configure_plaintext_disablesTls() {
+    InstantiatingGrpcChannelProvider.Builder channelProvider =
+        ServiceEndpoint.parse("http://localhost:9000")
+            .configure(InstantiatingGrpcChannelProvider.newBuilder());
+    ManagedChannelBuilder channelBuilder = mock(ManagedChannelBuilder.class);
+
+    channelProvider.getChannelConfigurator().apply(channelBuilder);
+
+    assertEquals("localhost:9000", channelProvider.getEndpoint());
+    verify(channelBuilder).usePlaintext();
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import org.junit.Test;
+
+public class StringDictionaryTest {
+
+  @Test
+  public void intern_returnsCanonicalInstance() {
+    StringDictionary stringDictionary = new StringDictionary();
+    String first = new String("EUR");
+    String second = new String("EUR");
+
+    assertSame(first, stringDictionary.intern(first));
+    assertSame(first, stringDictionary.intern(second));
+    assertEquals(1, stringDictionary.size());
+  }
+
+  @Test
+  public void intern_null_returnsNull() {
+    assertNull(new StringDictionary().intern(null));
+  }
+
+  @Test
+  public void intern_full_returnsValueAsIs() {
+    StringDictionary stringDictionary = new StringDictionary(1);
+    stringDictionary.intern("EUR");
+    String first = new String("USD");
+    String second = new String("USD");
+
+    assertSame(first, stringDictionary.intern(first));
+    assertSame(second, stringDictionary.intern(second));
+    assertNotSame(first, second);
+    assertEquals(1, stringDictionary.size());
+  }
+
+  @Test
+  public void internAll_returnsCanonicalInstances() {
+    StringDictionary stringDictionary = new StringDictionary();
+    String germany = new String("DE");
+    stringDictionary.intern(germany);
+
+    List<String> countries = stringDictionary.internAll(List.of(new String("DE"), "FR"));
+
+    assertEquals(List.of("DE", "FR"), countries);
+    assertSame(germany, countries.get(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_negativeMaxSize_throwsException() {
+    new StringDictionary(-1);
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cssfeedviz.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.GrpcInterceptorProvider;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientInterceptor;
+import java.util.List;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.threeten.bp.Duration;
+
+public class TransportProfileTest {
+  @Test
+  public void fromName() {
+    assertEquals(TransportProfile.DEFAULT, TransportProfile.fromName("default"));
+    assertEquals(TransportProfile.HIGH_THROUGHPUT, TransportProfile.fromName("High-Throughput"));
+    assertThrows(IllegalArgumentException.class, () -> TransportProfile.fromName("fast"));
+  }
+
+  @Test
+  public void configure_default_keepsClientDefaults() {
+    InstantiatingGrpcChannelProvider.Builder channelProvider =
+        TransportProfile.DEFAULT.configure(spy(InstantiatingGrpcChannelProvider.newBuilder()));
+
+    assertFalse(TransportProfile.DEFAULT.isCompressed());
+    assertNull(channelProvider.getKeepAliveTime());
+    assertNull(channelProvider.getMaxInboundMessageSize());
+    verify(channelProvider, never()).setInterceptorProvider(any());
+    assertEquals(1, channelProvider.build().getChannelPoolSettings().getInitialChannelCount());
+  }
+
+  @Test
+  public void configure_compressed_compressesCalls() {
+    InstantiatingGrpcChannelProvider.Builder channelProvider =
+        TransportProfile.COMPRESSED.configure(spy(InstantiatingGrpcChannelProvider.newBuilder()));
+
+    assertEquals("gzip", getCallCompressor(channelProvider));
+    assertNull(channelProvider.getKeepAliveTime());
+    assertEquals(1, channelProvider.build().getChannelPoolSettings().getInitialChannelCount());
+  }
+
+  @Test
+  public void configure_highThroughput_setsChannelSettings() {
+    InstantiatingGrpcChannelProvider.Builder channelProvider =
+        TransportProfile.HIGH_THROUGHPUT.configure(
+            spy(InstantiatingGrpcChannelProvider.newBuilder()));
+
+    assertTrue(TransportProfile.HIGH_THROUGHPUT.isCompressed());
+    assertEquals(Duration.ofSeconds(30), channelProvider.getKeepAliveTime());
+    assertTrue(channelProvider.getKeepAliveWithoutCalls());
+    assertEquals(Integer.valueOf(64 * 1024 * 1024), channelProvider.getMaxInboundMessageSize());
+    ChannelPoolSettings channelPoolSettings = channelProvider.build().getChannelPoolSettings();
+    assertEquals(4, channelPoolSettings.getMinChannelCount());
+    assertEquals(4, channelPoolSettings.getMaxChannelCount());
+    assertEquals("gzip", getCallCompressor(channelProvider));
+  }
+
+  // Returns the compressor of the calls made through the interceptors set on the channel provider.
+  private static String getCallCompressor(
+      InstantiatingGrpcChannelProvider.Builder channelProvider) {
+    ArgumentCaptor<GrpcInterceptorProvider> interceptorProvider =
+        ArgumentCaptor.forClass(GrpcInterceptorProvider.class);
+    verify(channelProvider).setInterceptorProvider(interceptorProvider.capture());
+    List<ClientInterceptor> interceptors = interceptorProvider.getValue().getInterceptors();
+    assertEquals(1, interceptors.size());
+    Channel channel = mock(Channel.class);
+    interceptors.get(0).interceptCall(null, CallOptions.DEFAULT, channel);
+    ArgumentCaptor<CallOptions> callOptions = ArgumentCaptor.forClass(CallOptions.class);
+    verify(channel).newCall(any(), callOptions.capture());
+    return callOptions.getValue().getCompressor();
+  }
+}